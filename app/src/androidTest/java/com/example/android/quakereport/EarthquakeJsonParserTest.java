@@ -0,0 +1,245 @@
+package com.example.android.quakereport;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link EarthquakeJsonParser} over a month-sized USGS GeoJSON response and compares its
+ * peak heap and parse time with the old approach of reading the response into one String and
+ * building an org.json tree from it. Both are written to the log under this class's name.
+ *
+ * The parser needs android.util.JsonReader, so this test runs on a device or emulator.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EarthquakeJsonParserTest {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakeJsonParserTest.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Number of earthquakes in the large response, about a month of the "all" feed */
+    private static final int EVENT_COUNT = 10000;
+
+    /* Number of earthquakes parsed between two samples of the heap */
+    private static final int SAMPLE_INTERVAL = 100;
+
+    private static byte[] sGeoJson;
+
+    @BeforeClass
+    public static void createResponse() {
+        sGeoJson = geoJson(EVENT_COUNT).getBytes(UTF_8);
+    }
+
+    @Test
+    public void readsEveryFeature() throws IOException {
+        String json = "{\"type\":\"FeatureCollection\",\"metadata\":{\"count\":3},\"features\":["
+                + "{\"type\":\"Feature\",\"properties\":{\"mag\":4.5,\"place\":\"Gulf of "
+                + "California\",\"time\":1485993600000,\"updated\":1485997200000,\"tz\":-420,"
+                + "\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/us1\",\"felt\":null,"
+                + "\"ids\":\",us1,\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[-110.5,"
+                + "26.25,10]},\"id\":\"us1\"},"
+                + "{\"type\":\"Feature\",\"properties\":{\"mag\":null,\"time\":1485993500000},"
+                + "\"id\":\"us2\"},"
+                + "{\"type\":\"Feature\",\"properties\":{\"mag\":2.7,\"time\":1.4859934E12},"
+                + "\"id\":\"us3\"}],\"bbox\":[-180,-90,0,180,90,700]}";
+        EarthquakeParser parser = new EarthquakeJsonParser(
+                new ByteArrayInputStream(json.getBytes(UTF_8)));
+
+        Earthquake first = parser.next();
+        assertEquals(4.5, first.getMagnitude(), 0);
+        assertEquals("Gulf of California", first.getLocation());
+        assertEquals(1485993600000L, first.getTimeInMills());
+        assertEquals(1485997200000L, first.getUpdatedInMills());
+        assertEquals("us1", first.getId());
+        assertEquals(26.25, first.getLatitude(), 0);
+        assertEquals(-110.5, first.getLongitude(), 0);
+        assertEquals(10, first.getDepth(), 0);
+
+        // The feature with a null magnitude is skipped and counted
+        Earthquake second = parser.next();
+        assertEquals("us3", second.getId());
+        assertEquals(1485993400000L, second.getTimeInMills());
+        assertEquals(null, parser.next());
+        assertEquals(1, parser.getSkippedCount());
+    }
+
+    @Test
+    public void streamingUsesLessHeapThanTree() throws IOException, JSONException {
+        // Run each once first, so class loading and JIT do not count against either
+        parseStreaming();
+        parseTree();
+
+        HeapSampler streamingHeap = new HeapSampler();
+        long start = System.nanoTime();
+        int streamingCount = parseStreaming(streamingHeap);
+        long streamingMillis = (System.nanoTime() - start) / 1000000;
+
+        HeapSampler treeHeap = new HeapSampler();
+        start = System.nanoTime();
+        int treeCount = parseTree(treeHeap);
+        long treeMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d events, %d bytes: streaming %d ms, peak heap %d KB; "
+                        + "String + JSONObject %d ms, peak heap %d KB",
+                EVENT_COUNT, sGeoJson.length, streamingMillis, streamingHeap.getPeak() / 1024,
+                treeMillis, treeHeap.getPeak() / 1024));
+
+        assertEquals(EVENT_COUNT, streamingCount);
+        assertEquals(EVENT_COUNT, treeCount);
+        assertTrue(streamingHeap.getPeak() < treeHeap.getPeak());
+    }
+
+    private int parseStreaming() throws IOException {
+        return parseStreaming(new HeapSampler());
+    }
+
+    /*
+     * Parse the large response with {@link EarthquakeJsonParser}, sampling the heap as it goes.
+     * Returns the number of earthquakes read.
+     */
+    private int parseStreaming(HeapSampler heap) throws IOException {
+        EarthquakeParser parser = new EarthquakeJsonParser(new ByteArrayInputStream(sGeoJson));
+        int count = 0;
+        while (parser.next() != null) {
+            if (++count % SAMPLE_INTERVAL == 0) {
+                heap.sample();
+            }
+        }
+        parser.close();
+        heap.sample();
+        return count;
+    }
+
+    private int parseTree() throws IOException, JSONException {
+        return parseTree(new HeapSampler());
+    }
+
+    /*
+     * Parse the large response the way QueryUtils used to: read it into one String, build an
+     * org.json tree from it and walk its "features". Returns the number of earthquakes read.
+     */
+    private int parseTree(HeapSampler heap) throws IOException, JSONException {
+        InputStream inputStream = new ByteArrayInputStream(sGeoJson);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+        StringBuilder output = new StringBuilder();
+        String line = reader.readLine();
+        while (line != null) {
+            output.append(line);
+            line = reader.readLine();
+        }
+        heap.sample();
+        String jsonResponse = output.toString();
+        heap.sample();
+
+        JSONObject root = new JSONObject(jsonResponse);
+        heap.sample();
+        JSONArray features = root.getJSONArray("features");
+        int count = 0;
+        for (int i = 0; i < features.length(); i++) {
+            JSONObject properties = features.getJSONObject(i).getJSONObject("properties");
+            new Earthquake(properties.getDouble("mag"), properties.getString("place"),
+                    properties.getLong("time"), properties.getString("url"));
+            if (++count % SAMPLE_INTERVAL == 0) {
+                heap.sample();
+            }
+        }
+        heap.sample();
+        return count;
+    }
+
+    /*
+     * Return the text of a USGS GeoJSON response with the given number of earthquakes, with
+     * every property the real feed has. The earthquakes are generated from a fixed seed.
+     */
+    private static String geoJson(int eventCount) {
+        String[] places = {"76 km SSE of Iquique, Chile", "10km NW of Tokyo, Japan",
+                "South of the Fiji Islands", "Gulf of California", "Kermadec Islands, New Zealand"};
+        Random random = new Random(42);
+        long time = 1485993600000L;
+
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"metadata\":{"
+                + "\"generated\":1485993600000,\"url\":\"https://earthquake.usgs.gov/earthquakes/"
+                + "feed/v1.0/summary/all_month.geojson\",\"title\":\"USGS All Earthquakes, Past "
+                + "Month\",\"status\":200,\"api\":\"1.5.4\",\"count\":")
+                .append(eventCount).append("},\"features\":[\n");
+        for (int i = 0; i < eventCount; i++) {
+            time -= 1 + random.nextInt(5 * 60 * 1000);
+            String id = "us" + (10000000 + i);
+            if (i > 0) {
+                json.append(",\n");
+            }
+            json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":")
+                    .append(2.5 + Math.round(random.nextDouble() * 60) / 10.0)
+                    .append(",\"place\":\"").append(places[random.nextInt(places.length)])
+                    .append("\",\"time\":").append(time)
+                    .append(",\"updated\":").append(time + 60 * 60 * 1000)
+                    .append(",\"tz\":-240,\"url\":\"https://earthquake.usgs.gov/earthquakes/"
+                            + "eventpage/").append(id)
+                    .append("\",\"detail\":\"https://earthquake.usgs.gov/earthquakes/feed/v1.0/"
+                            + "detail/").append(id)
+                    .append(".geojson\",\"felt\":null,\"cdi\":null,\"mmi\":null,\"alert\":null,"
+                            + "\"status\":\"reviewed\",\"tsunami\":0,\"sig\":312,\"net\":\"us\","
+                            + "\"code\":\"").append(id.substring(2))
+                    .append("\",\"ids\":\",").append(id)
+                    .append(",\",\"sources\":\",us,\",\"types\":\",geoserve,origin,phase-data,"
+                            + "\",\"nst\":null,\"dmin\":1.2,\"rms\":0.8,\"gap\":25,"
+                            + "\"magType\":\"mb\",\"type\":\"earthquake\"")
+                    .append("},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                    .append(String.format(Locale.US, "%.4f,%.4f,%.2f",
+                            random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90,
+                            random.nextDouble() * 600))
+                    .append("]},\"id\":\"").append(id).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Tracks the highest heap usage seen, above the usage when it was created.
+     */
+    private static final class HeapSampler {
+
+        private final Runtime mRuntime = Runtime.getRuntime();
+
+        private final long mBaseline;
+
+        private long mPeak;
+
+        HeapSampler() {
+            mRuntime.gc();
+            mBaseline = used();
+        }
+
+        void sample() {
+            mPeak = Math.max(mPeak, used() - mBaseline);
+        }
+
+        long getPeak() {
+            return mPeak;
+        }
+
+        private long used() {
+            return mRuntime.totalMemory() - mRuntime.freeMemory();
+        }
+    }
+}
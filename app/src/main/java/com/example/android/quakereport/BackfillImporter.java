@@ -0,0 +1,319 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Imports the earthquakes of a long time range, e.g. years of the USGS catalog, into the
+ * archive {@link EarthquakeCache}.
+ *
+ * A single USGS query returns at most MAX_EVENTS_PER_REQUEST earthquakes, so the range is
+ * imported one time window at a time, oldest first. Before each window is fetched, the USGS
+ * "count" method says how many earthquakes it holds; a window over the limit is halved until it
+ * fits, and a window well under it lets the next one grow, so quiet years take few requests.
+ *
+ * Each window is parsed as it streams in and written in batches of BATCH_SIZE earthquakes, one
+ * transaction per batch. The end of the last imported window is saved after every window, so an
+ * import that is stopped resumes from there when it is run again with the same query and range.
+ * Every window is requested only once, so it is fetched with {@link HttpFetcher#FLAG_NO_CACHE}
+ * rather than pushing the cached bodies of the live feeds out of the HTTP cache.
+ *
+ * {@link #run()} blocks, so it must be called from a background thread. Its progress, including
+ * the throughput in earthquakes per second, is logged and passed to the
+ * {@link ProgressListener}.
+ */
+public final class BackfillImporter {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = BackfillImporter.class.getSimpleName();
+
+    /* Most earthquakes USGS returns for a single query */
+    private static final int MAX_EVENTS_PER_REQUEST = 20000;
+
+    /* Number of earthquakes written per transaction */
+    private static final int BATCH_SIZE = 500;
+
+    /* Values read from the imported earthquakes. The archive feeds {@link EarthquakeStatistics},
+     * which needs the location and the update time, but neither the coordinates nor the URL */
+    private static final int IMPORT_FIELDS =
+            EarthquakeParser.FIELD_LOCATION | EarthquakeParser.FIELD_UPDATED;
+
+    /* Bounds (in milliseconds) of the time windows, and the length of the first one */
+    private static final long MIN_WINDOW = 60 * 1000;
+    private static final long INITIAL_WINDOW = 7 * 24 * 60 * 60 * 1000L;
+    private static final long MAX_WINDOW = 365 * 24 * 60 * 60 * 1000L;
+
+    /* Query parameters used by the USGS API, and those the "count" method does not accept */
+    private static final String PARAM_LIMIT = "limit";
+    private static final String[] PARAMS_NOT_COUNTED = {"format", "orderby", "limit", "offset"};
+
+    /* Name of the preferences file holding the progress of the import */
+    private static final String PREFS_NAME = "earthquake_backfill";
+
+    /* Preference keys of the import being run, and of how far it got */
+    private static final String KEY_URL = "url";
+    private static final String KEY_START_TIME = "start_time";
+    private static final String KEY_END_TIME = "end_time";
+    private static final String KEY_CHECKPOINT = "checkpoint";
+    private static final String KEY_WINDOW = "window";
+
+    /*
+     * Callback for the progress of an import.
+     */
+    public interface ProgressListener {
+        /*
+         * Called after each batch of earthquakes is written.
+         *
+         * @param importedCount number of earthquakes imported by this run so far
+         * @param importedUpToInMills time up to which the range has been imported
+         * @param eventsPerSecond earthquakes imported per second by this run
+         */
+        void onProgress(long importedCount, long importedUpToInMills, double eventsPerSecond);
+    }
+
+    private final HttpFetcher mFetcher;
+
+    private final EarthquakeCache mArchive;
+
+    private final SharedPreferences mPreferences;
+
+    private final String mUrl;
+    private final long mStartTimeInMills;
+    private final long mEndTimeInMills;
+
+    private ProgressListener mProgressListener;
+
+    private volatile boolean mCancelled;
+
+    /* Progress of the current run */
+    private long mImportedCount;
+    private long mImportedUpToInMills;
+    private long mRunStartTime;
+
+    /*
+     * Constructs a new {@link BackfillImporter}.
+     *
+     * @param url USGS query URL, without any "starttime", "endtime", "offset" or "limit"
+     *            parameters
+     * @param startTimeInMills start of the range to import, in milliseconds since the epoch
+     * @param endTimeInMills end of the range to import (exclusive)
+     */
+    public BackfillImporter(Context context, String url, long startTimeInMills,
+                            long endTimeInMills) {
+        mFetcher = HttpFetcher.getInstance(context);
+        mArchive = EarthquakeCache.getArchive(context);
+        mPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mUrl = url;
+        mStartTimeInMills = startTimeInMills;
+        mEndTimeInMills = endTimeInMills;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    /*
+     * Stop the import after the batch being written. It can be resumed later.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /*
+     * Import the earthquakes of the range, starting where an earlier run of the same import
+     * stopped.
+     *
+     * @return true once the whole range has been imported, false if a request failed or the
+     * import was cancelled
+     */
+    public boolean run() {
+        long windowStart = restoreCheckpoint();
+        long windowLength = mPreferences.getLong(KEY_WINDOW, INITIAL_WINDOW);
+
+        mImportedCount = 0;
+        mImportedUpToInMills = windowStart;
+        mRunStartTime = SystemClock.elapsedRealtime();
+
+        while (windowStart < mEndTimeInMills && !mCancelled) {
+            long windowEnd = Math.min(mEndTimeInMills, windowStart + windowLength);
+
+            int count = fetchCount(windowStart, windowEnd);
+            if (count < 0) {
+                return false;
+            }
+            if (count > MAX_EVENTS_PER_REQUEST && windowEnd - windowStart > MIN_WINDOW) {
+                windowLength = Math.max(MIN_WINDOW, (windowEnd - windowStart) / 2);
+                continue;
+            }
+            if (count > MAX_EVENTS_PER_REQUEST) {
+                Log.w(LOG_TAG, "Only the first " + MAX_EVENTS_PER_REQUEST + " of " + count
+                        + " earthquakes can be imported from " + windowStart);
+            }
+
+            if (count > 0 && !importWindow(windowStart, windowEnd)) {
+                return false;
+            }
+
+            // Quiet windows let the next one grow, so sparse years take fewer requests
+            if (count < MAX_EVENTS_PER_REQUEST / 4) {
+                windowLength = Math.min(MAX_WINDOW, windowLength * 2);
+            }
+            windowStart = windowEnd;
+            mImportedUpToInMills = windowStart;
+            mPreferences.edit()
+                    .putLong(KEY_CHECKPOINT, windowStart)
+                    .putLong(KEY_WINDOW, windowLength)
+                    .apply();
+            reportProgress();
+        }
+        return windowStart >= mEndTimeInMills;
+    }
+
+    /*
+     * Return the time up to which this import already ran, or the start of the range if it is a
+     * new import.
+     */
+    private long restoreCheckpoint() {
+        if (mUrl.equals(mPreferences.getString(KEY_URL, null))
+                && mStartTimeInMills == mPreferences.getLong(KEY_START_TIME, 0)
+                && mEndTimeInMills == mPreferences.getLong(KEY_END_TIME, 0)) {
+            return Math.max(mStartTimeInMills,
+                    mPreferences.getLong(KEY_CHECKPOINT, mStartTimeInMills));
+        }
+
+        mPreferences.edit()
+                .putString(KEY_URL, mUrl)
+                .putLong(KEY_START_TIME, mStartTimeInMills)
+                .putLong(KEY_END_TIME, mEndTimeInMills)
+                .putLong(KEY_CHECKPOINT, mStartTimeInMills)
+                .putLong(KEY_WINDOW, INITIAL_WINDOW)
+                .apply();
+        return mStartTimeInMills;
+    }
+
+    /*
+     * Return the number of earthquakes in the given window, or -1 if it could not be counted.
+     */
+    private int fetchCount(long windowStart, long windowEnd) {
+        try {
+            URL url = new URL(buildCountUrl(
+                    QueryUtils.buildTimeWindowUrl(mUrl, windowStart, windowEnd)));
+            HttpFetcher.Response<Integer> response =
+                    mFetcher.fetch(url, new HttpFetcher.BodyReader<Integer>() {
+                        @Override
+                        public Integer read(InputStream inputStream) throws IOException {
+                            return Integer.valueOf(QueryUtils.readText(inputStream).trim());
+                        }
+                    }, HttpFetcher.FLAG_NO_CACHE);
+            return response.getBody() != null ? response.getBody() : -1;
+        } catch (IOException | NumberFormatException e) {
+            Log.e(LOG_TAG, "Problem counting the earthquakes from " + windowStart, e);
+            return -1;
+        }
+    }
+
+    /*
+     * Fetch the earthquakes in the given window and write them to the archive as they are
+     * parsed. Returns false if the window could not be read completely.
+     */
+    private boolean importWindow(long windowStart, long windowEnd) {
+        try {
+            final URL url = new URL(QueryUtils.buildTimeWindowUrl(mUrl, windowStart, windowEnd)
+                    + "&" + PARAM_LIMIT + "=" + MAX_EVENTS_PER_REQUEST);
+            HttpFetcher.Response<Boolean> response =
+                    mFetcher.fetch(url, new HttpFetcher.BodyReader<Boolean>() {
+                        @Override
+                        public Boolean read(InputStream inputStream) throws IOException {
+                            return importStream(
+                                    QueryUtils.createParser(url, inputStream, IMPORT_FIELDS));
+                        }
+                    }, HttpFetcher.FLAG_NO_CACHE);
+            return Boolean.TRUE.equals(response.getBody());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem importing the earthquakes from " + windowStart, e);
+            return false;
+        }
+    }
+
+    /*
+     * Write the earthquakes pulled by the parser to the archive, BATCH_SIZE at a time. Returns
+     * false if the response could not be parsed or the import was cancelled.
+     */
+    private boolean importStream(EarthquakeParser parser) throws IOException {
+        EarthquakeStore batch = new EarthquakeStore();
+        try {
+            Earthquake earthquake = parser.next();
+            while (earthquake != null && !mCancelled) {
+                batch.add(earthquake);
+                if (batch.size() == BATCH_SIZE) {
+                    writeBatch(batch);
+                    batch = new EarthquakeStore();
+                }
+                earthquake = parser.next();
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            Log.e(LOG_TAG, "Problem parsing the earthquakes to import", e);
+            return false;
+        } finally {
+            // What was parsed is kept; earthquakes imported twice simply replace themselves
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+        }
+        return !mCancelled;
+    }
+
+    private void writeBatch(EarthquakeStore batch) {
+        mArchive.insertOrReplace(batch);
+        mImportedCount += batch.size();
+        reportProgress();
+    }
+
+    private void reportProgress() {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mRunStartTime);
+        double eventsPerSecond = mImportedCount * 1000.0 / elapsed;
+        Log.i(LOG_TAG, "Imported " + mImportedCount + " earthquakes up to "
+                + mImportedUpToInMills + " (" + Math.round(eventsPerSecond) + " events/s)");
+        if (mProgressListener != null) {
+            mProgressListener.onProgress(mImportedCount, mImportedUpToInMills, eventsPerSecond);
+        }
+    }
+
+    /*
+     * Return the URL of the USGS "count" method for the given query, which has the same
+     * parameters apart from those only meaningful when fetching the earthquakes.
+     */
+    static String buildCountUrl(String queryUrl) {
+        int queryStart = queryUrl.indexOf('?');
+        String path = queryStart < 0 ? queryUrl : queryUrl.substring(0, queryStart);
+        StringBuilder countUrl =
+                new StringBuilder(path.substring(0, path.lastIndexOf('/') + 1)).append("count");
+        if (queryStart < 0) {
+            return countUrl.toString();
+        }
+
+        char separator = '?';
+        for (String parameter : queryUrl.substring(queryStart + 1).split("&")) {
+            String name = parameter.split("=", 2)[0];
+            boolean counted = true;
+            for (String notCounted : PARAMS_NOT_COUNTED) {
+                if (notCounted.equals(name)) {
+                    counted = false;
+                    break;
+                }
+            }
+            if (counted && !parameter.isEmpty()) {
+                countUrl.append(separator).append(parameter);
+                separator = '&';
+            }
+        }
+        return countUrl.toString();
+    }
+}
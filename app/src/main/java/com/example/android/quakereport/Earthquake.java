@@ -7,15 +7,29 @@ package com.example.android.quakereport;
 public class Earthquake {
 
     /*
+    * @param mId the USGS event id of the earthquake
     * @param mMagnitude the magnitude of the earthquake
     * @param mLocation the location of the earthquake
+    * @param mLocationOffset the offset part of the location (e.g. "10km NW of"), or null
+    * @param mLocationPrimary the primary part of the location (e.g. "Tokyo, Japan")
     * @param mTimeInMills the time (in Milliseconds) of when the earthquake took place
+    * @param mUpdatedInMills the time (in Milliseconds) of when the event was last updated by USGS
     * @param mUrl the website URL to get more details about the earthquake event
+    * @param mLatitude the latitude (in degrees) of the epicenter, or NaN if unknown
+    * @param mLongitude the longitude (in degrees) of the epicenter, or NaN if unknown
+    * @param mDepth the depth (in kilometers) of the hypocenter, or NaN if unknown
     * */
+    private String mId;
     private double mMagnitude;
     private String mLocation;
+    private String mLocationOffset;
+    private String mLocationPrimary;
     private long mTimeInMills;
+    private long mUpdatedInMills;
     private String mUrl;
+    private double mLatitude = Double.NaN;
+    private double mLongitude = Double.NaN;
+    private double mDepth = Double.NaN;
 
     /*
     * Constructs a new {@link Earthquake} object and initialize it w/ a magnitude, location and time
@@ -37,10 +51,30 @@ public class Earthquake {
         setUrl(url);
     }
 
+    /*
+    * Constructs a new {@link Earthquake} object and initialize it w/ a USGS event id, magnitude,
+    * location, time, and URL
+    * */
+    public Earthquake(String id, double magnitude, String location, long timeInMills, String url) {
+        setId(id);
+        setMagnitude(magnitude);
+        setLocation(location);
+        setTimeInMills(timeInMills);
+        setUrl(url);
+    }
+
     /*
     * Getters and setter methods
     * */
 
+    public String getId() {
+        return mId;
+    }
+
+    public void setId(String id) {
+        mId = id;
+    }
+
     public double getMagnitude() {
         return mMagnitude;
     }
@@ -53,8 +87,29 @@ public class Earthquake {
         return mLocation;
     }
 
+    /*
+    * Set the location, and split it once into its offset and primary parts
+    * */
     public void setLocation(String location) {
         mLocation = location;
+        mLocationOffset = LocationTokenizer.getOffset(location);
+        mLocationPrimary = LocationTokenizer.getPrimary(location);
+    }
+
+    public String getLocationOffset() {
+        return mLocationOffset;
+    }
+
+    public String getLocationPrimary() {
+        return mLocationPrimary;
+    }
+
+    public long getUpdatedInMills() {
+        return mUpdatedInMills;
+    }
+
+    public void setUpdatedInMills(long updatedInMills) {
+        mUpdatedInMills = updatedInMills;
     }
 
     public long getTimeInMills() {
@@ -72,5 +127,29 @@ public class Earthquake {
     public void setUrl(String url) {
         mUrl = url;
     }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public void setLatitude(double latitude) {
+        mLatitude = latitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public void setLongitude(double longitude) {
+        mLongitude = longitude;
+    }
+
+    public double getDepth() {
+        return mDepth;
+    }
+
+    public void setDepth(double depth) {
+        mDepth = depth;
+    }
 }
 
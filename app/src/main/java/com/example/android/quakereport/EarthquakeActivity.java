@@ -15,6 +15,7 @@
  */
 package com.example.android.quakereport;
 
+import android.app.AlarmManager;
 import android.app.LoaderManager;
 import android.content.Context;
 import android.content.Intent;
@@ -22,31 +23,121 @@ import android.content.Loader;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 public class EarthquakeActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<List<Earthquake>> {
+        implements LoaderManager.LoaderCallbacks<EarthquakeStore> {
 
-    /** URL for earthquake data from the USGS dataset */
+    /**
+     * URL for earthquake data from the USGS dataset. CSV carries only the fields the app uses,
+     * so it is much smaller than GeoJSON; "format=geojson" works as well.
+     */
     private static final String USGS_REQUEST_URL =
-            "http://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&orderby=time&minmag=5&limit=10";
+            "http://earthquake.usgs.gov/fdsnws/event/1/query?format=csv&orderby=time&minmag=5";
+
+    /**
+     * USGS summary feeds polled for live updates. The 4.5+ feeds are the smallest ones that
+     * still contain every earthquake matched by the minmag=5 query above.
+     */
+    private static final String USGS_LIVE_HOUR_URL =
+            "http://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/4.5_hour.csv";
+    private static final String USGS_LIVE_DAY_URL =
+            "http://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/4.5_day.csv";
+
+    /** Smallest magnitude shown, matching the minmag parameter of the query */
+    private static final double MIN_MAGNITUDE = 5;
+
+    /** Time (in milliseconds) between polls of the live feed */
+    private static final long LIVE_POLL_INTERVAL = 60 * 1000;
+
+    /** Time (in milliseconds) between background syncs of the earthquakes */
+    private static final long SYNC_INTERVAL = AlarmManager.INTERVAL_HALF_HOUR;
+
+    /**
+     * Time (in milliseconds) before the loaded earthquakes are refreshed on startup. While the
+     * background sync keeps up, startup never waits for the network.
+     */
+    private static final long CACHE_TTL = 2 * SYNC_INTERVAL;
+
+    /** Time (in milliseconds) between dumps of the load metrics to the log, in debug builds */
+    private static final long METRICS_DUMP_INTERVAL = 5 * 60 * 1000;
+
+    /** Constant value for the earthquake loader ID */
+    private static final int EARTHQUAKE_LOADER_ID = 1;
+
+    /** Number of earthquakes fetched per page */
+    private static final int PAGE_SIZE = 20;
+
+    /** Start loading the next page once the list is scrolled this close to its end */
+    private static final int PREFETCH_DISTANCE = 5;
+
+    /** Time (in milliseconds) back from now imported into the archive from the menu */
+    private static final long BACKFILL_RANGE = 365 * AlarmManager.INTERVAL_DAY;
+
+    /** Number of regions listed in the statistics dialog, largest magnitude first */
+    private static final int STATISTICS_REGIONS = 5;
+
+    /** Keys for the query options saved across configuration changes */
+    private static final String KEY_SORT_ORDER = "sort_order";
+    private static final String KEY_MIN_MAGNITUDE = "min_magnitude";
 
     public static final String LOG_TAG = EarthquakeActivity.class.getName();
 
     private EarthquakeItemsAdapter mAdapter;
 
-    // Find a reference to the {@link ListView} in the layout
-    private ListView mEarthquakeListView;
+    // Filters and order of the list, applied in memory to the loaded earthquakes
+    private final EarthquakeQuery mQuery = new EarthquakeQuery();
+
+    // Smallest magnitude picked in the menu, or 0 to show every loaded earthquake
+    private int mMinMagnitude;
+
+    // Runs mQuery over the loaded earthquakes; null until something is loaded
+    private EarthquakeQueryEngine mQueryEngine;
+
+    // Earthquakes restored from the snapshot on a cold start, handed to the new loader
+    private EarthquakeStore mRestoredEarthquakes;
+
+    // True while the list shows the earthquakes of a load still in progress
+    private boolean mShowingPartialResults;
+
+    // Fills the empty list with the earthquakes of the first load while they are parsed
+    private final EarthquakeLoader.OnPartialResultListener mOnPartialResultListener =
+            new EarthquakeLoader.OnPartialResultListener() {
+                @Override
+                public void onPartialResult(EarthquakeStore earthquakes) {
+                    // Never replace earthquakes that were loaded in full
+                    if (mQueryEngine != null && !mShowingPartialResults) {
+                        return;
+                    }
+                    mShowingPartialResults = true;
+                    mQueryEngine = new EarthquakeQueryEngine(earthquakes);
+                    showEarthquakes();
+                }
+            };
+
+    // Find a reference to the {@link RecyclerView} in the layout
+    private RecyclerView mEarthquakeListView;
+
+    private LinearLayoutManager mLayoutManager;
 
     // Find a reference to the {@link TextView} in the layout
     private TextView mEmptyStateTextView;
@@ -54,6 +145,20 @@ public class EarthquakeActivity extends AppCompatActivity
     // Create a reference to the ProgressBar
     private ProgressBar mProgressBar;
 
+    private final Handler mHandler = new Handler();
+
+    // Polls the live feed, then schedules itself again
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Loader<EarthquakeStore> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+            if (loader != null) {
+                ((EarthquakeLoader) loader).pollLiveFeed();
+            }
+            mHandler.postDelayed(this, LIVE_POLL_INTERVAL);
+        }
+    };
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,63 +166,259 @@ public class EarthquakeActivity extends AppCompatActivity
         setContentView(R.layout.earthquake_activity);
 
         // Initialize Views in the layout
-        mEarthquakeListView = (ListView) findViewById(R.id.list_earthquake);
+        mEarthquakeListView = (RecyclerView) findViewById(R.id.list_earthquake);
         mEmptyStateTextView = (TextView) findViewById(R.id.text_empty_view);
         mProgressBar = (ProgressBar) findViewById(R.id.progress_bar_spinner);
 
-        // Create a new adapter that takes an empty list of earthquakes as input
-        mAdapter = new EarthquakeItemsAdapter(this, R.layout.earthquake_list_item, new ArrayList());
+        // Restore the query options picked in the menu
+        if (savedInstanceState != null) {
+            mQuery.setSortOrder(
+                    savedInstanceState.getInt(KEY_SORT_ORDER, EarthquakeQuery.SORT_BY_TIME));
+            setMinMagnitude(savedInstanceState.getInt(KEY_MIN_MAGNITUDE, 0));
+        }
 
-        // Set the adapter on the {@link ListView} so the list can be populated in the user interface
-        mEarthquakeListView.setAdapter(mAdapter);
+        // Create a new adapter that starts out with no earthquakes, and opens the URL of the
+        // quake event when an earthquake list item is clicked
+        mAdapter = new EarthquakeItemsAdapter(this, null,
+                new EarthquakeItemsAdapter.OnItemClickListener() {
+                    @Override
+                    public void onItemClick(int position) {
+                        // Get URL of the earthquake that was clicked on
+                        EarthquakeSelection selection = mAdapter.getSelection();
+                        String url = selection.getUrl(position);
+                        if (url != null) {
+                            openUrl(url);
+                        }
 
-        // Display setEmptyView only if the ListView is empty
-        mEarthquakeListView.setEmptyView(mEmptyStateTextView);
+                        // The event page is known from the id, so it opens right away; the
+                        // detail is only loaded into its cache in the background
+                        String eventId = selection.getId(position);
+                        if (eventId != null) {
+                            EventDetailCache.getInstance(EarthquakeActivity.this)
+                                    .prefetch(eventId);
+                        }
+                    }
+                });
 
-        //Check for network connectivity
-        try{
-            // Get a reference to the ConnectivityManager to check state of network connectivity
-            ConnectivityManager connectivityManager =
-                    (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        // Set the adapter on the {@link RecyclerView} so the list can be populated in the user
+        // interface
+        mLayoutManager = new LinearLayoutManager(this);
+        mEarthquakeListView.setLayoutManager(mLayoutManager);
+        mEarthquakeListView.setAdapter(mAdapter);
 
-            // Get details on the currently active default data network
-            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        // Initialize the loader. Pass in the int ID constant defined above and pass in null for
+        // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
+        // because this activity implements the LoaderCallbacks interface).
+        // Keep the earthquakes fresh in the background, even while the app is not running
+        EarthquakeSyncService.schedule(this, USGS_REQUEST_URL, PAGE_SIZE, SYNC_INTERVAL, false);
+
+        // The loader shows cached earthquakes first, so it is started even without a network.
+        // On a cold start, the list is restored from the binary snapshot of the last load, which
+        // takes a few milliseconds, instead of waiting for the loader to query the database.
+        if (getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID) == null) {
+            mRestoredEarthquakes = EarthquakeSnapshot.read(this);
+        }
+        getLoaderManager().initLoader(EARTHQUAKE_LOADER_ID, null, this);
 
-            // If there is a network connection, fetch data
-            if (networkInfo != null && networkInfo.isConnectedOrConnecting()) {
-                // Initialize the loader. Pass in the int ID constant defined above and pass in null for
-                // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
-                // because this activity implements the LoaderCallbacks interface).
-                getLoaderManager().initLoader(1, null, this).forceLoad();
-            } else{
-                // Otherwise, display no internet connection text
-                // First, hide loading indicator so error message will be visible
-                mEmptyStateTextView.setText(R.string.no_internet_connection);
-                mProgressBar.setVisibility(View.GONE);
+        // Set OnScrollListener to fetch the next page as the list nears its end
+        mEarthquakeListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = mAdapter.getItemCount();
+                if (totalItemCount > 0 && mLayoutManager.findLastVisibleItemPosition()
+                        >= totalItemCount - 1 - PREFETCH_DISTANCE) {
+                    Loader<EarthquakeStore> loader =
+                            getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+                    if (loader != null) {
+                        ((EarthquakeLoader) loader).loadNextPage();
+                    }
+                }
             }
-        } catch (Exception e){
-            Log.e(LOG_TAG, "Error w internet connection");
+        });
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(KEY_SORT_ORDER, mQuery.getSortOrder());
+        outState.putInt(KEY_MIN_MAGNITUDE, mMinMagnitude);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_earthquake, menu);
+
+        // Check the menu items matching the current query
+        menu.findItem(mQuery.getSortOrder() == EarthquakeQuery.SORT_BY_MAGNITUDE
+                ? R.id.action_sort_magnitude : R.id.action_sort_time).setChecked(true);
+        int magnitudeItemId;
+        switch (mMinMagnitude) {
+            case 6:
+                magnitudeItemId = R.id.action_magnitude_6;
+                break;
+            case 7:
+                magnitudeItemId = R.id.action_magnitude_7;
+                break;
+            default:
+                magnitudeItemId = R.id.action_magnitude_all;
+                break;
+        }
+        menu.findItem(magnitudeItemId).setChecked(true);
+        return true;
+    }
+
+    /*
+     * Change the query from the menu and re-run it over the loaded earthquakes. Nothing is
+     * fetched again.
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_sort_time:
+                mQuery.setSortOrder(EarthquakeQuery.SORT_BY_TIME);
+                break;
+            case R.id.action_sort_magnitude:
+                mQuery.setSortOrder(EarthquakeQuery.SORT_BY_MAGNITUDE);
+                break;
+            case R.id.action_magnitude_all:
+                setMinMagnitude(0);
+                break;
+            case R.id.action_magnitude_6:
+                setMinMagnitude(6);
+                break;
+            case R.id.action_magnitude_7:
+                setMinMagnitude(7);
+                break;
+            case R.id.action_statistics:
+                showStatistics();
+                return true;
+            case R.id.action_backfill:
+                // Starting the import again resumes it; it runs once on an unmetered network
+                long now = System.currentTimeMillis();
+                EarthquakeSyncService.startBackfill(this, USGS_REQUEST_URL, now - BACKFILL_RANGE,
+                        now);
+                Toast.makeText(this, R.string.backfill_started, Toast.LENGTH_SHORT).show();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
         }
+        item.setChecked(true);
+        showEarthquakes();
+        return true;
+    }
+
+    /*
+     * Open the given URL in a browser, if there is one.
+     */
+    private void openUrl(String url) {
+        // Create a new Intent to view Earthquake URL
+        Intent intent = new Intent(Intent.ACTION_VIEW).setData(Uri.parse(url));
+
+        // Send Intent to launch a new activity
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            startActivity(intent);
+        }
+    }
 
-        // Set OnItemClickListener onto the earthquake list item to open URL of the quake event
-        mEarthquakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+    /*
+     * Show the rollups of the cached and archived earthquakes in a dialog. The first call reads
+     * the earthquakes from the databases, so the rollups are computed in the background.
+     */
+    private void showStatistics() {
+        final Context context = getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                // Get the current Earthquake item that was clicked on
-                Earthquake currentEarthquakeItem = mAdapter.getItem(position);
+            public void run() {
+                final String message = formatStatistics(
+                        EarthquakeCache.getInstance(context).getStatistics(),
+                        EarthquakeCache.getArchive(context).getStatistics());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            new AlertDialog.Builder(EarthquakeActivity.this)
+                                    .setTitle(R.string.action_statistics)
+                                    .setMessage(message)
+                                    .setPositiveButton(android.R.string.ok, null)
+                                    .show();
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-                // Get URL of the current Earthquake object
-                String url = currentEarthquakeItem.getUrl();
+    /*
+     * Return the text of the statistics dialog: the number of recent earthquakes, the number
+     * in each magnitude bucket and the regions with the largest magnitudes.
+     */
+    private String formatStatistics(EarthquakeStatistics recent, EarthquakeStatistics archive) {
+        long now = System.currentTimeMillis();
+        int lastDayCount = 0;
+        for (int count : recent.getHourlyCounts(now - AlarmManager.INTERVAL_DAY, now + 1)
+                .values()) {
+            lastDayCount += count;
+        }
+        StringBuilder message = new StringBuilder(
+                getString(R.string.statistics_recent, recent.size(), lastDayCount));
+        if (archive.size() > 0) {
+            message.append('\n').append(getString(R.string.statistics_archive, archive.size()));
+        }
 
-                // Create a new Intent to view Earthquake URL
-                Intent intent = new Intent(Intent.ACTION_VIEW).setData(Uri.parse(url));
+        message.append('\n');
+        long[] magnitudeCounts = recent.getMagnitudeCounts();
+        for (int bucket = magnitudeCounts.length - 1; bucket >= 0; bucket--) {
+            if (magnitudeCounts[bucket] > 0) {
+                message.append('\n').append(getString(R.string.statistics_magnitude, bucket,
+                        magnitudeCounts[bucket]));
+            }
+        }
 
-                // Send Intent to launch a new activity
-                if (intent.resolveActivity(getPackageManager()) != null) {
-                    startActivity(intent);
+        List<Map.Entry<String, Double>> regions =
+                new ArrayList<>(recent.getMaxMagnitudes().entrySet());
+        if (!regions.isEmpty()) {
+            Collections.sort(regions, new Comparator<Map.Entry<String, Double>>() {
+                @Override
+                public int compare(Map.Entry<String, Double> first,
+                                   Map.Entry<String, Double> second) {
+                    return Double.compare(second.getValue(), first.getValue());
                 }
+            });
+            message.append("\n\n").append(getString(R.string.statistics_regions));
+            for (Map.Entry<String, Double> region
+                    : regions.subList(0, Math.min(STATISTICS_REGIONS, regions.size()))) {
+                message.append('\n').append(getString(R.string.statistics_region,
+                        region.getKey(), region.getValue()));
             }
-        });
+        }
+        return message.toString();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        Loader<EarthquakeStore> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+        if (loader != null) {
+            ((EarthquakeLoader) loader).setOnPartialResultListener(mOnPartialResultListener);
+        }
+        // Poll the live feed only while the activity is visible
+        mHandler.postDelayed(mPollRunnable, LIVE_POLL_INTERVAL);
+        if (BuildConfig.DEBUG) {
+            LoadMetrics.getInstance().startPeriodicDump(METRICS_DUMP_INTERVAL);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        Loader<EarthquakeStore> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+        if (loader != null) {
+            ((EarthquakeLoader) loader).setOnPartialResultListener(null);
+            // Pages loaded since the last snapshot write are saved for the next cold start
+            ((EarthquakeLoader) loader).saveSnapshot();
+        }
+        mHandler.removeCallbacks(mPollRunnable);
+        LoadMetrics.getInstance().stopPeriodicDump();
     }
 
     /*
@@ -125,8 +426,16 @@ public class EarthquakeActivity extends AppCompatActivity
      * object and return it to the system.
      */
     @Override
-    public Loader<List<Earthquake>> onCreateLoader(int i, Bundle bundle) {
-        return new EarthquakeLoader(EarthquakeActivity.this, USGS_REQUEST_URL);
+    public Loader<EarthquakeStore> onCreateLoader(int i, Bundle bundle) {
+        EarthquakeLoader loader =
+                new EarthquakeLoader(EarthquakeActivity.this, USGS_REQUEST_URL, PAGE_SIZE);
+        loader.setLiveFeeds(USGS_LIVE_HOUR_URL, USGS_LIVE_DAY_URL, MIN_MAGNITUDE);
+        loader.setCacheTtl(CACHE_TTL);
+        if (mRestoredEarthquakes != null) {
+            loader.restoreEarthquakes(mRestoredEarthquakes);
+            mRestoredEarthquakes = null;
+        }
+        return loader;
     }
 
     /*
@@ -134,26 +443,84 @@ public class EarthquakeActivity extends AppCompatActivity
      * the data to the user.
      */
     @Override
-    public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> earthquakeData) {
+    public void onLoadFinished(Loader<EarthquakeStore> loader, EarthquakeStore earthquakeData) {
 
-        // Clear the adapter of previous earthquake data
-        mAdapter.clear();
+        mShowingPartialResults = false;
 
-        // If there is a valid List of {@link Earthquake}s, then add them to the adapter's
-        // data set. This will trigger the ListView to update.
-        if (earthquakeData != null && !earthquakeData.isEmpty()) {
-            mAdapter.addAll(earthquakeData);
+        // Show the loaded earthquakes (or none, if loading failed) through the current query.
+        // An unchanged store keeps its engine, and with it the sorted indexes already built; a
+        // new one normally comes with an engine the loader built in the background.
+        if (earthquakeData == null) {
+            mQueryEngine = null;
+        } else if (mQueryEngine == null || mQueryEngine.getStore() != earthquakeData) {
+            mQueryEngine = ((EarthquakeLoader) loader).getQueryEngine(earthquakeData);
+            if (mQueryEngine == null) {
+                mQueryEngine = new EarthquakeQueryEngine(earthquakeData);
+            }
+        }
+        showEarthquakes();
+
+        // Set empty state text to display text only after the list has had a chance to load.
+        // If nothing could be loaded because of the network or the server, say so instead.
+        FetchResult fetchResult = ((EarthquakeLoader) loader).getLastFetchResult();
+        boolean fetchFailed = fetchResult != null && !fetchResult.hasEarthquakes();
+        if (!isNetworkConnected()) {
+            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        } else if (fetchFailed) {
+            mEmptyStateTextView.setText(R.string.problem_loading);
+        } else {
+            mEmptyStateTextView.setText(R.string.no_earthquakes_found);
         }
-        // Set empty state text to display text only after ListView has had a chance to load.
-        mEmptyStateTextView.setText(R.string.no_earthquakes_found);
 
         // After loading is complete, set progress bar visibility to GONE
         mProgressBar.setVisibility(View.GONE);
     }
 
+    /*
+     * Run the query over the loaded earthquakes and show the result. Only the rows that changed
+     * will be updated in the RecyclerView.
+     */
+    private void showEarthquakes() {
+        EarthquakeSelection selection = mQueryEngine == null ? null : mQueryEngine.select(mQuery);
+        mAdapter.setSelection(selection);
+
+        // Display the empty state text only if there are no earthquakes to show
+        boolean isEmpty = selection == null || selection.isEmpty();
+        mEmptyStateTextView.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
+
+    /*
+     * Show only the earthquakes of at least the given magnitude, or all of them for 0.
+     */
+    private void setMinMagnitude(int minMagnitude) {
+        mMinMagnitude = minMagnitude;
+        mQuery.setMagnitudeRange(minMagnitude > 0 ? minMagnitude : Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /*
+     * Return true if there is a network connection to fetch data with.
+     */
+    private boolean isNetworkConnected() {
+        try {
+            // Get a reference to the ConnectivityManager to check state of network connectivity
+            ConnectivityManager connectivityManager =
+                    (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+
+            // Get details on the currently active default data network
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnectedOrConnecting();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error w internet connection");
+            return false;
+        }
+    }
+
     @Override
-    public void onLoaderReset(Loader<List<Earthquake>> loader) {
+    public void onLoaderReset(Loader<EarthquakeStore> loader) {
         // Loader reset, so we can clear out our existing data.
-        mAdapter.clear();
+        mShowingPartialResults = false;
+        mQueryEngine = null;
+        mAdapter.setSelection(null);
     }
 }
@@ -0,0 +1,391 @@
+package com.example.android.quakereport;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.quakereport.EarthquakeContract.EarthquakeEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent on-disk cache of parsed {@link Earthquake}s, keyed by USGS event id.
+ *
+ * Lets {@link EarthquakeLoader} show the last known earthquakes immediately on startup, and
+ * records when the cache was last refreshed from the network so it can be checked against a TTL.
+ *
+ * {@link #getArchive(Context)} returns a second, unbounded instance holding the historical
+ * earthquakes imported by {@link BackfillImporter}, apart from the recent ones shown in the list.
+ *
+ * Once requested, {@link #getStatistics()} is kept up to date with every insert and prune, and
+ * saved next to the database, so the rollups of the cached earthquakes can be read at any time
+ * without scanning them, even after the app restarts.
+ */
+public final class EarthquakeCache {
+
+    /* Name of the preferences file holding the cache metadata */
+    private static final String PREFS_NAME = "earthquake_cache";
+
+    /* Preference key for the time (in milliseconds) of the last successful network refresh */
+    private static final String KEY_LAST_REFRESH = "last_refresh";
+
+    /* Upper bound on the number of earthquakes kept on disk; the oldest are pruned first */
+    private static final int MAX_CACHED_EARTHQUAKES = 1000;
+
+    /* Names of the database and preferences files of the archive */
+    private static final String ARCHIVE_DATABASE_NAME = "earthquake_archive.db";
+    private static final String ARCHIVE_PREFS_NAME = "earthquake_archive";
+
+    /* Names of the files holding the statistics of the cache and of the archive */
+    private static final String STATISTICS_FILE_NAME = "earthquake_cache.statistics";
+    private static final String ARCHIVE_STATISTICS_FILE_NAME = "earthquake_archive.statistics";
+
+    /* Format version of the statistics files. If you change the format, you must increment it. */
+    private static final int STATISTICS_VERSION = 1;
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakeCache.class.getSimpleName();
+
+    /* Columns read back into an {@link EarthquakeStore} by {@link #readEarthquakes} */
+    private static final String[] PROJECTION = {
+            EarthquakeEntry.COLUMN_EVENT_ID,
+            EarthquakeEntry.COLUMN_MAGNITUDE,
+            EarthquakeEntry.COLUMN_LOCATION,
+            EarthquakeEntry.COLUMN_TIME,
+            EarthquakeEntry.COLUMN_UPDATED,
+            EarthquakeEntry.COLUMN_URL,
+            EarthquakeEntry.COLUMN_LATITUDE,
+            EarthquakeEntry.COLUMN_LONGITUDE,
+            EarthquakeEntry.COLUMN_DEPTH};
+
+    private static EarthquakeCache sInstance;
+    private static EarthquakeCache sArchive;
+
+    private final EarthquakeDbHelper mDbHelper;
+    private final SharedPreferences mPreferences;
+
+    // Number of earthquakes kept, or 0 to keep them all
+    private final int mMaxSize;
+
+    // Rollups of the cached earthquakes, read from mStatisticsFile when first needed and written
+    // back after every change, or null if they were never counted; guarded by mStatisticsLock
+    private final Object mStatisticsLock = new Object();
+    private final File mStatisticsFile;
+    private EarthquakeStatistics mStatistics;
+
+    private EarthquakeCache(EarthquakeDbHelper dbHelper, SharedPreferences preferences,
+                            File statisticsFile, int maxSize) {
+        mDbHelper = dbHelper;
+        mPreferences = preferences;
+        mStatisticsFile = statisticsFile;
+        mMaxSize = maxSize;
+    }
+
+    /*
+     * Return the single {@link EarthquakeCache} for the app.
+     */
+    public static synchronized EarthquakeCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new EarthquakeCache(new EarthquakeDbHelper(appContext),
+                    appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                    new File(appContext.getFilesDir(), STATISTICS_FILE_NAME),
+                    MAX_CACHED_EARTHQUAKES);
+        }
+        return sInstance;
+    }
+
+    /*
+     * Return the archive of historical earthquakes, which is never pruned.
+     */
+    public static synchronized EarthquakeCache getArchive(Context context) {
+        if (sArchive == null) {
+            Context appContext = context.getApplicationContext();
+            sArchive = new EarthquakeCache(
+                    new EarthquakeDbHelper(appContext, ARCHIVE_DATABASE_NAME),
+                    appContext.getSharedPreferences(ARCHIVE_PREFS_NAME, Context.MODE_PRIVATE),
+                    new File(appContext.getFilesDir(), ARCHIVE_STATISTICS_FILE_NAME), 0);
+        }
+        return sArchive;
+    }
+
+    /*
+     * Return up to limit cached earthquakes, most recent first.
+     */
+    public EarthquakeStore query(int limit) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(EarthquakeEntry.TABLE_NAME, PROJECTION, null, null, null, null,
+                EarthquakeEntry.COLUMN_TIME + " DESC", String.valueOf(limit));
+
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        readEarthquakes(cursor, earthquakes);
+        return earthquakes;
+    }
+
+    /*
+     * Insert the given earthquakes in one transaction, replacing any cached rows with the same
+     * event id, and prune the cache back down to its maximum size. Earthquakes without an event
+     * id are ignored.
+     */
+    public void insertOrReplace(EarthquakeStore earthquakes) {
+        // Writes are serialized with the statistics, so none is missed
+        synchronized (mStatisticsLock) {
+            insertOrReplaceLocked(earthquakes);
+        }
+    }
+
+    private void insertOrReplaceLocked(EarthquakeStore earthquakes) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        EarthquakeStatistics statistics = loadStatistics();
+        // Rows replaced or pruned, whose values are taken out of the statistics
+        EarthquakeStore removed = statistics != null ? new EarthquakeStore() : null;
+        String[] idArgs = new String[1];
+
+        if (statistics != null) {
+            // Until they are written again below, the saved statistics miss this write, so a
+            // crash in between must leave them to be rebuilt rather than read
+            mStatisticsFile.delete();
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < earthquakes.size(); i++) {
+                if (earthquakes.getId(i) == null) {
+                    continue;
+                }
+                if (removed != null) {
+                    idArgs[0] = earthquakes.getId(i);
+                    query(db, EarthquakeEntry.COLUMN_EVENT_ID + " = ?", idArgs, removed);
+                }
+                values.clear();
+                values.put(EarthquakeEntry.COLUMN_EVENT_ID, earthquakes.getId(i));
+                values.put(EarthquakeEntry.COLUMN_MAGNITUDE, earthquakes.getMagnitude(i));
+                values.put(EarthquakeEntry.COLUMN_LOCATION, earthquakes.getLocation(i));
+                values.put(EarthquakeEntry.COLUMN_TIME, earthquakes.getTimeInMills(i));
+                values.put(EarthquakeEntry.COLUMN_UPDATED, earthquakes.getUpdatedInMills(i));
+                values.put(EarthquakeEntry.COLUMN_URL, earthquakes.getUrl(i));
+                putDoubleOrNull(values, EarthquakeEntry.COLUMN_LATITUDE,
+                        earthquakes.getLatitude(i));
+                putDoubleOrNull(values, EarthquakeEntry.COLUMN_LONGITUDE,
+                        earthquakes.getLongitude(i));
+                putDoubleOrNull(values, EarthquakeEntry.COLUMN_DEPTH, earthquakes.getDepth(i));
+                db.insertWithOnConflict(EarthquakeEntry.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+
+            // Keep only the most recent mMaxSize rows
+            if (mMaxSize > 0) {
+                String pruneSelection = EarthquakeEntry._ID + " NOT IN (SELECT "
+                        + EarthquakeEntry._ID + " FROM " + EarthquakeEntry.TABLE_NAME
+                        + " ORDER BY " + EarthquakeEntry.COLUMN_TIME + " DESC"
+                        + " LIMIT " + mMaxSize + ")";
+                if (removed != null) {
+                    query(db, pruneSelection, null, removed);
+                }
+                db.execSQL("DELETE FROM " + EarthquakeEntry.TABLE_NAME
+                        + " WHERE " + pruneSelection);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (statistics != null) {
+            statistics.addAll(earthquakes);
+            for (int i = 0; i < removed.size(); i++) {
+                statistics.subtract(removed, i);
+            }
+            writeStatistics();
+        }
+    }
+
+    /*
+     * Return the rollups of the cached earthquakes. They are kept up to date with every insert
+     * and prune and saved next to the database, so reading them does not scan the cache. Only
+     * the first call ever, or one after the saved rollups were lost, counts them with
+     * {@link #rebuildStatistics()}, so it must not be made on the main thread.
+     */
+    public EarthquakeStatistics getStatistics() {
+        synchronized (mStatisticsLock) {
+            if (loadStatistics() == null) {
+                rebuildStatisticsLocked();
+            }
+            return mStatistics;
+        }
+    }
+
+    /*
+     * Count the rollups again from every cached earthquake, and save them. This reads the whole
+     * cache, which for the archive can be large, so it is only for when the rollups are missing
+     * or in doubt.
+     */
+    public EarthquakeStatistics rebuildStatistics() {
+        synchronized (mStatisticsLock) {
+            rebuildStatisticsLocked();
+            return mStatistics;
+        }
+    }
+
+    private void rebuildStatisticsLocked() {
+        EarthquakeStatistics statistics = EarthquakeStatistics.compute(
+                query(mMaxSize > 0 ? mMaxSize : Integer.MAX_VALUE),
+                Runtime.getRuntime().availableProcessors());
+        // Writes look up the rows they replace, so the values of every id need not be kept
+        statistics.dropEvents();
+        mStatistics = statistics;
+        writeStatistics();
+    }
+
+    /*
+     * Return the rollups, reading them from their file if they are not in memory yet, or null if
+     * they were never counted. Must be called with mStatisticsLock held.
+     */
+    private EarthquakeStatistics loadStatistics() {
+        if (mStatistics == null && mStatisticsFile.exists()) {
+            mStatistics = readStatistics(mStatisticsFile);
+        }
+        return mStatistics;
+    }
+
+    /*
+     * Save the rollups. The file is written aside and then renamed, so it is never read half
+     * written; if it cannot be written, there is none and the rollups are counted again next
+     * time. Must be called with mStatisticsLock held.
+     */
+    private void writeStatistics() {
+        File tempFile = new File(mStatisticsFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(STATISTICS_VERSION);
+            mStatistics.write(output);
+            output.close();
+            output = null;
+
+            if (!tempFile.renameTo(mStatisticsFile)) {
+                Log.e(LOG_TAG, "Could not replace the earthquake statistics");
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem writing the earthquake statistics", e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // Nothing useful to do
+                }
+            }
+            tempFile.delete();
+        }
+    }
+
+    /*
+     * Return the rollups saved in the given file, or null if they cannot be read.
+     */
+    private static EarthquakeStatistics readStatistics(File file) {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != STATISTICS_VERSION) {
+                return null;
+            }
+            return EarthquakeStatistics.read(buffer);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Problem reading the earthquake statistics", e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Nothing useful to do
+                }
+            }
+        }
+    }
+
+    /*
+     * Add the rows matching the given selection to the store.
+     */
+    private static void query(SQLiteDatabase db, String selection, String[] selectionArgs,
+                              EarthquakeStore earthquakes) {
+        readEarthquakes(db.query(EarthquakeEntry.TABLE_NAME, PROJECTION, selection,
+                selectionArgs, null, null, null), earthquakes);
+    }
+
+    /*
+     * Add every row of a cursor over the PROJECTION columns to the store, and close it.
+     */
+    private static void readEarthquakes(Cursor cursor, EarthquakeStore earthquakes) {
+        try {
+            while (cursor.moveToNext()) {
+                Earthquake earthquake = new Earthquake(
+                        cursor.getString(0),
+                        cursor.getDouble(1),
+                        cursor.getString(2),
+                        cursor.getLong(3),
+                        cursor.getString(5));
+                earthquake.setUpdatedInMills(cursor.getLong(4));
+                earthquake.setLatitude(getDoubleOrNaN(cursor, 6));
+                earthquake.setLongitude(getDoubleOrNaN(cursor, 7));
+                earthquake.setDepth(getDoubleOrNaN(cursor, 8));
+                earthquakes.add(earthquake);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Return the time (in milliseconds) of the last successful network refresh, or 0 if never.
+     */
+    public long getLastRefreshTime() {
+        return mPreferences.getLong(KEY_LAST_REFRESH, 0);
+    }
+
+    /*
+     * Record that the cache was just refreshed from the network.
+     */
+    public void setLastRefreshTime(long timeInMills) {
+        mPreferences.edit().putLong(KEY_LAST_REFRESH, timeInMills).apply();
+    }
+
+    /*
+     * Return true if the cache has not been refreshed within the given time-to-live.
+     */
+    public boolean isStale(long ttlInMills) {
+        return System.currentTimeMillis() - getLastRefreshTime() > ttlInMills;
+    }
+
+    /*
+     * Unknown coordinates are NaN in memory and null in the database.
+     */
+    private static double getDoubleOrNaN(Cursor cursor, int column) {
+        return cursor.isNull(column) ? Double.NaN : cursor.getDouble(column);
+    }
+
+    private static void putDoubleOrNull(ContentValues values, String key, double value) {
+        if (Double.isNaN(value)) {
+            values.putNull(key);
+        } else {
+            values.put(key, value);
+        }
+    }
+}
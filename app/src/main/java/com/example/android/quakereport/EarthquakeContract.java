@@ -0,0 +1,53 @@
+package com.example.android.quakereport;
+
+import android.provider.BaseColumns;
+
+/**
+ * Database contract for the local earthquake cache.
+ */
+public final class EarthquakeContract {
+
+    /**
+     * Create a private constructor because no one should ever create a {@link EarthquakeContract}
+     * object. This class is only meant to hold constants.
+     */
+    private EarthquakeContract() {
+    }
+
+    /*
+     * Inner class that defines constant values for the earthquakes database table.
+     * Each entry in the table represents a single earthquake, keyed by its USGS event id.
+     */
+    public static final class EarthquakeEntry implements BaseColumns {
+
+        /* Name of database table for earthquakes */
+        public static final String TABLE_NAME = "earthquakes";
+
+        /* USGS event id of the earthquake (e.g. "us10007vds"). Type: TEXT, unique */
+        public static final String COLUMN_EVENT_ID = "event_id";
+
+        /* Magnitude of the earthquake. Type: REAL */
+        public static final String COLUMN_MAGNITUDE = "magnitude";
+
+        /* Location of the earthquake as reported by USGS. Type: TEXT */
+        public static final String COLUMN_LOCATION = "location";
+
+        /* Time of the earthquake in milliseconds since the epoch. Type: INTEGER */
+        public static final String COLUMN_TIME = "time";
+
+        /* Time the event was last updated by USGS, in milliseconds since the epoch. Type: INTEGER */
+        public static final String COLUMN_UPDATED = "updated";
+
+        /* Website URL with more details about the earthquake. Type: TEXT */
+        public static final String COLUMN_URL = "url";
+
+        /* Latitude of the epicenter in degrees, or null if unknown. Type: REAL */
+        public static final String COLUMN_LATITUDE = "latitude";
+
+        /* Longitude of the epicenter in degrees, or null if unknown. Type: REAL */
+        public static final String COLUMN_LONGITUDE = "longitude";
+
+        /* Depth of the hypocenter in kilometers, or null if unknown. Type: REAL */
+        public static final String COLUMN_DEPTH = "depth";
+    }
+}
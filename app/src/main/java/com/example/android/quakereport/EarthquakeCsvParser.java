@@ -0,0 +1,332 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Pull-style parser for the USGS CSV format ("format=csv", or the ".csv" summary feeds), which
+ * is about a third of the size of the same earthquakes in GeoJSON.
+ *
+ * Columns are found by name in the header row, so their order does not matter. The characters
+ * of the columns that are not needed are skipped as they are read, without being copied. The
+ * CSV format has no "url" column; every event links to its USGS event page, which
+ * {@link EarthquakeStore} builds from the event id when the URL is asked for.
+ *
+ * A row without a usable magnitude or time is skipped and counted in {@link #getSkippedCount()}.
+ */
+final class EarthquakeCsvParser implements EarthquakeParser {
+
+    /* Values read from a row, in the order of COLUMN_NAMES */
+    private static final int VALUE_ID = 0;
+    private static final int VALUE_MAGNITUDE = 1;
+    private static final int VALUE_TIME = 2;
+    private static final int VALUE_PLACE = 3;
+    private static final int VALUE_UPDATED = 4;
+    private static final int VALUE_LATITUDE = 5;
+    private static final int VALUE_LONGITUDE = 6;
+    private static final int VALUE_DEPTH = 7;
+    private static final int VALUE_COUNT = 8;
+
+    private static final String[] COLUMN_NAMES = {
+            "id", "mag", "time", "place", "updated", "latitude", "longitude", "depth"};
+
+    private final Reader mReader;
+
+    private final int mFields;
+
+    private final char[] mBuffer = new char[8192];
+    private int mPosition;
+    private int mLimit;
+
+    // Value read from each column, or -1 for the columns that are skipped; null until the header
+    // has been read
+    private int[] mColumnValues;
+
+    // Text of each needed value in the current row; empty if it is missing
+    private final StringBuilder[] mValues = new StringBuilder[VALUE_COUNT];
+
+    // Name of the header column being read
+    private final StringBuilder mColumnName = new StringBuilder();
+
+    // True once the last row has been read
+    private boolean mFinished;
+
+    // Number of rows skipped because they were malformed
+    private int mSkippedCount;
+
+    /*
+     * Constructs a new {@link EarthquakeCsvParser} reading the given fields (a combination of the
+     * FIELD constants) from UTF-8 CSV in the given stream.
+     */
+    EarthquakeCsvParser(InputStream inputStream, int fields) {
+        mReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
+        mFields = fields;
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mValues[i] = new StringBuilder();
+        }
+    }
+
+    @Override
+    public Earthquake next() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+
+        if (mColumnValues == null) {
+            mColumnValues = new int[0];
+            if (!readRow(true)) {
+                mFinished = true;
+                return null;
+            }
+            if (!hasColumn(VALUE_MAGNITUDE) || !hasColumn(VALUE_TIME)) {
+                throw new IOException("CSV has no magnitude or time column");
+            }
+        }
+
+        while (readRow(false)) {
+            Earthquake earthquake = toEarthquake();
+            if (earthquake != null) {
+                return earthquake;
+            }
+            mSkippedCount++;
+        }
+        mFinished = true;
+        return null;
+    }
+
+    @Override
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    /*
+     * Read one row, skipping blank lines. Header cells are mapped to the values they hold; other
+     * cells are copied only if their value is needed. Returns false at the end of the stream.
+     */
+    private boolean readRow(boolean header) throws IOException {
+        for (StringBuilder value : mValues) {
+            value.setLength(0);
+        }
+
+        int column = 0;
+        boolean empty = true;
+        boolean quoted = false;
+        int previous = -1;
+        int c;
+        while ((c = read()) != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else {
+                    append(header, column, (char) c);
+                }
+            } else if (c == '"') {
+                // A doubled quote inside a quoted cell stands for one quote
+                if (previous == '"') {
+                    append(header, column, '"');
+                }
+                quoted = true;
+            } else if (c == ',') {
+                endCell(header, column++);
+            } else if (c == '\n') {
+                if (!empty) {
+                    endCell(header, column);
+                    return true;
+                }
+                continue;
+            } else if (c != '\r') {
+                append(header, column, (char) c);
+            } else {
+                continue;
+            }
+            empty = false;
+            previous = c;
+        }
+
+        if (!empty) {
+            endCell(header, column);
+        }
+        return !empty;
+    }
+
+    private void append(boolean header, int column, char c) {
+        if (header) {
+            mColumnName.append(c);
+        } else if (column < mColumnValues.length && mColumnValues[column] >= 0) {
+            mValues[mColumnValues[column]].append(c);
+        }
+    }
+
+    /*
+     * Finish reading a cell. For the header, record which value the column holds, if it is needed.
+     */
+    private void endCell(boolean header, int column) {
+        if (!header) {
+            return;
+        }
+
+        int value = -1;
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            if (COLUMN_NAMES[i].contentEquals(mColumnName) && isNeeded(i)) {
+                value = i;
+                break;
+            }
+        }
+        mColumnValues = Arrays.copyOf(mColumnValues, column + 1);
+        mColumnValues[column] = value;
+        mColumnName.setLength(0);
+    }
+
+    /*
+     * Return true if the given value is part of the fields read by this parser.
+     */
+    private boolean isNeeded(int value) {
+        switch (value) {
+            case VALUE_PLACE:
+                return (mFields & FIELD_LOCATION) != 0;
+            case VALUE_UPDATED:
+                return (mFields & FIELD_UPDATED) != 0;
+            case VALUE_LATITUDE:
+            case VALUE_LONGITUDE:
+            case VALUE_DEPTH:
+                return (mFields & FIELD_COORDINATES) != 0;
+            default:
+                return true;
+        }
+    }
+
+    private boolean hasColumn(int value) {
+        for (int columnValue : mColumnValues) {
+            if (columnValue == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Return the {@link Earthquake} in the current row, or null if its magnitude or time is
+     * missing or malformed. Other malformed values are left empty.
+     */
+    private Earthquake toEarthquake() {
+        double magnitude;
+        long timeInMills;
+        try {
+            magnitude = Double.parseDouble(mValues[VALUE_MAGNITUDE].toString());
+            timeInMills = parseTime(mValues[VALUE_TIME]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (Double.isNaN(magnitude)) {
+            return null;
+        }
+
+        String id = mValues[VALUE_ID].length() > 0 ? mValues[VALUE_ID].toString() : null;
+        Earthquake earthquake =
+                new Earthquake(magnitude, mValues[VALUE_PLACE].toString(), timeInMills, null);
+        earthquake.setId(id);
+        if (mValues[VALUE_UPDATED].length() > 0) {
+            try {
+                earthquake.setUpdatedInMills(parseTime(mValues[VALUE_UPDATED]));
+            } catch (NumberFormatException e) {
+                // Leave the update time empty
+            }
+        }
+        earthquake.setLatitude(parseDoubleOrNaN(mValues[VALUE_LATITUDE]));
+        earthquake.setLongitude(parseDoubleOrNaN(mValues[VALUE_LONGITUDE]));
+        earthquake.setDepth(parseDoubleOrNaN(mValues[VALUE_DEPTH]));
+        return earthquake;
+    }
+
+    private static double parseDoubleOrNaN(CharSequence text) {
+        if (text.length() == 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text.toString());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /*
+     * Parse a UTC time written by USGS (e.g. "2017-02-01T12:34:56.789Z") into milliseconds since
+     * the epoch, without going through a date format.
+     */
+    static long parseTime(CharSequence text) {
+        if (text.length() < 19 || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            throw new NumberFormatException("Not a USGS time: " + text);
+        }
+        int year = parseDigits(text, 0, 4);
+        int month = parseDigits(text, 5, 7);
+        int day = parseDigits(text, 8, 10);
+        int hour = parseDigits(text, 11, 13);
+        int minute = parseDigits(text, 14, 16);
+        int second = parseDigits(text, 17, 19);
+
+        // Up to three digits of fraction are kept, scaled to milliseconds
+        int millis = 0;
+        if (text.length() > 19 && text.charAt(19) == '.') {
+            int end = 20;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                end++;
+            }
+            int digits = Math.min(end - 20, 3);
+            if (digits > 0) {
+                millis = parseDigits(text, 20, 20 + digits);
+                for (int i = digits; i < 3; i++) {
+                    millis *= 10;
+                }
+            }
+        }
+
+        long days = getDaysSinceEpoch(year, month, day);
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    private static int parseDigits(CharSequence text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a USGS time: " + text);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /*
+     * Return the number of days from 1970-01-01 to the given date of the Gregorian calendar.
+     */
+    private static long getDaysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit) {
+            mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPosition++];
+    }
+}
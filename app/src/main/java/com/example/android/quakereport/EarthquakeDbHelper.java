@@ -0,0 +1,74 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.example.android.quakereport.EarthquakeContract.EarthquakeEntry;
+
+/**
+ * Database helper for the local earthquake cache. Manages database creation and version management.
+ *
+ * The same schema is used by the archive of historical earthquakes, in a database of its own.
+ */
+public class EarthquakeDbHelper extends SQLiteOpenHelper {
+
+    /* Name of the database file */
+    private static final String DATABASE_NAME = "earthquakes.db";
+
+    /* Database version. If you change the database schema, you must increment the database version. */
+    private static final int DATABASE_VERSION = 3;
+
+    /*
+     * Constructs a new instance of {@link EarthquakeDbHelper}.
+     *
+     * @param context of the app
+     */
+    public EarthquakeDbHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /*
+     * Constructs a new instance of {@link EarthquakeDbHelper} for the database with the given name.
+     *
+     * @param context of the app
+     * @param name of the database file
+     */
+    public EarthquakeDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /*
+     * Called when the database is created for the first time.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + EarthquakeEntry.TABLE_NAME + " ("
+                + EarthquakeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + EarthquakeEntry.COLUMN_EVENT_ID + " TEXT NOT NULL UNIQUE, "
+                + EarthquakeEntry.COLUMN_MAGNITUDE + " REAL NOT NULL, "
+                + EarthquakeEntry.COLUMN_LOCATION + " TEXT, "
+                + EarthquakeEntry.COLUMN_TIME + " INTEGER NOT NULL, "
+                + EarthquakeEntry.COLUMN_UPDATED + " INTEGER NOT NULL DEFAULT 0, "
+                + EarthquakeEntry.COLUMN_URL + " TEXT, "
+                + EarthquakeEntry.COLUMN_LATITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_LONGITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_DEPTH + " REAL);");
+
+        // Index the columns the list is sorted and filtered by
+        db.execSQL("CREATE INDEX index_" + EarthquakeEntry.COLUMN_TIME + " ON "
+                + EarthquakeEntry.TABLE_NAME + " (" + EarthquakeEntry.COLUMN_TIME + ");");
+        db.execSQL("CREATE INDEX index_" + EarthquakeEntry.COLUMN_MAGNITUDE + " ON "
+                + EarthquakeEntry.TABLE_NAME + " (" + EarthquakeEntry.COLUMN_MAGNITUDE + ");");
+    }
+
+    /*
+     * Called when the database needs to be upgraded. The cache can always be re-fetched from
+     * USGS, so simply start over.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + EarthquakeEntry.TABLE_NAME);
+        onCreate(db);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.quakereport;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats earthquake fields into the text shown in the list.
+ *
+ * The formatters are created once and reused, so formatting a row does not allocate new
+ * {@link SimpleDateFormat} or {@link DecimalFormat} objects. Like those classes, an
+ * {@link EarthquakeFormatter} is not thread-safe and must only be used from one thread at a time.
+ */
+public final class EarthquakeFormatter {
+
+    /* Number of magnitude color buckets: 0-1.9, 2-2.9, ... 9-9.9 and 10+ */
+    public static final int MAGNITUDE_BUCKETS = 11;
+
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MMM dd, yyyy");
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("h:mm a");
+    private final DecimalFormat mMagnitudeFormat = new DecimalFormat("0.0");
+
+    // Reused for every call to formatDate and formatTime
+    private final Date mDate = new Date();
+
+    // Return a formatted date string (i.e. Jan 1, 2000 ) from a time in milliseconds.
+    public String formatDate(long timeInMills) {
+        mDate.setTime(timeInMills);
+        return mDateFormat.format(mDate);
+    }
+
+    // Return a formatted time string (i.e. 1:00 PM ) from a time in milliseconds.
+    public String formatTime(long timeInMills) {
+        mDate.setTime(timeInMills);
+        return mTimeFormat.format(mDate);
+    }
+
+    // Return a formatted magnitude String w/ one decimal place (i.e. 7.2)
+    public String formatMagnitude(double magnitude) {
+        return mMagnitudeFormat.format(magnitude);
+    }
+
+    // Return the magnitude color bucket of a magnitude, which is the magnitude rounded down and
+    // clamped to 0 to MAGNITUDE_BUCKETS - 1
+    public static int getMagnitudeBucket(double magnitude) {
+        int magToInt = (int) Math.floor(magnitude);
+        return Math.max(0, Math.min(magToInt, MAGNITUDE_BUCKETS - 1));
+    }
+}
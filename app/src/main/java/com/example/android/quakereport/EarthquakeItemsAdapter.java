@@ -2,126 +2,206 @@ package com.example.android.quakereport;
 
 import android.content.Context;
 import android.graphics.drawable.GradientDrawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Created by namlu on 30-Jan-17.
  *
- * {@link Earthquake} is an {@link ArrayAdapter} that can provide the layout for each list item
- * based on a data source, which is a list of {@link Earthquake} objects.
+ * {@link EarthquakeItemsAdapter} is a {@link RecyclerView.Adapter} that can provide the layout for
+ * each list item based on a data source, which is an {@link EarthquakeSelection} of the loaded
+ * {@link EarthquakeStore}. Rows are bound straight from the store's columns, without creating
+ * {@link Earthquake} objects.
+ *
+ * Binding a row allocates nothing: views are looked up once per row layout and kept in a
+ * {@link ViewHolder}, all text is formatted up front by the {@link EarthquakeStore}, and the
+ * magnitude circle colors are resolved once into a table.
+ *
+ * Rows have stable ids derived from their USGS event id. When a new selection is set, the
+ * difference to the current one is computed off the main thread with {@link DiffUtil}, so only
+ * the rows that were actually inserted, removed or changed are rebound.
  */
 
-public class EarthquakeItemsAdapter extends ArrayAdapter<Earthquake> {
+public class EarthquakeItemsAdapter
+        extends RecyclerView.Adapter<EarthquakeItemsAdapter.ViewHolder> {
 
-    private static final String LOCATION_SEPARATOR = "of";
+    /* Background thread shared by all adapters for computing list differences */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
 
-    public EarthquakeItemsAdapter(Context context, int resource, List<Earthquake> objects) {
-        super(context, resource, objects);
+    /*
+     * Callback for when a list item is clicked.
+     */
+    public interface OnItemClickListener {
+        void onItemClick(int position);
     }
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    private final LayoutInflater mInflater;
 
-        // Check if the existing view is being reused, otherwise inflate the view
-        if (convertView == null) {
-            convertView = LayoutInflater.from(getContext()).inflate(
-                    R.layout.earthquake_list_item, parent, false);
-        }
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-        // Get the {@link Earthquake} object located at this position in the list
-        Earthquake currentEarthquakeItem = getItem(position);
+    // Magnitude circle color for each bucket, indexed by the magnitude rounded down
+    private final int[] mMagnitudeColors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
 
-        /*
-         * Find the TextView in the earthquake_list_item.xml layout with the corresponding ID,
-         * then get the currentEarthquakeItem object's magnitude, location, date, or time and set
-         * the value to the correct view.
-         */
+    // Offset shown when a location has none (i.e. "Near the")
+    private final String mDefaultLocationOffset;
 
-        /* Magnitude */
-        TextView magnitudeTextView = (TextView) convertView.findViewById(R.id.text_earthquake_mag);
-        magnitudeTextView.setText(formatMagnitude(currentEarthquakeItem.getMagnitude()));
+    private final OnItemClickListener mOnItemClickListener;
 
-        // Set the proper background color on the magnitude circle.
-        // Fetch the background from the TextView, which is a GradientDrawable.
-        GradientDrawable magnitudeCircle = (GradientDrawable) magnitudeTextView.getBackground();
+    private final LoadMetrics mMetrics = LoadMetrics.getInstance();
 
-        // Get the appropriate background color based on the current earthquake magnitude
-        int magnitudeColor = getMagnitudeColor(currentEarthquakeItem.getMagnitude());
+    private EarthquakeSelection mSelection;
 
-        // Set the color on the magnitude circle
-        magnitudeCircle.setColor(magnitudeColor);
+    // Incremented for every new selection, so stale diff results can be dropped
+    private int mGeneration;
 
-        /* Location */
-        // Get references for both the location_offset and location_primary from earthquake_list_item.xml
-        TextView offsetTextView = (TextView) convertView.findViewById(R.id.text_earthquake_location_offset);
-        TextView locationTextView = (TextView) convertView.findViewById(R.id.text_earthquake_location_primary);
+    public EarthquakeItemsAdapter(Context context, EarthquakeSelection selection,
+                                  OnItemClickListener onItemClickListener) {
+        mInflater = LayoutInflater.from(context);
+        mSelection = selection;
+        mOnItemClickListener = onItemClickListener;
+        mDefaultLocationOffset = context.getString(R.string.near_the);
 
-        // If the location contains an "of" within, then split the location into its offset
-        // (e.g. "10km  NW of") and primary (e.g. "Tokyo, Japan")
-        // Set the offset location of where the quake occurred (i.e. 70km NW of). If there isn't
-        // an offset, then set the offset location to "near the"
-        if (currentEarthquakeItem.getLocation().contains(LOCATION_SEPARATOR)) {
-            String[] originalLocation = currentEarthquakeItem.getLocation().split(LOCATION_SEPARATOR);
-            offsetTextView.setText(originalLocation[0] + LOCATION_SEPARATOR);
-            locationTextView.setText(originalLocation[1]);
-        } else {
-            offsetTextView.setText(getContext().getString(R.string.near_the));
-            locationTextView.setText(currentEarthquakeItem.getLocation());
+        for (int bucket = 0; bucket < EarthquakeFormatter.MAGNITUDE_BUCKETS; bucket++) {
+            mMagnitudeColors[bucket] =
+                    ContextCompat.getColor(context, getMagnitudeColorResourceId(bucket));
         }
+        setHasStableIds(true);
+    }
 
-        /* Date and Time */
-        // Create a Date object using the time (in milliseconds) of the current Earthquake object
-        Date dateObj = new Date(currentEarthquakeItem.getTimeInMills());
+    /*
+     * Replace the earthquakes shown by the list. A null selection empties the list.
+     *
+     * The difference between the current and the new selection is computed in the background and
+     * then applied on the main thread, so the list keeps showing the current one until then.
+     */
+    public void setSelection(final EarthquakeSelection selection) {
+        final EarthquakeSelection oldSelection = mSelection;
+        final int generation = ++mGeneration;
 
-        // Find TextView with view ID text_earthquake_date
-        TextView dateTextView = (TextView) convertView.findViewById(R.id.text_earthquake_date);
-        // Display the formatted date of the current earthquake
-        dateTextView.setText(formatDate(dateObj));
+        if (selection == oldSelection) {
+            return;
+        }
+
+        // Nothing to diff against, so just swap the selections
+        if (oldSelection == null || selection == null || oldSelection.isEmpty()
+                || selection.isEmpty()) {
+            mSelection = selection;
+            notifyDataSetChanged();
+            return;
+        }
 
-        // Find TextView with view ID text_earthquake_time
-        TextView timeTextView = (TextView) convertView.findViewById(R.id.text_earthquake_time);
-        // Display the formatted time of the current earthquake
-        timeTextView.setText(formatTime(dateObj));
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diffResult =
+                        DiffUtil.calculateDiff(new SelectionDiffCallback(oldSelection, selection),
+                                false);
 
-        // Return the whole Earthquake item layout so that it can be shown in the ListView
-        return convertView;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer selection was set while this diff was being computed
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mSelection = selection;
+                        diffResult.dispatchUpdatesTo(EarthquakeItemsAdapter.this);
+                    }
+                });
+            }
+        });
     }
 
-    // Return a formatted date string (i.e. Jan 1, 2000 ) from a Date object.
-    private String formatDate(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, yyyy");
-        return dateFormat.format(date);
+    /*
+     * Return the earthquakes shown by the list, which may be null.
+     */
+    public EarthquakeSelection getSelection() {
+        return mSelection;
     }
 
-    // Return a formatted time string (i.e. 1:00 PM ) from a Date object.
-    private String formatTime(Date time) {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a");
-        return timeFormat.format(time);
+    @Override
+    public int getItemCount() {
+        return mSelection == null ? 0 : mSelection.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getStableId(mSelection.getId(position));
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate the view and find the TextViews in the earthquake_list_item.xml layout once
+        View itemView = mInflater.inflate(R.layout.earthquake_list_item, parent, false);
+        return new ViewHolder(itemView);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        long startTime = LoadMetrics.startTimer();
+
+        /*
+         * Get the magnitude, location, date, or time of the earthquake at this position
+         * in the selection and set the value to the correct view.
+         */
+        EarthquakeSelection selection = mSelection;
+
+        /* Magnitude */
+        holder.magnitudeTextView.setText(selection.getMagnitudeText(position));
+
+        // Set the proper background color on the magnitude circle.
+        holder.magnitudeCircle.setColor(getMagnitudeColor(selection.getMagnitude(position)));
+
+        /* Location */
+        // Set the offset location of where the quake occurred (i.e. 70km NW of). If there isn't
+        // an offset, then set the offset location to "near the"
+        String locationOffset = selection.getLocationOffset(position);
+        holder.offsetTextView.setText(
+                locationOffset != null ? locationOffset : mDefaultLocationOffset);
+        holder.locationTextView.setText(selection.getLocationPrimary(position));
+
+        /* Date and Time */
+        holder.dateTextView.setText(selection.getDateText(position));
+        holder.timeTextView.setText(selection.getTimeText(position));
+
+        mMetrics.stopTimer(LoadMetrics.STAGE_BIND, startTime);
     }
 
-    // Return a formatted magnitude String w/ one decimal place (i.e. 7.2)
-    private String formatMagnitude(double magnitude) {
-        DecimalFormat decimalFormat = new DecimalFormat("0.0");
-        return decimalFormat.format(magnitude);
+    /*
+     * Return a 64-bit id for the given USGS event id (FNV-1a hash), without allocating.
+     */
+    private static long getStableId(String eventId) {
+        if (eventId == null) {
+            return RecyclerView.NO_ID;
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < eventId.length(); i++) {
+            hash ^= eventId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
     // Return the color of the magnitude circle background based on the magnitude
     private int getMagnitudeColor(double magnitude) {
+        return mMagnitudeColors[EarthquakeFormatter.getMagnitudeBucket(magnitude)];
+    }
 
-        int magColorResourceID;
+    // Return the color resource of the magnitude circle background for a magnitude rounded down
+    private static int getMagnitudeColorResourceId(int magToInt) {
 
-        // Round double magnitude to the lowest int
-        int magToInt = (int) Math.floor(magnitude);
+        int magColorResourceID;
 
         switch (magToInt) {
             case 0:
@@ -156,6 +236,83 @@ public class EarthquakeItemsAdapter extends ArrayAdapter<Earthquake> {
                 magColorResourceID = R.color.magnitude10plus;
                 break;
         }
-        return ContextCompat.getColor(getContext(), magColorResourceID);
+        return magColorResourceID;
+    }
+
+    /*
+     * Holds the views of a list item, so they are only looked up once per inflated layout.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView magnitudeTextView;
+        final GradientDrawable magnitudeCircle;
+        final TextView offsetTextView;
+        final TextView locationTextView;
+        final TextView dateTextView;
+        final TextView timeTextView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            magnitudeTextView = (TextView) itemView.findViewById(R.id.text_earthquake_mag);
+            // The background of the magnitude TextView is a GradientDrawable
+            magnitudeCircle = (GradientDrawable) magnitudeTextView.getBackground();
+            offsetTextView =
+                    (TextView) itemView.findViewById(R.id.text_earthquake_location_offset);
+            locationTextView =
+                    (TextView) itemView.findViewById(R.id.text_earthquake_location_primary);
+            dateTextView = (TextView) itemView.findViewById(R.id.text_earthquake_date);
+            timeTextView = (TextView) itemView.findViewById(R.id.text_earthquake_time);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && mOnItemClickListener != null) {
+                mOnItemClickListener.onItemClick(position);
+            }
+        }
+    }
+
+    /*
+     * Compares the rows of two selections by USGS event id, and then by their displayed values.
+     */
+    private static class SelectionDiffCallback extends DiffUtil.Callback {
+        private final EarthquakeSelection mOldSelection;
+        private final EarthquakeSelection mNewSelection;
+
+        SelectionDiffCallback(EarthquakeSelection oldSelection, EarthquakeSelection newSelection) {
+            mOldSelection = oldSelection;
+            mNewSelection = newSelection;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldSelection.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewSelection.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            String oldId = mOldSelection.getId(oldItemPosition);
+            return oldId != null && oldId.equals(mNewSelection.getId(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldSelection.getMagnitude(oldItemPosition)
+                    == mNewSelection.getMagnitude(newItemPosition)
+                    && mOldSelection.getTimeInMills(oldItemPosition)
+                    == mNewSelection.getTimeInMills(newItemPosition)
+                    && equals(mOldSelection.getLocation(oldItemPosition),
+                    mNewSelection.getLocation(newItemPosition));
+        }
+
+        private static boolean equals(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
     }
 }
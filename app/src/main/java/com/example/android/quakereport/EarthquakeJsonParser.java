@@ -0,0 +1,240 @@
+package com.example.android.quakereport;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Pull-style parser that reads USGS GeoJSON straight off an {@link InputStream} and returns
+ * one {@link Earthquake} at a time, without ever holding the whole response in memory.
+ *
+ * Only the fields it was created with are read; every other value, including the "geometry" if
+ * the coordinates are not needed, is skipped by the underlying {@link JsonReader} without being
+ * turned into objects.
+ *
+ * A malformed feature does not stop the parse. Values are checked against their expected type
+ * before being read, and a feature without a usable magnitude or time (USGS does emit a null
+ * "mag") is skipped and counted in {@link #getSkippedCount()}. Only a document that is not valid
+ * JSON makes {@link #next()} throw.
+ */
+public final class EarthquakeJsonParser implements EarthquakeParser {
+
+    private final JsonReader mReader;
+
+    private final int mFields;
+
+    // True once the reader is positioned inside the "features" array
+    private boolean mInFeatures;
+
+    // True once the "features" array (or the whole document) has been consumed
+    private boolean mFinished;
+
+    // Number of features skipped because they were malformed
+    private int mSkippedCount;
+
+    /*
+     * Constructs a new {@link EarthquakeJsonParser} reading every field from UTF-8 GeoJSON in the
+     * given stream.
+     */
+    public EarthquakeJsonParser(InputStream inputStream) {
+        this(inputStream, FIELDS_ALL);
+    }
+
+    /*
+     * Constructs a new {@link EarthquakeJsonParser} reading the given fields (a combination of the
+     * {@link EarthquakeParser} FIELD constants) from UTF-8 GeoJSON in the given stream.
+     */
+    public EarthquakeJsonParser(InputStream inputStream, int fields) {
+        mReader = new JsonReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        mFields = fields;
+    }
+
+    /*
+     * Return the next {@link Earthquake} in the "features" array, or null when there are none left.
+     */
+    @Override
+    public Earthquake next() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+
+        if (!mInFeatures && !moveToFeatures()) {
+            mFinished = true;
+            return null;
+        }
+
+        while (mReader.hasNext()) {
+            Earthquake earthquake = readFeature();
+            if (earthquake != null) {
+                return earthquake;
+            }
+        }
+        mReader.endArray();
+        mFinished = true;
+        return null;
+    }
+
+    /*
+     * Return the number of malformed features skipped so far.
+     */
+    @Override
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    /*
+     * Advance the reader from the start of the document into the "features" array.
+     * Returns false if the document has no "features" array.
+     */
+    private boolean moveToFeatures() throws IOException {
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            if ("features".equals(mReader.nextName()) && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                mReader.beginArray();
+                mInFeatures = true;
+                return true;
+            }
+            mReader.skipValue();
+        }
+        mReader.endObject();
+        return false;
+    }
+
+    /*
+     * Read a single "Feature" object, keeping only its "id", "properties" and "geometry".
+     * Returns null, and counts the feature as skipped, if it has no usable "properties" object.
+     */
+    private Earthquake readFeature() throws IOException {
+        Earthquake earthquake = null;
+        String id = null;
+        double[] coordinates = null;
+
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            String name = mReader.nextName();
+            if ("id".equals(name) && mReader.peek() == JsonToken.STRING) {
+                id = mReader.nextString();
+            } else if ("properties".equals(name) && mReader.peek() == JsonToken.BEGIN_OBJECT) {
+                earthquake = readProperties();
+            } else if ("geometry".equals(name) && (mFields & FIELD_COORDINATES) != 0
+                    && mReader.peek() == JsonToken.BEGIN_OBJECT) {
+                coordinates = readGeometry();
+            } else {
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+
+        if (earthquake == null) {
+            mSkippedCount++;
+        } else {
+            earthquake.setId(id);
+            if (coordinates != null) {
+                earthquake.setLongitude(coordinates[0]);
+                earthquake.setLatitude(coordinates[1]);
+                earthquake.setDepth(coordinates[2]);
+            }
+        }
+        return earthquake;
+    }
+
+    /*
+     * Read the "coordinates" of a "Point" geometry object, which GeoJSON orders as longitude,
+     * latitude and depth. Returns null if there are none; a missing depth is NaN.
+     */
+    private double[] readGeometry() throws IOException {
+        double[] coordinates = null;
+
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            String name = mReader.nextName();
+            if ("coordinates".equals(name) && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                coordinates = new double[] {Double.NaN, Double.NaN, Double.NaN};
+                int i = 0;
+                mReader.beginArray();
+                while (mReader.hasNext()) {
+                    if (i < coordinates.length && mReader.peek() == JsonToken.NUMBER) {
+                        coordinates[i] = mReader.nextDouble();
+                    } else {
+                        mReader.skipValue();
+                    }
+                    i++;
+                }
+                mReader.endArray();
+            } else {
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+
+        return coordinates;
+    }
+
+    /*
+     * Read the magnitude, time, and the location, update time and URL if they are needed, from a
+     * "properties" object. Returns null if the magnitude or time is missing or not a number. A
+     * missing location, update time or URL is left empty.
+     */
+    private Earthquake readProperties() throws IOException {
+        double magnitude = Double.NaN;
+        String location = "";
+        long timeInMills = 0;
+        boolean hasTime = false;
+        long updatedInMills = 0;
+        String url = null;
+
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            String name = mReader.nextName();
+            JsonToken token = mReader.peek();
+            if ("mag".equals(name) && token == JsonToken.NUMBER) {
+                magnitude = mReader.nextDouble();
+            } else if ("place".equals(name) && token == JsonToken.STRING
+                    && (mFields & FIELD_LOCATION) != 0) {
+                location = mReader.nextString();
+            } else if ("time".equals(name) && token == JsonToken.NUMBER) {
+                timeInMills = readLong();
+                hasTime = true;
+            } else if ("updated".equals(name) && token == JsonToken.NUMBER
+                    && (mFields & FIELD_UPDATED) != 0) {
+                updatedInMills = readLong();
+            } else if ("url".equals(name) && token == JsonToken.STRING
+                    && (mFields & FIELD_URL) != 0) {
+                url = mReader.nextString();
+            } else {
+                // Unneeded properties, and null or wrongly typed values
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+
+        if (Double.isNaN(magnitude) || !hasTime) {
+            return null;
+        }
+
+        Earthquake earthquake = new Earthquake(magnitude, location, timeInMills, url);
+        earthquake.setUpdatedInMills(updatedInMills);
+        return earthquake;
+    }
+
+    /*
+     * Read a number as a long, even if it was written with a fraction or an exponent.
+     */
+    private long readLong() throws IOException {
+        String number = mReader.nextString();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(number);
+        }
+    }
+}
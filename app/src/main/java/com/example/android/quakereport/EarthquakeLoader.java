@@ -2,20 +2,179 @@ package com.example.android.quakereport;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by namlu on 23-Feb-17.
  *
  * Loads a list of earthquakes by using an AsyncTask to perform the
  * network request to the given URL.
+ *
+ * When constructed with a page size, the loader fetches the data in fixed-size pages using the
+ * USGS "endtime" and "limit" parameters. Each page is delivered as soon as it is parsed, and
+ * {@link #loadNextPage()} fetches the following page in the background. Pages are keyed by time
+ * rather than by position: the next page ends at the oldest loaded earthquake, so new events at
+ * the head of the query, skipped features and rows merged from the cache or the live feed do not
+ * shift it. Earthquakes already loaded are dropped from a page before it is appended.
+ *
+ * Pages are appended in place to a store the loader owns, and each delivery is a
+ * {@link EarthquakeStore#view()} of it, so a page costs as much as its own rows rather than a
+ * copy of the whole list. The query indexes of the previous delivery are extended with the new
+ * rows, and the snapshot for the next cold start is written at most once per SNAPSHOT_INTERVAL
+ * while pages come in; {@link #saveSnapshot()} writes the rest, e.g. when the activity stops.
+ *
+ * On the first load, earthquakes stored in the {@link EarthquakeCache} are returned right away
+ * without touching the network. If the cache is older than its TTL, the loader then refreshes
+ * it from the network in the background and delivers the fresh data when it arrives.
+ *
+ * Requests go through the {@link RequestScheduler}, so a load that overlaps another one for the
+ * same URL (e.g. after a rotation) shares its request, and flaky connections are retried with
+ * backoff instead of leaving the list empty.
+ *
+ * In live mode, {@link #pollLiveFeed()} polls a lightweight USGS summary feed instead of
+ * re-running the query, and merges only the new or updated events into the loaded earthquakes.
+ * After a gap longer than the summary feeds cover, the query is re-run over the missed time
+ * instead, split into one shard per day and fetched concurrently.
+ *
+ * Responses are read by an {@link EarthquakePipeline}, which parses them while they stream in.
+ * While nothing is loaded yet, the earthquakes of the first response are passed to the
+ * {@link OnPartialResultListener} as they are parsed, so they can be shown before it ends.
+ * Once the loader is reset, e.g. because its activity finished, a load still in progress is
+ * cancelled by interrupting it, which stops the pipeline and its request.
  */
 
-public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>>{
+public class EarthquakeLoader extends AsyncTaskLoader<EarthquakeStore>{
+
+    /* Query parameter used by the USGS API to limit the size of a page of results */
+    private static final String PARAM_LIMIT = "limit";
+
+    /* Default time (in milliseconds) before cached earthquakes are refreshed from the network */
+    public static final long DEFAULT_CACHE_TTL = 10 * 60 * 1000;
+
+    /* Longest time (in milliseconds) since the last refresh covered by the hour and day feeds */
+    private static final long HOUR_IN_MILLS = 60 * 60 * 1000;
+    private static final long DAY_IN_MILLS = 24 * HOUR_IN_MILLS;
+
+    /* Longest gap (in days) caught up with by re-running the query over the missed time. After
+     * a longer gap, the first page is refreshed instead. */
+    private static final int MAX_CATCH_UP_DAYS = 7;
+
+    /* Time (in milliseconds) allowed for all the shards of a catch-up together */
+    private static final long CATCH_UP_TIMEOUT = 60 * 1000;
+
+    /* Number of days of a catch-up fetched at a time, as many as the RequestScheduler sends */
+    private static final int CATCH_UP_CONCURRENCY = 2;
+
+    /* Maximum number of cached earthquakes shown on startup */
+    static final int MAX_CACHED_RESULTS = 500;
+
+    /* Number of batches the earthquakes of a page are passed to the OnPartialResultListener in */
+    private static final int PARTIAL_RESULTS_PER_PAGE = 4;
+
+    /* Number of earthquakes passed to the OnPartialResultListener at a time without paging */
+    private static final int UNPAGED_PARTIAL_RESULT_SIZE = 100;
+
+    /* Shortest time (in milliseconds) between two snapshot writes by loads */
+    private static final long SNAPSHOT_INTERVAL = 60 * 1000;
+
+    /*
+     * Callback for the earthquakes of the first load while its response is still being read.
+     */
+    public interface OnPartialResultListener {
+        /*
+         * Called on the main thread with every earthquake parsed so far, each event id once.
+         * The loader does not change the store afterwards.
+         */
+        void onPartialResult(EarthquakeStore earthquakes);
+    }
 
     private String mUrl;
 
+    private final EarthquakeCache mCache;
+
+    private final RequestScheduler mScheduler;
+
+    // Time (in milliseconds) before cached earthquakes are considered stale
+    private long mCacheTtl = DEFAULT_CACHE_TTL;
+
+    // True once the on-disk cache has been read
+    private volatile boolean mCacheRead;
+
+    // True if the cached earthquakes just delivered should be refreshed from the network
+    private volatile boolean mRefreshPending;
+
+    // True while the first page is being re-fetched to refresh cached earthquakes
+    private volatile boolean mRefreshing;
+
+    /* Summary feeds polled in live mode, covering the past hour and the past day */
+    private String mLiveHourUrl;
+    private String mLiveDayUrl;
+
+    // Smallest magnitude kept from the summary feeds, to match the query
+    private double mLiveMinMagnitude;
+
+    // True while the live feed is being polled
+    private volatile boolean mPolling;
+
+    // Number of earthquakes per page, or 0 to fetch everything in a single request
+    private final int mPageSize;
+
+    // All earthquakes delivered so far, across every page
+    private volatile EarthquakeStore mEarthquakes;
+
+    // Query engine over mEarthquakes with its indexes built, or null if none was built yet
+    private volatile EarthquakeQueryEngine mQueryEngine;
+
+    // Store the pages are appended to, and the view of it returned by the last page load. Only
+    // the loading thread uses them, and appends only while the loaded store is that view.
+    private EarthquakeStore mPages;
+    private EarthquakeStore mPagesView;
+
+    // Store whose rows the current load appended to, so its query engine can be extended
+    private EarthquakeStore mAppendedTo;
+
+    // Loaded earthquakes not written to the snapshot yet, or null if it is up to date
+    private final AtomicReference<EarthquakeStore> mUnsavedEarthquakes = new AtomicReference<>();
+
+    // Time of the last snapshot write by a load
+    private volatile long mSnapshotTime;
+
+    // False once a page came back with fewer than mPageSize results
+    private volatile boolean mHasMorePages;
+
+    // True while a load is in progress
+    private boolean mLoading;
+
+    private final LoadMetrics mMetrics = LoadMetrics.getInstance();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Set on the main thread; receives the earthquakes of the first load as they are parsed
+    private OnPartialResultListener mOnPartialResultListener;
+
+    // Collects the earthquakes of the load in progress for the listener, or null if it does not
+    private volatile PartialResults mPartialResults;
+
+    // Time the current load was started, for the load-to-delivery timer
+    private volatile long mLoadStartTime;
+
+    // Outcome of the most recent network fetch, or null before the first one
+    private volatile FetchResult mLastFetchResult;
+
+    // True if the current load returned the earthquakes read from the on-disk cache
+    private boolean mLoadedFromCache;
+
+    // Thread running loadInBackground(), or null between loads, so a cancel can interrupt it
+    private final Object mLoadThreadLock = new Object();
+    private Thread mLoadThread;
+
     /*
      * Constructs a new {@link EarthquakeLoader}.
      *
@@ -23,21 +182,594 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>>{
      * @param url to load data from
      */
     public EarthquakeLoader(Context context, String url) {
+        this(context, url, 0);
+    }
+
+    /*
+     * Constructs a new {@link EarthquakeLoader} that loads the data one page at a time.
+     *
+     * @param context of the activity
+     * @param url to load data from, ordered by time and without any "endtime" or "limit"
+     *            parameters
+     * @param pageSize number of earthquakes to fetch per request
+     */
+    public EarthquakeLoader(Context context, String url, int pageSize) {
         super(context);
         mUrl = url;
+        mPageSize = pageSize;
+        mHasMorePages = pageSize > 0;
+        mCache = EarthquakeCache.getInstance(context);
+        mScheduler = RequestScheduler.getInstance(context);
+    }
+
+    /*
+     * Start from the given earthquakes, e.g. restored from an {@link EarthquakeSnapshot}, instead
+     * of reading the on-disk cache. They are delivered as soon as the loader starts, and then
+     * refreshed from the network if the cache is stale. Must be called before the loader starts.
+     */
+    public void restoreEarthquakes(EarthquakeStore earthquakes) {
+        mEarthquakes = earthquakes;
+        mCacheRead = true;
+        mRefreshPending = mCache.isStale(mCacheTtl);
+    }
+
+    /*
+     * Set how long (in milliseconds) cached earthquakes are used before being refreshed.
+     */
+    public void setCacheTtl(long cacheTtl) {
+        mCacheTtl = cacheTtl;
+    }
+
+    /*
+     * Set the listener for the earthquakes of the first load while they are parsed, or null to
+     * stop passing them on. Must be called on the main thread.
+     */
+    public void setOnPartialResultListener(OnPartialResultListener listener) {
+        mOnPartialResultListener = listener;
+    }
+
+    /*
+     * Enable live mode by setting the USGS summary feeds to poll.
+     *
+     * @param hourUrl GeoJSON or CSV summary feed of the past hour (e.g. ".../summary/all_hour.csv")
+     * @param dayUrl GeoJSON or CSV summary feed of the past day (e.g. ".../summary/all_day.csv")
+     * @param minMagnitude smallest magnitude to keep from the feeds
+     */
+    public void setLiveFeeds(String hourUrl, String dayUrl, double minMagnitude) {
+        mLiveHourUrl = hourUrl;
+        mLiveDayUrl = dayUrl;
+        mLiveMinMagnitude = minMagnitude;
+    }
+
+    /*
+     * Poll the live feed in the background and merge any new or updated earthquakes into the
+     * loaded ones. Does nothing if live mode is off, nothing is loaded yet, or a load is already
+     * in progress.
+     *
+     * @return true if the feed is being polled
+     */
+    public boolean pollLiveFeed() {
+        if (mLoading || mLiveHourUrl == null || mEarthquakes == null) {
+            return false;
+        }
+        mPolling = true;
+        mLoading = true;
+        forceLoad();
+        return true;
+    }
+
+    /*
+     * Deliver any earthquakes already loaded, otherwise start loading the first page.
+     */
+    @Override
+    protected void onStartLoading() {
+        if (mEarthquakes != null) {
+            deliverResult(mEarthquakes);
+        } else {
+            mLoading = true;
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mLoadStartTime = LoadMetrics.startTimer();
+        super.onForceLoad();
     }
 
     /*
      * Performs actual task in background and returns the result.
      */
     @Override
-    public List<Earthquake> loadInBackground() {
+    public EarthquakeStore loadInBackground() {
+        long startTime = LoadMetrics.startTimer();
+        EarthquakeStore previous = mEarthquakes;
+        mLoadedFromCache = false;
+        mAppendedTo = null;
+        EarthquakeStore earthquakes;
+        synchronized (mLoadThreadLock) {
+            mLoadThread = Thread.currentThread();
+        }
+        try {
+            earthquakes = load();
+        } finally {
+            synchronized (mLoadThreadLock) {
+                mLoadThread = null;
+            }
+            // The thread goes back to the pool, so do not leave it interrupted by a cancel
+            Thread.interrupted();
+            mMetrics.stopTimer(LoadMetrics.STAGE_LOAD, startTime);
+        }
+
+        // Keep a snapshot of the new list for the next cold start, unless one was written
+        // moments ago; saveSnapshot() writes it then. Nothing changes the store once loaded.
+        if (earthquakes != null && earthquakes != previous && !mLoadedFromCache
+                && !isLoadInBackgroundCanceled()) {
+            long now = System.currentTimeMillis();
+            if (now - mSnapshotTime >= SNAPSHOT_INTERVAL) {
+                mSnapshotTime = now;
+                mUnsavedEarthquakes.set(null);
+                EarthquakeSnapshot.write(getContext(), earthquakes);
+            } else {
+                mUnsavedEarthquakes.set(earthquakes);
+            }
+        }
+
+        // Sort the new list for the queries here, instead of on the main thread once delivered.
+        // A page appended to the last list only has its own rows sorted.
+        if (earthquakes != null && !isLoadInBackgroundCanceled()) {
+            EarthquakeQueryEngine queryEngine = mQueryEngine;
+            if (queryEngine != null && queryEngine.getStore() != earthquakes
+                    && queryEngine.getStore() == mAppendedTo) {
+                queryEngine = queryEngine.extend(earthquakes);
+                queryEngine.buildIndexes();
+                mQueryEngine = queryEngine;
+            } else if (queryEngine == null || queryEngine.getStore() != earthquakes) {
+                queryEngine = new EarthquakeQueryEngine(earthquakes);
+                queryEngine.buildIndexes();
+                mQueryEngine = queryEngine;
+            }
+        }
+        return earthquakes;
+    }
+
+    /*
+     * Write the loaded earthquakes to the snapshot in the background, if they changed since it
+     * was last written. Call it when the list stops being shown, so the next cold start
+     * restores what was shown last.
+     */
+    public void saveSnapshot() {
+        final EarthquakeStore earthquakes = mUnsavedEarthquakes.getAndSet(null);
+        if (earthquakes == null) {
+            return;
+        }
+        final Context context = getContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeSnapshot.write(context, earthquakes);
+            }
+        });
+    }
+
+    private EarthquakeStore load() {
 
         // Submit task only if URL entry is not null
         if (mUrl == null) {
             return null;
         }
 
-        return QueryUtils.fetchEarthquakeData(mUrl);
+        // On the first load, return cached earthquakes instantly and refresh them afterwards
+        if (!mCacheRead) {
+            mCacheRead = true;
+            long startTime = LoadMetrics.startTimer();
+            EarthquakeStore cached = mCache.query(MAX_CACHED_RESULTS);
+            mMetrics.stopTimer(LoadMetrics.STAGE_CACHE_READ, startTime);
+            if (!cached.isEmpty()) {
+                mMetrics.increment(LoadMetrics.COUNTER_CACHE_HITS);
+                mLoadedFromCache = true;
+                mRefreshPending = mCache.isStale(mCacheTtl);
+                return cached;
+            }
+        }
+
+        // Merge the changes from the live feed, if it still covers the time since the last
+        // refresh, or else from the query over the missed days
+        if (mPolling) {
+            mPolling = false;
+            long lastRefreshTime = mCache.getLastRefreshTime();
+            long sinceRefresh = System.currentTimeMillis() - lastRefreshTime;
+            if (sinceRefresh < DAY_IN_MILLS) {
+                return loadLiveChanges(mEarthquakes);
+            }
+            if (sinceRefresh < MAX_CATCH_UP_DAYS * DAY_IN_MILLS) {
+                return loadMissedChanges(mEarthquakes, lastRefreshTime);
+            }
+            mRefreshing = true;
+        }
+
+        // Without paging, fetch everything in one request
+        if (mPageSize <= 0) {
+            mRefreshing = false;
+            EarthquakeStore loaded = mEarthquakes;
+            FetchResult result = fetch(mUrl, loaded != null, loaded == null);
+
+            // If nothing changed, or on failure, keep what is already shown
+            if (result.getStatus() == FetchResult.STATUS_NOT_MODIFIED && loaded != null) {
+                mCache.setLastRefreshTime(System.currentTimeMillis());
+                return loaded;
+            }
+            if (!result.hasEarthquakes()) {
+                return loaded;
+            }
+            storeInCache(result.getEarthquakes());
+            return result.getEarthquakes();
+        }
+
+        EarthquakeStore loaded = mEarthquakes;
+        boolean refreshing = mRefreshing;
+        mRefreshing = false;
+
+        // The next page ends at the oldest earthquake loaded so far
+        long endTimeInMills = loaded == null || refreshing ? 0 : getOldestTime(loaded);
+
+        FetchResult result = fetch(buildPageUrl(mUrl, endTimeInMills, mPageSize),
+                refreshing && loaded != null, loaded == null);
+
+        // The first page has not changed since it was cached, so neither has the list
+        if (refreshing && result.getStatus() == FetchResult.STATUS_NOT_MODIFIED
+                && loaded != null) {
+            mCache.setLastRefreshTime(System.currentTimeMillis());
+            return loaded;
+        }
+
+        // On failure keep what has been loaded so far, so the list does not go blank
+        if (!result.hasEarthquakes()) {
+            return loaded;
+        }
+
+        EarthquakeStore page = result.getEarthquakes();
+        if (endTimeInMills == 0) {
+            storeInCache(page);
+        }
+
+        if (refreshing) {
+            return mergeRefreshedPage(page, loaded);
+        }
+
+        // Skipped features still count towards the page; a page cut short says nothing
+        if (result.isComplete() && page.size() + result.getSkippedCount() < mPageSize) {
+            mHasMorePages = false;
+        }
+
+        // Append in place while the loaded store is a view of the pages; the UI only reads the
+        // rows of that view. Loaded earthquakes that came from elsewhere (the cache, a refresh
+        // or the live feed) are copied once to start over. The page starts at the oldest loaded
+        // time, which "endtime" includes, so it can repeat earthquakes that are already shown;
+        // their ids must stay unique in the list.
+        if (loaded == null || loaded != mPagesView) {
+            mPages = loaded == null ? new EarthquakeStore() : new EarthquakeStore(loaded);
+        }
+        int added = 0;
+        for (int i = 0; i < page.size(); i++) {
+            String id = page.getId(i);
+            if (id == null || mPages.indexOf(id) < 0) {
+                mPages.add(page, i);
+                added++;
+            }
+        }
+
+        // A full page of earthquakes that are all loaded already (they share the oldest time)
+        // would be fetched again and again, so stop paging
+        if (added == 0 && loaded != null) {
+            mHasMorePages = false;
+            return loaded;
+        }
+        mPagesView = mPages.view();
+        mAppendedTo = loaded;
+        return mPagesView;
+    }
+
+    /*
+     * Stop the load in progress by interrupting it. The request it is waiting on fails, and its
+     * result is dropped.
+     */
+    @Override
+    public void cancelLoadInBackground() {
+        synchronized (mLoadThreadLock) {
+            if (mLoadThread != null) {
+                mLoadThread.interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void onCanceled(EarthquakeStore data) {
+        mLoading = false;
+        mPartialResults = null;
+    }
+
+    /*
+     * The loader is no longer needed, e.g. because its activity finished, so stop loading.
+     */
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mPartialResults = null;
+    }
+
+    @Override
+    public void deliverResult(EarthquakeStore data) {
+        if (mLoading) {
+            mMetrics.stopTimer(LoadMetrics.STAGE_LOAD_TO_DELIVERY, mLoadStartTime);
+        }
+        mLoading = false;
+        mPartialResults = null;
+        mEarthquakes = data;
+        super.deliverResult(data);
+
+        // Cached earthquakes were just shown; now refresh them from the network
+        if (mRefreshPending) {
+            mRefreshPending = false;
+            mRefreshing = true;
+            mLoading = true;
+            forceLoad();
+        }
+    }
+
+    /*
+     * Start loading the next page in the background. Does nothing if a load is already in
+     * progress or the last page has been reached.
+     *
+     * @return true if a new page is being loaded
+     */
+    public boolean loadNextPage() {
+        if (mLoading || !hasMorePages()) {
+            return false;
+        }
+        mLoading = true;
+        forceLoad();
+        return true;
+    }
+
+    /*
+     * Return true if there may be more pages left to load.
+     */
+    public boolean hasMorePages() {
+        return mHasMorePages;
+    }
+
+    /*
+     * Return a query engine over the given delivered earthquakes whose indexes were built in the
+     * background, or null if there is none (e.g. for earthquakes restored from a snapshot).
+     */
+    public EarthquakeQueryEngine getQueryEngine(EarthquakeStore earthquakes) {
+        EarthquakeQueryEngine queryEngine = mQueryEngine;
+        return queryEngine != null && queryEngine.getStore() == earthquakes ? queryEngine : null;
+    }
+
+    /*
+     * Return the outcome of the most recent network fetch, or null if there was none yet.
+     */
+    public FetchResult getLastFetchResult() {
+        return mLastFetchResult;
+    }
+
+    /*
+     * Fetch earthquakes from the given URL through the {@link RequestScheduler}, which retries
+     * transient failures, and remember the outcome.
+     *
+     * @param holdsData true if the caller already holds the earthquakes of the last response, so
+     *                  a 304 Not Modified does not need to read them again from the HTTP cache
+     * @param passPartialResults true to pass the earthquakes to the OnPartialResultListener as
+     *                           they are parsed
+     */
+    private FetchResult fetch(String url, boolean holdsData, boolean passPartialResults) {
+        PartialResults partialResults = null;
+        if (passPartialResults) {
+            partialResults = new PartialResults(mPageSize > 0
+                    ? mPageSize / PARTIAL_RESULTS_PER_PAGE : UNPAGED_PARTIAL_RESULT_SIZE);
+        }
+        mPartialResults = partialResults;
+        FetchResult result = mScheduler.fetch(url,
+                holdsData ? HttpFetcher.FLAG_SKIP_NOT_MODIFIED_BODY : 0, partialResults);
+        mLastFetchResult = result;
+        return result;
+    }
+
+    /*
+     * Fetch the smallest summary feed covering the time since the last refresh, and merge its new
+     * and updated earthquakes into the loaded ones. Returns the loaded store itself if nothing
+     * changed, so nothing is redelivered.
+     */
+    private EarthquakeStore loadLiveChanges(EarthquakeStore loaded) {
+        String feedUrl = System.currentTimeMillis() - mCache.getLastRefreshTime() < HOUR_IN_MILLS
+                ? mLiveHourUrl : mLiveDayUrl;
+
+        // The loaded earthquakes already include the feed's last response
+        FetchResult result = fetch(feedUrl, true, false);
+        if (result.getStatus() == FetchResult.STATUS_NOT_MODIFIED) {
+            mCache.setLastRefreshTime(System.currentTimeMillis());
+            return loaded;
+        }
+        if (!result.hasEarthquakes()) {
+            return loaded;
+        }
+        EarthquakeStore feed = result.getEarthquakes();
+
+        // The summary feeds are not filtered like the query, so drop the smaller earthquakes
+        EarthquakeStore changes = new EarthquakeStore();
+        for (int i = 0; i < feed.size(); i++) {
+            if (feed.getMagnitude(i) >= mLiveMinMagnitude) {
+                changes.add(feed, i);
+            }
+        }
+
+        EarthquakeStore merged = loaded.merge(changes);
+        if (merged != loaded) {
+            mCache.insertOrReplace(changes);
+        }
+        mCache.setLastRefreshTime(System.currentTimeMillis());
+        return merged;
+    }
+
+    /*
+     * Re-run the query over the time since the given last refresh, one shard per day fetched
+     * concurrently, and merge its earthquakes into the loaded ones. Returns the loaded store
+     * itself if nothing changed. The refresh time only moves on if every shard succeeded, so
+     * the days that failed are fetched again next time.
+     */
+    private EarthquakeStore loadMissedChanges(EarthquakeStore loaded, long lastRefreshTime) {
+        long now = System.currentTimeMillis();
+        int shardCount = (int) ((now - lastRefreshTime + DAY_IN_MILLS - 1) / DAY_IN_MILLS);
+        FetchResult result = mScheduler.fetchShards(
+                QueryUtils.buildTimeShards(mUrl, lastRefreshTime, now, shardCount),
+                CATCH_UP_CONCURRENCY, CATCH_UP_TIMEOUT);
+        mLastFetchResult = result;
+        if (!result.hasEarthquakes()) {
+            return loaded;
+        }
+
+        EarthquakeStore changes = result.getEarthquakes();
+        EarthquakeStore merged = loaded.merge(changes);
+        if (merged != loaded) {
+            mCache.insertOrReplace(changes);
+        }
+        if (result.isComplete()) {
+            mCache.setLastRefreshTime(now);
+        }
+        return merged;
+    }
+
+    /*
+     * Save freshly fetched earthquakes to the on-disk cache.
+     */
+    private void storeInCache(EarthquakeStore earthquakes) {
+        mCache.insertOrReplace(earthquakes);
+        mCache.setLastRefreshTime(System.currentTimeMillis());
+    }
+
+    /*
+     * Combine a freshly fetched first page with the earthquakes shown before the refresh.
+     *
+     * Older earthquakes are kept only if the page overlaps them; otherwise more than a page of
+     * new earthquakes has happened since, and keeping them would leave a gap in the list.
+     */
+    private static EarthquakeStore mergeRefreshedPage(EarthquakeStore page,
+                                                      EarthquakeStore previous) {
+        if (page.isEmpty() || previous == null) {
+            return page;
+        }
+
+        Set<String> pageIds = new HashSet<>();
+        for (int i = 0; i < page.size(); i++) {
+            pageIds.add(page.getId(i));
+        }
+
+        boolean overlaps = false;
+        for (int i = 0; i < previous.size(); i++) {
+            if (pageIds.contains(previous.getId(i))) {
+                overlaps = true;
+                break;
+            }
+        }
+        if (!overlaps) {
+            return page;
+        }
+
+        long oldestTime = page.getTimeInMills(page.size() - 1);
+        for (int i = 0; i < previous.size(); i++) {
+            if (!pageIds.contains(previous.getId(i)) && previous.getTimeInMills(i) <= oldestTime) {
+                page.add(previous, i);
+            }
+        }
+        return page;
+    }
+
+    /*
+     * Return the time of the oldest earthquake in the given store. The store is ordered by time,
+     * but rows merged from the live feed are not guaranteed to be, so every row is checked.
+     */
+    private static long getOldestTime(EarthquakeStore earthquakes) {
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < earthquakes.size(); i++) {
+            oldestTime = Math.min(oldestTime, earthquakes.getTimeInMills(i));
+        }
+        return earthquakes.isEmpty() ? 0 : oldestTime;
+    }
+
+    /*
+     * Return the URL for the page of the given query that ends at the given time (inclusive), or
+     * for the first page if the time is 0.
+     */
+    static String buildPageUrl(String url, long endTimeInMills, int pageSize) {
+        if (endTimeInMills > 0) {
+            url = QueryUtils.buildEndTimeUrl(url, endTimeInMills);
+        }
+        return Uri.parse(url).buildUpon()
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(pageSize))
+                .build()
+                .toString();
+    }
+
+    /*
+     * Collects the earthquakes of a load as they are parsed, leaving out the event ids it holds
+     * already (a retried request passes them on again), and hands a view of them to the
+     * OnPartialResultListener on the main thread. The collected store only grows, so a view
+     * handed over is never changed, and handing one over copies nothing.
+     */
+    private final class PartialResults
+            implements EarthquakePipeline.PartialResultListener, Runnable {
+        private final int mBatchSize;
+
+        // Guarded by this
+        private final EarthquakeStore mCollected = new EarthquakeStore();
+
+        // View of the collected earthquakes waiting to be handed over, or null if there is none
+        private final AtomicReference<EarthquakeStore> mPending = new AtomicReference<>();
+
+        PartialResults(int batchSize) {
+            mBatchSize = batchSize;
+        }
+
+        @Override
+        public int getBatchSize() {
+            return mBatchSize;
+        }
+
+        @Override
+        public void onPartialResult(EarthquakeStore earthquakes) {
+            EarthquakeStore view;
+            synchronized (this) {
+                int collectedCount = mCollected.size();
+                for (int i = 0; i < earthquakes.size(); i++) {
+                    String id = earthquakes.getId(i);
+                    if (id == null || mCollected.indexOf(id) < 0) {
+                        mCollected.add(earthquakes, i);
+                    }
+                }
+                if (mCollected.size() == collectedCount) {
+                    return;
+                }
+                view = mCollected.view();
+            }
+
+            // A view still waiting is replaced, and the post made for it hands over this one
+            if (mPending.getAndSet(view) == null) {
+                mMainHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            EarthquakeStore earthquakes = mPending.getAndSet(null);
+
+            // Drop them if the load was delivered or cancelled in the meantime
+            if (earthquakes != null && mPartialResults == this
+                    && mOnPartialResultListener != null) {
+                mOnPartialResultListener.onPartialResult(earthquakes);
+            }
+        }
     }
 }
@@ -0,0 +1,34 @@
+package com.example.android.quakereport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streaming parser that returns the earthquakes of a USGS response one at a time.
+ *
+ * A parser is created with the set of fields it needs (a combination of the FIELD constants).
+ * The magnitude, time and event id are always read; every other value is skipped without being
+ * turned into objects, and left at its default in the returned {@link Earthquake}.
+ */
+interface EarthquakeParser extends Closeable {
+
+    /* Optional fields of an earthquake */
+    int FIELD_LOCATION = 1;
+    int FIELD_UPDATED = 1 << 1;
+    int FIELD_URL = 1 << 2;
+    // Latitude, longitude and depth
+    int FIELD_COORDINATES = 1 << 3;
+
+    /* Every field used by {@link EarthquakeStore} */
+    int FIELDS_ALL = FIELD_LOCATION | FIELD_UPDATED | FIELD_URL | FIELD_COORDINATES;
+
+    /*
+     * Return the next {@link Earthquake}, or null when there are none left.
+     */
+    Earthquake next() throws IOException;
+
+    /*
+     * Return the number of malformed earthquakes skipped so far.
+     */
+    int getSkippedCount();
+}
@@ -0,0 +1,402 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the earthquakes of a USGS response in three overlapping stages, so parsing does not
+ * wait for the network and building the {@link EarthquakeStore} (which formats the row text)
+ * does not hold up parsing:
+ *
+ * 1. The calling thread reads the body off the network in chunks.
+ * 2. A pipeline thread parses the chunks with an {@link EarthquakeParser} for the format of the
+ *    response.
+ * 3. Another pipeline thread adds the parsed earthquakes to the store.
+ *
+ * The stages are connected by bounded queues, so a slow stage holds back the ones before it
+ * instead of letting the data pile up in memory. A stage that stops, because it failed or had
+ * all it needed, stops the ones before it as well. The new earthquakes are passed to the
+ * {@link PartialResultListener}, if there is one, in batches of the size it asks for.
+ *
+ * Interrupting the calling thread cancels the pipeline: the other stages are stopped, and
+ * {@link #read} throws an {@link InterruptedIOException} with the thread still interrupted.
+ */
+final class EarthquakePipeline {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakePipeline.class.getSimpleName();
+
+    /* Size of the chunks read off the network, and number of chunks waiting to be parsed */
+    private static final int CHUNK_SIZE = 8192;
+    private static final int CHUNK_QUEUE_SIZE = 16;
+
+    /* Number of parsed earthquakes waiting to be added to the store */
+    private static final int EARTHQUAKE_QUEUE_SIZE = 256;
+
+    /* How long (in milliseconds) the network stage waits for room before checking the parser */
+    private static final long OFFER_TIMEOUT = 100;
+
+    /* Markers for the end of the body and of the earthquakes, and for a broken connection */
+    private static final byte[] END_OF_BODY = new byte[0];
+    private static final byte[] BROKEN_BODY = new byte[0];
+    private static final Earthquake END_OF_EARTHQUAKES = new Earthquake(0, null, 0, null);
+
+    /* Threads running the parse and build stages of every pipeline */
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EarthquakePipeline-"
+                            + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /*
+     * Callback for the earthquakes of a response that is still being read.
+     */
+    public interface PartialResultListener {
+        /*
+         * Return the number of earthquakes to pass at a time. Sized to the request, so the
+         * first batch comes well before the end of the response.
+         */
+        int getBatchSize();
+
+        /*
+         * Called on a pipeline thread with the earthquakes parsed since the last call. The store
+         * is not used by the pipeline afterwards.
+         */
+        void onPartialResult(EarthquakeStore earthquakes);
+    }
+
+    /**
+     * Create a private constructor because no one should ever create a {@link EarthquakePipeline}
+     * object. This class is only meant to hold static methods.
+     */
+    private EarthquakePipeline() {
+    }
+
+    /*
+     * Return the earthquakes read from the given response body to the given USGS URL.
+     *
+     * Malformed earthquakes are skipped and counted, and the rest are kept. If the body breaks
+     * off or cannot be parsed, the earthquakes read until then are kept as a partial result,
+     * which is not complete. If there are none, a body that broke off is a network error, and
+     * a body read to the end is a parse error.
+     *
+     * @param fields the EarthquakeParser FIELD constants of the values to read
+     * @param listener to pass the earthquakes to as they are parsed, or null
+     * @throws InterruptedIOException if the calling thread was interrupted
+     */
+    static FetchResult read(URL url, InputStream inputStream, int fields,
+                            PartialResultListener listener) throws InterruptedIOException {
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(CHUNK_QUEUE_SIZE);
+        BlockingQueue<Earthquake> earthquakes = new ArrayBlockingQueue<>(EARTHQUAKE_QUEUE_SIZE);
+
+        BuildStage buildStage = new BuildStage(earthquakes, listener);
+        Future<EarthquakeStore> buildFuture = EXECUTOR.submit(buildStage);
+        ParseStage parseStage = new ParseStage(url, new ChunkInputStream(chunks), fields,
+                earthquakes, buildFuture);
+        Future<Boolean> parseFuture = EXECUTOR.submit(parseStage);
+
+        try {
+            boolean bodyComplete = readChunks(inputStream, chunks, parseFuture, buildFuture);
+            boolean parsed = parseFuture.get() && !buildStage.mFailed;
+            return buildResult(buildFuture.get(), parseStage.mSkippedCount, parsed,
+                    bodyComplete);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading the earthquakes was cancelled");
+        } catch (ExecutionException e) {
+            // The stages catch the exceptions of parsing and building, so this is an Error,
+            // e.g. running out of memory, which the caller cannot recover from either
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            parseFuture.cancel(true);
+            buildFuture.cancel(true);
+        }
+    }
+
+    /*
+     * Network stage: copy the body into the queue of chunks, until it ends or the parse or build
+     * stage stops. Returns false if the connection broke off before the end of the body.
+     */
+    private static boolean readChunks(InputStream inputStream, BlockingQueue<byte[]> chunks,
+                                      Future<Boolean> parseFuture,
+                                      Future<EarthquakeStore> buildFuture)
+            throws InterruptedException {
+        byte[] marker = END_OF_BODY;
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (read > 0 && !offer(chunks, Arrays.copyOf(buffer, read), parseFuture,
+                        buildFuture)) {
+                    // A later stage gave up, so the rest of the body is not needed
+                    return true;
+                }
+            }
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem reading the earthquake results", e);
+            marker = BROKEN_BODY;
+        }
+        offer(chunks, marker, parseFuture, buildFuture);
+        return marker != BROKEN_BODY;
+    }
+
+    /*
+     * Wait for room in the queue for the item. Returns false if one of the stages taking items
+     * off the queue, directly or further down, stopped first.
+     */
+    private static <T> boolean offer(BlockingQueue<T> queue, T item, Future<?>... consumers)
+            throws InterruptedException {
+        while (!queue.offer(item, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            for (Future<?> consumer : consumers) {
+                if (consumer.isDone()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Return the {@link FetchResult} for the earthquakes read, recording them in
+     * {@link LoadMetrics}.
+     */
+    private static FetchResult buildResult(EarthquakeStore earthquakes, int skippedCount,
+                                           boolean parsed, boolean bodyComplete) {
+        LoadMetrics metrics = LoadMetrics.getInstance();
+        metrics.recordHeapUsage();
+        metrics.increment(LoadMetrics.COUNTER_EVENTS_PARSED, earthquakes.size());
+        metrics.increment(LoadMetrics.COUNTER_FEATURES_SKIPPED, skippedCount);
+        if (skippedCount > 0) {
+            Log.w(LOG_TAG, "Skipped " + skippedCount + " malformed earthquakes");
+        }
+
+        // Nothing usable came through, which is no better than no response at all
+        if (earthquakes.isEmpty() && !bodyComplete) {
+            return new FetchResult(FetchResult.STATUS_NETWORK_ERROR,
+                    HttpURLConnection.HTTP_OK, null, skippedCount, false);
+        }
+        // The whole body came through, but none of it was an earthquake
+        if (earthquakes.isEmpty() && (!parsed || skippedCount > 0)) {
+            return new FetchResult(FetchResult.STATUS_PARSE_ERROR,
+                    HttpURLConnection.HTTP_OK, null, skippedCount, false);
+        }
+
+        boolean complete = parsed && bodyComplete;
+
+        int status = complete && skippedCount == 0
+                ? FetchResult.STATUS_SUCCESS : FetchResult.STATUS_PARTIAL;
+        return new FetchResult(status, HttpURLConnection.HTTP_OK, earthquakes, skippedCount,
+                complete);
+    }
+
+    /*
+     * Parse stage: pull each earthquake off the chunks and queue it for the build stage.
+     * Returns false if the body broke off or could not be parsed, or the build stage stopped.
+     */
+    private static final class ParseStage implements Callable<Boolean> {
+        private final URL mUrl;
+        private final InputStream mChunks;
+        private final int mFields;
+        private final BlockingQueue<Earthquake> mEarthquakes;
+        private final Future<EarthquakeStore> mBuildFuture;
+
+        // Number of malformed earthquakes skipped, read once the stage is done
+        int mSkippedCount;
+
+        ParseStage(URL url, InputStream chunks, int fields,
+                   BlockingQueue<Earthquake> earthquakes, Future<EarthquakeStore> buildFuture) {
+            mUrl = url;
+            mChunks = chunks;
+            mFields = fields;
+            mEarthquakes = earthquakes;
+            mBuildFuture = buildFuture;
+        }
+
+        @Override
+        public Boolean call() throws InterruptedException {
+            boolean complete = true;
+
+            // The parser may start reading as soon as it is created, so it is created here
+            EarthquakeParser parser = QueryUtils.createParser(mUrl, mChunks, mFields);
+            try {
+                Earthquake earthquake = parser.next();
+                while (earthquake != null) {
+                    if (!offer(mEarthquakes, earthquake, mBuildFuture)) {
+                        // Nothing takes the earthquakes any more
+                        complete = false;
+                        break;
+                    }
+                    earthquake = parser.next();
+                }
+            } catch (InterruptedIOException e) {
+                throw new InterruptedException();
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                Log.e(LOG_TAG, "Problem parsing the earthquake results", e);
+                LoadMetrics.getInstance().increment(LoadMetrics.COUNTER_PARSE_FAILURES);
+                complete = false;
+            } finally {
+                // Even if parsing blew up, the build stage must not wait forever
+                mSkippedCount = parser.getSkippedCount();
+                offer(mEarthquakes, END_OF_EARTHQUAKES, mBuildFuture);
+            }
+            return complete;
+        }
+    }
+
+    /*
+     * Build stage: add the parsed earthquakes to a store, passing them to the listener in
+     * batches as they come. If an earthquake cannot be added, the stage stops and returns the
+     * earthquakes added before it.
+     */
+    private static final class BuildStage implements Callable<EarthquakeStore> {
+        private final BlockingQueue<Earthquake> mEarthquakes;
+        private PartialResultListener mListener;
+        private final int mBatchSize;
+
+        // True if the stage stopped before the end of the earthquakes, read once it is done
+        volatile boolean mFailed;
+
+        BuildStage(BlockingQueue<Earthquake> earthquakes, PartialResultListener listener) {
+            mEarthquakes = earthquakes;
+            mListener = listener;
+            mBatchSize = listener != null ? Math.max(1, listener.getBatchSize()) : 0;
+        }
+
+        @Override
+        public EarthquakeStore call() throws InterruptedException {
+            EarthquakeStore store = new EarthquakeStore();
+
+            // Without a listener, the earthquakes go straight into the store
+            EarthquakeStore batch = mListener != null ? new EarthquakeStore() : store;
+            try {
+                Earthquake earthquake = mEarthquakes.take();
+                while (earthquake != END_OF_EARTHQUAKES) {
+                    batch.add(earthquake);
+                    if (batch != store && batch.size() == mBatchSize) {
+                        deliver(store, batch);
+                        batch = new EarthquakeStore();
+                    }
+                    earthquake = mEarthquakes.take();
+                }
+                if (batch != store && !batch.isEmpty()) {
+                    deliver(store, batch);
+                }
+            } catch (RuntimeException e) {
+                // A row is only counted once all of it is added, so the store is still whole
+                Log.e(LOG_TAG, "Problem building the earthquake results", e);
+                LoadMetrics.getInstance().increment(LoadMetrics.COUNTER_PARSE_FAILURES);
+                mFailed = true;
+            }
+            return store;
+        }
+
+        private void deliver(EarthquakeStore store, EarthquakeStore batch) {
+            store.addAll(batch);
+            if (mListener == null) {
+                return;
+            }
+            try {
+                mListener.onPartialResult(batch);
+            } catch (RuntimeException e) {
+                // A broken listener must not stall the stages feeding this one
+                Log.e(LOG_TAG, "Problem passing on partial earthquake results", e);
+                mListener = null;
+            }
+        }
+    }
+
+    /*
+     * {@link InputStream} over the queue of chunks filled by the network stage.
+     */
+    private static final class ChunkInputStream extends InputStream {
+        private final BlockingQueue<byte[]> mChunks;
+        private byte[] mChunk = new byte[0];
+        private int mPosition;
+        private boolean mEnded;
+
+        ChunkInputStream(BlockingQueue<byte[]> chunks) {
+            mChunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return mChunk[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int read = Math.min(count, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, buffer, offset, read);
+            mPosition += read;
+            return read;
+        }
+
+        /*
+         * Make sure the current chunk has bytes left. Returns false at the end of the body.
+         */
+        private boolean fill() throws IOException {
+            while (mPosition == mChunk.length) {
+                if (mEnded) {
+                    return false;
+                }
+                byte[] chunk;
+                try {
+                    chunk = mChunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (chunk == BROKEN_BODY) {
+                    throw new IOException("The connection broke off");
+                }
+                if (chunk == END_OF_BODY) {
+                    mEnded = true;
+                }
+                mChunk = chunk;
+                mPosition = 0;
+            }
+            return true;
+        }
+    }
+}
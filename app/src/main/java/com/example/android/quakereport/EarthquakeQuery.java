@@ -0,0 +1,117 @@
+package com.example.android.quakereport;
+
+/**
+ * Describes which of the loaded earthquakes the list shows, and in what order.
+ *
+ * A query is run against the loaded earthquakes by an {@link EarthquakeQueryEngine}, entirely
+ * in memory, so changing it never touches the network. Every filter is off by default, and the
+ * default order is by time, most recent first.
+ */
+public final class EarthquakeQuery {
+
+    /* Sort orders; both list the largest values first */
+    public static final int SORT_BY_TIME = 0;
+    public static final int SORT_BY_MAGNITUDE = 1;
+
+    /* Magnitude range, inclusive */
+    private double mMinMagnitude = Double.NEGATIVE_INFINITY;
+    private double mMaxMagnitude = Double.POSITIVE_INFINITY;
+
+    /* Time window (in milliseconds), inclusive */
+    private long mStartTimeInMills = Long.MIN_VALUE;
+    private long mEndTimeInMills = Long.MAX_VALUE;
+
+    // Text the location must contain, ignoring case, or null to match any location
+    private String mPlaceText;
+
+    private int mSortOrder = SORT_BY_TIME;
+
+    /*
+     * Constructs a new {@link EarthquakeQuery} matching every earthquake, most recent first.
+     */
+    public EarthquakeQuery() {
+    }
+
+    /*
+     * Constructs a new {@link EarthquakeQuery} with the same filters and order as the given one.
+     */
+    public EarthquakeQuery(EarthquakeQuery other) {
+        mMinMagnitude = other.mMinMagnitude;
+        mMaxMagnitude = other.mMaxMagnitude;
+        mStartTimeInMills = other.mStartTimeInMills;
+        mEndTimeInMills = other.mEndTimeInMills;
+        mPlaceText = other.mPlaceText;
+        mSortOrder = other.mSortOrder;
+    }
+
+    /*
+     * Getters and setter methods
+     */
+
+    public double getMinMagnitude() {
+        return mMinMagnitude;
+    }
+
+    public double getMaxMagnitude() {
+        return mMaxMagnitude;
+    }
+
+    public void setMagnitudeRange(double minMagnitude, double maxMagnitude) {
+        mMinMagnitude = minMagnitude;
+        mMaxMagnitude = maxMagnitude;
+    }
+
+    public long getStartTimeInMills() {
+        return mStartTimeInMills;
+    }
+
+    public long getEndTimeInMills() {
+        return mEndTimeInMills;
+    }
+
+    public void setTimeWindow(long startTimeInMills, long endTimeInMills) {
+        mStartTimeInMills = startTimeInMills;
+        mEndTimeInMills = endTimeInMills;
+    }
+
+    public String getPlaceText() {
+        return mPlaceText;
+    }
+
+    /*
+     * Set the text the location must contain, ignoring case. Null or empty text matches any
+     * location.
+     */
+    public void setPlaceText(String placeText) {
+        mPlaceText = placeText == null || placeText.isEmpty() ? null : placeText;
+    }
+
+    public int getSortOrder() {
+        return mSortOrder;
+    }
+
+    /*
+     * Set the order of the results, either SORT_BY_TIME or SORT_BY_MAGNITUDE.
+     */
+    public void setSortOrder(int sortOrder) {
+        if (sortOrder != SORT_BY_TIME && sortOrder != SORT_BY_MAGNITUDE) {
+            throw new IllegalArgumentException("Unknown sort order: " + sortOrder);
+        }
+        mSortOrder = sortOrder;
+    }
+
+    /*
+     * Return true if the magnitude range excludes any magnitude.
+     */
+    boolean hasMagnitudeRange() {
+        return mMinMagnitude != Double.NEGATIVE_INFINITY
+                || mMaxMagnitude != Double.POSITIVE_INFINITY;
+    }
+
+    /*
+     * Return true if the time window excludes any time.
+     */
+    boolean hasTimeWindow() {
+        return mStartTimeInMills != Long.MIN_VALUE || mEndTimeInMills != Long.MAX_VALUE;
+    }
+}
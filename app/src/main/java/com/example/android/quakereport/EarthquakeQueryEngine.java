@@ -0,0 +1,323 @@
+package com.example.android.quakereport;
+
+/**
+ * Runs {@link EarthquakeQuery}s over the rows of a loaded {@link EarthquakeStore}.
+ *
+ * The engine keeps two sorted indexes of the store's rows, one by time and one by magnitude,
+ * each built the first time a query needs it. A query walks the index of its sort order, so the
+ * results come out already sorted, and a binary search narrows that index down to the range of
+ * the query on its sort key. The remaining filters are checked row by row, as the rows of the
+ * {@link EarthquakeSelection} are read.
+ *
+ * The store must not change once an engine has been created for it; for a store that holds the
+ * same rows followed by new ones, e.g. the next page, {@link #extend} merges the new rows into
+ * the indexes already built instead of sorting every row again. An engine is not
+ * thread-safe: {@link #buildIndexes()} is meant to be called on the thread that loaded the
+ * store, before the engine is handed to the UI thread to run the queries.
+ */
+public final class EarthquakeQueryEngine {
+
+    private final EarthquakeStore mStore;
+
+    /* Rows of the store, most recent first and largest magnitude first */
+    private int[] mTimeOrder;
+    private int[] mMagnitudeOrder;
+
+    /*
+     * Constructs a new {@link EarthquakeQueryEngine} over the given store.
+     */
+    public EarthquakeQueryEngine(EarthquakeStore store) {
+        mStore = store;
+    }
+
+    /*
+     * Build both sorted indexes now instead of on the first query that needs them.
+     */
+    public void buildIndexes() {
+        getTimeOrder();
+        getMagnitudeOrder();
+    }
+
+    /*
+     * Return an engine over the given store, which must hold the rows of this engine's store
+     * followed by new ones. The indexes built here are carried over with the new rows sorted
+     * and merged into them; the others are still built on first use.
+     */
+    public EarthquakeQueryEngine extend(EarthquakeStore store) {
+        EarthquakeQueryEngine engine = new EarthquakeQueryEngine(store);
+        int from = mStore.size();
+        if (mTimeOrder != null) {
+            RowComparator byTime = engine.byTime();
+            engine.mTimeOrder = mergeRows(mTimeOrder,
+                    engine.sortRows(from, store.size(), byTime), byTime);
+        }
+        if (mMagnitudeOrder != null) {
+            RowComparator byMagnitude = engine.byMagnitude();
+            engine.mMagnitudeOrder = mergeRows(mMagnitudeOrder,
+                    engine.sortRows(from, store.size(), byMagnitude), byMagnitude);
+        }
+        return engine;
+    }
+
+    /*
+     * Return the store the queries run over.
+     */
+    public EarthquakeStore getStore() {
+        return mStore;
+    }
+
+    /*
+     * Return the earthquakes matching the given query, in its sort order.
+     */
+    public EarthquakeSelection select(EarthquakeQuery query) {
+        boolean byMagnitude = query.getSortOrder() == EarthquakeQuery.SORT_BY_MAGNITUDE;
+
+        // Narrow the sorted index down to the range of the query on the sort key
+        int[] order;
+        int from;
+        int to;
+        if (byMagnitude) {
+            order = getMagnitudeOrder();
+            from = countMagnitudesAbove(order, query.getMaxMagnitude(), false);
+            to = countMagnitudesAbove(order, query.getMinMagnitude(), true);
+        } else {
+            order = getTimeOrder();
+            from = countTimesAbove(order, query.getEndTimeInMills(), false);
+            to = countTimesAbove(order, query.getStartTimeInMills(), true);
+        }
+        if (to < from) {
+            to = from;
+        }
+
+        boolean filterMagnitude = !byMagnitude && query.hasMagnitudeRange();
+        boolean filterTime = byMagnitude && query.hasTimeWindow();
+        String placeText = query.getPlaceText();
+
+        // Nothing left to check, so the range of the index is the result
+        if (!filterMagnitude && !filterTime && placeText == null) {
+            return new EarthquakeSelection(mStore, order, from, to, null);
+        }
+        return new EarthquakeSelection(mStore, order, from, to,
+                new QueryFilter(mStore, query, filterMagnitude, filterTime));
+    }
+
+    private int[] getTimeOrder() {
+        if (mTimeOrder == null) {
+            // Stores are normally kept most recent first already, which makes this sort linear
+            mTimeOrder = sortRows(0, mStore.size(), byTime());
+        }
+        return mTimeOrder;
+    }
+
+    private int[] getMagnitudeOrder() {
+        if (mMagnitudeOrder == null) {
+            mMagnitudeOrder = sortRows(0, mStore.size(), byMagnitude());
+        }
+        return mMagnitudeOrder;
+    }
+
+    /*
+     * Orders rows most recent first. Rows of the same time keep their order in the store.
+     */
+    private RowComparator byTime() {
+        return new RowComparator() {
+            @Override
+            public int compare(int first, int second) {
+                return compareDescending(mStore.getTimeInMills(first),
+                        mStore.getTimeInMills(second));
+            }
+        };
+    }
+
+    /*
+     * Orders rows largest magnitude first. Earthquakes of the same magnitude stay most recent
+     * first, as in the time index.
+     */
+    private RowComparator byMagnitude() {
+        return new RowComparator() {
+            @Override
+            public int compare(int first, int second) {
+                int order = Double.compare(mStore.getMagnitude(second),
+                        mStore.getMagnitude(first));
+                return order != 0 ? order : compareDescending(mStore.getTimeInMills(first),
+                        mStore.getTimeInMills(second));
+            }
+        };
+    }
+
+    /*
+     * Return the numbers from to to - 1 sorted with the given comparator.
+     *
+     * This is a stable, bottom-up merge sort over an int[], so no row is boxed. Two runs that are
+     * already in order are not merged, which makes the sort linear on sorted input.
+     */
+    private int[] sortRows(int from, int to, RowComparator comparator) {
+        int size = to - from;
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = from + i;
+        }
+
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int low = 0; low < size - width; low += 2 * width) {
+                int middle = low + width;
+                int high = Math.min(middle + width, size);
+                if (comparator.compare(rows[middle - 1], rows[middle]) > 0) {
+                    merge(rows, buffer, low, middle, high, comparator);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /*
+     * Return the rows of two sorted indexes merged into one, taking from the first on ties. The
+     * rows of the first come before those of the second in the store, so the merge is as
+     * stable as sorting them all.
+     */
+    private static int[] mergeRows(int[] first, int[] second, RowComparator comparator) {
+        int[] rows = new int[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        int next = 0;
+        while (i < first.length && j < second.length) {
+            if (comparator.compare(second[j], first[i]) < 0) {
+                rows[next++] = second[j++];
+            } else {
+                rows[next++] = first[i++];
+            }
+        }
+        System.arraycopy(first, i, rows, next, first.length - i);
+        System.arraycopy(second, j, rows, next + first.length - i, second.length - j);
+        return rows;
+    }
+
+    /*
+     * Merge the sorted runs rows[low..middle) and rows[middle..high) in place, taking from the
+     * first run on ties. The first run is moved to the buffer while merging.
+     */
+    private static void merge(int[] rows, int[] buffer, int low, int middle, int high,
+                              RowComparator comparator) {
+        System.arraycopy(rows, low, buffer, low, middle - low);
+        int first = low;
+        int second = middle;
+        int next = low;
+        while (first < middle && second < high) {
+            if (comparator.compare(rows[second], buffer[first]) < 0) {
+                rows[next++] = rows[second++];
+            } else {
+                rows[next++] = buffer[first++];
+            }
+        }
+        System.arraycopy(buffer, first, rows, next, middle - first);
+    }
+
+    /*
+     * Return the number of leading rows of the magnitude index whose magnitude is above the given
+     * one, or at least the given one if orEqual is true.
+     */
+    private int countMagnitudesAbove(int[] order, double magnitude, boolean orEqual) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            double rowMagnitude = mStore.getMagnitude(order[middle]);
+            if (rowMagnitude > magnitude || (orEqual && rowMagnitude == magnitude)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Return the number of leading rows of the time index whose time is after the given one, or
+     * at the given one if orEqual is true.
+     */
+    private int countTimesAbove(int[] order, long timeInMills, boolean orEqual) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long rowTime = mStore.getTimeInMills(order[middle]);
+            if (rowTime > timeInMills || (orEqual && rowTime == timeInMills)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compareDescending(long first, long second) {
+        return first > second ? -1 : (first == second ? 0 : 1);
+    }
+
+    private static boolean isBetween(double value, double min, double max) {
+        return value >= min && value <= max;
+    }
+
+    /*
+     * Return true if text contains part, ignoring case, without allocating.
+     */
+    private static boolean containsIgnoreCase(String text, String part) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0; i + part.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Orders two rows of the store without boxing them.
+     */
+    private interface RowComparator {
+        int compare(int first, int second);
+    }
+
+    /*
+     * Checks a row against the filters of a query that its sort key range does not cover. The
+     * query's values are copied, since the query may change after the selection is made.
+     */
+    private static final class QueryFilter implements EarthquakeSelection.RowFilter {
+        private final EarthquakeStore mStore;
+        private final boolean mFilterMagnitude;
+        private final double mMinMagnitude;
+        private final double mMaxMagnitude;
+        private final boolean mFilterTime;
+        private final long mStartTimeInMills;
+        private final long mEndTimeInMills;
+        private final String mPlaceText;
+
+        QueryFilter(EarthquakeStore store, EarthquakeQuery query, boolean filterMagnitude,
+                    boolean filterTime) {
+            mStore = store;
+            mFilterMagnitude = filterMagnitude;
+            mMinMagnitude = query.getMinMagnitude();
+            mMaxMagnitude = query.getMaxMagnitude();
+            mFilterTime = filterTime;
+            mStartTimeInMills = query.getStartTimeInMills();
+            mEndTimeInMills = query.getEndTimeInMills();
+            mPlaceText = query.getPlaceText();
+        }
+
+        @Override
+        public boolean matches(int row) {
+            if (mFilterMagnitude
+                    && !isBetween(mStore.getMagnitude(row), mMinMagnitude, mMaxMagnitude)) {
+                return false;
+            }
+            if (mFilterTime && (mStore.getTimeInMills(row) < mStartTimeInMills
+                    || mStore.getTimeInMills(row) > mEndTimeInMills)) {
+                return false;
+            }
+            return mPlaceText == null || containsIgnoreCase(mStore.getLocation(row), mPlaceText);
+        }
+    }
+}
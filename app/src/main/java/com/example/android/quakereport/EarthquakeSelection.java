@@ -0,0 +1,177 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * Read-only view of some of the rows of an {@link EarthquakeStore}, in a given order.
+ *
+ * A selection is only a range of row numbers into the store; no earthquake is copied. The range
+ * points straight into one of the sorted indexes of the {@link EarthquakeQueryEngine}. When the
+ * query also filters on more than its sort key, the rows of the range are checked against a
+ * {@link RowFilter}: they are counted once up front, and the matching rows are only looked up
+ * as far as the positions read so far, so a list that shows the first screen of a large result
+ * does not copy the rest of it. The getters take a position in the selection and read the
+ * matching row of the store.
+ *
+ * A selection may be read from several threads, e.g. by the list and by a diff in the background.
+ */
+public final class EarthquakeSelection {
+
+    private final EarthquakeStore mStore;
+
+    // Row numbers of the store; the selection is the rows of mRows[mFrom] to mRows[mTo - 1]
+    // that match mFilter, or all of them if mFilter is null
+    private final int[] mRows;
+    private final int mFrom;
+    private final int mTo;
+    private final RowFilter mFilter;
+
+    private final int mSize;
+
+    // Matching rows found so far, when there is a filter. The array is replaced, never shrunk,
+    // before mMatchCount is raised, so a reader that sees a count sees the rows up to it.
+    private int[] mMatches;
+    private volatile int mMatchCount;
+
+    // Index into mRows where the search for the next match resumes; guarded by this
+    private int mNextIndex;
+
+    /*
+     * Constructs a new {@link EarthquakeSelection} of the rows of rows[from] to rows[to - 1] that
+     * match the given filter, or of all of them if the filter is null.
+     */
+    EarthquakeSelection(EarthquakeStore store, int[] rows, int from, int to, RowFilter filter) {
+        mStore = store;
+        mRows = rows;
+        mFrom = from;
+        mTo = to;
+        mFilter = filter;
+
+        if (filter == null) {
+            mSize = to - from;
+        } else {
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                if (filter.matches(rows[i])) {
+                    size++;
+                }
+            }
+            mSize = size;
+            mMatches = new int[Math.min(size, 64)];
+            mNextIndex = from;
+        }
+    }
+
+    /*
+     * Return the store the selected rows belong to.
+     */
+    public EarthquakeStore getStore() {
+        return mStore;
+    }
+
+    /*
+     * Return the number of selected earthquakes.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /*
+     * Return true if no earthquake is selected.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /*
+     * Return the row of the store at the given position of the selection.
+     */
+    public int getRow(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + mSize);
+        }
+        if (mFilter == null) {
+            return mRows[mFrom + position];
+        }
+        if (position < mMatchCount) {
+            return mMatches[position];
+        }
+        return findMatch(position);
+    }
+
+    /*
+     * Look up the matching rows up to the given position, and return the row at it.
+     */
+    private synchronized int findMatch(int position) {
+        int count = mMatchCount;
+        if (position >= count) {
+            int[] matches = mMatches;
+            if (position >= matches.length) {
+                matches = Arrays.copyOf(matches, Math.min(mSize,
+                        Math.max(position + 1, matches.length * 2)));
+            }
+            int index = mNextIndex;
+            while (count <= position && index < mTo) {
+                int row = mRows[index++];
+                if (mFilter.matches(row)) {
+                    matches[count++] = row;
+                }
+            }
+            mNextIndex = index;
+            mMatches = matches;
+            mMatchCount = count;
+        }
+        return mMatches[position];
+    }
+
+    /*
+     * Getters for the earthquake at a single position of the selection
+     */
+
+    public String getId(int position) {
+        return mStore.getId(getRow(position));
+    }
+
+    public double getMagnitude(int position) {
+        return mStore.getMagnitude(getRow(position));
+    }
+
+    public long getTimeInMills(int position) {
+        return mStore.getTimeInMills(getRow(position));
+    }
+
+    public String getLocation(int position) {
+        return mStore.getLocation(getRow(position));
+    }
+
+    public String getUrl(int position) {
+        return mStore.getUrl(getRow(position));
+    }
+
+    public String getMagnitudeText(int position) {
+        return mStore.getMagnitudeText(getRow(position));
+    }
+
+    public String getDateText(int position) {
+        return mStore.getDateText(getRow(position));
+    }
+
+    public String getTimeText(int position) {
+        return mStore.getTimeText(getRow(position));
+    }
+
+    public String getLocationOffset(int position) {
+        return mStore.getLocationOffset(getRow(position));
+    }
+
+    public String getLocationPrimary(int position) {
+        return mStore.getLocationPrimary(getRow(position));
+    }
+
+    /*
+     * Decides which rows of the range belong to a selection.
+     */
+    interface RowFilter {
+        boolean matches(int row);
+    }
+}
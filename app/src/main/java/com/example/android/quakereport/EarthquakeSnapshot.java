@@ -0,0 +1,169 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Binary snapshot of the last loaded {@link EarthquakeStore}, so the list can be shown right
+ * after startup without parsing JSON or querying the database.
+ *
+ * The file starts with a header (magic number, format version, and the time zone and locale the
+ * display text was formatted in), followed by the store itself: a table of the distinct strings,
+ * then one fixed-width column per field (see {@link EarthquakeStore#writeSnapshot}). The file is
+ * memory-mapped for reading and the columns are copied out in bulk.
+ *
+ * A snapshot written by another format version, or in another time zone or locale, is ignored.
+ */
+public final class EarthquakeSnapshot {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakeSnapshot.class.getSimpleName();
+
+    /* Name of the snapshot file, inside the app's cache directory */
+    private static final String FILE_NAME = "earthquakes.snapshot";
+
+    /* Suffix of the files a snapshot is written to before it replaces the last one */
+    private static final String TEMP_SUFFIX = ".snapshot.tmp";
+
+    /* First bytes of every snapshot file ("QKSN") */
+    private static final int MAGIC = 0x514b534e;
+
+    /* Version of the file format. If you change the format, or how the stored display text is
+     * derived (e.g. the location split), you must increment the version. */
+    private static final int VERSION = 3;
+
+    // Serializes replacing the snapshot, so two loaders finishing together cannot interleave
+    private static final Object sWriteLock = new Object();
+
+    /**
+     * Create a private constructor because no one should ever create a {@link EarthquakeSnapshot}
+     * object. This class is only meant to hold static methods.
+     */
+    private EarthquakeSnapshot() {
+    }
+
+    /*
+     * Replace the snapshot with the given earthquakes. The file is written aside, to a temporary
+     * file of its own, and then renamed, so a reader never sees half of it. Writers take turns,
+     * so the snapshot is the one written last.
+     */
+    public static void write(Context context, EarthquakeStore earthquakes) {
+        File file = getFile(context);
+
+        long startTime = LoadMetrics.startTimer();
+        synchronized (sWriteLock) {
+            deleteTempFiles(file.getParentFile());
+
+            File tempFile = null;
+            DataOutputStream output = null;
+            try {
+                tempFile = File.createTempFile(FILE_NAME, TEMP_SUFFIX, file.getParentFile());
+                output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile)));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                StringDictionary.writeString(output, TimeZone.getDefault().getID());
+                StringDictionary.writeString(output, Locale.getDefault().toString());
+                earthquakes.writeSnapshot(output);
+                output.close();
+                output = null;
+
+                if (!tempFile.renameTo(file)) {
+                    Log.e(LOG_TAG, "Could not replace the earthquake snapshot");
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem writing the earthquake snapshot", e);
+            } finally {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        // Nothing useful to do
+                    }
+                }
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+            }
+        }
+        LoadMetrics.getInstance().stopTimer(LoadMetrics.STAGE_SNAPSHOT_WRITE, startTime);
+    }
+
+    /*
+     * Return the earthquakes in the snapshot, or null if there is no usable snapshot.
+     */
+    public static EarthquakeStore read(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long startTime = LoadMetrics.startTimer();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            String timeZone = StringDictionary.readString(buffer);
+            String locale = StringDictionary.readString(buffer);
+            if (!TimeZone.getDefault().getID().equals(timeZone)
+                    || !Locale.getDefault().toString().equals(locale)) {
+                return null;
+            }
+
+            EarthquakeStore earthquakes = EarthquakeStore.readSnapshot(buffer);
+            LoadMetrics.getInstance().stopTimer(LoadMetrics.STAGE_SNAPSHOT_READ, startTime);
+            return earthquakes;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            Log.e(LOG_TAG, "Problem reading the earthquake snapshot", e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Nothing useful to do
+                }
+            }
+        }
+    }
+
+    /*
+     * Delete the temporary files left behind by writes that never finished, e.g. because the
+     * process was killed. Must be called with sWriteLock held.
+     */
+    private static void deleteTempFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_NAME) && file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+}
@@ -0,0 +1,444 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rollups over a set of earthquakes, kept up to date as earthquakes are added, updated or
+ * removed, so reading them never scans the earthquakes:
+ *
+ * - the number of earthquakes per magnitude bucket, the same buckets as the list colors (see
+ *   {@link EarthquakeFormatter#getMagnitudeBucket})
+ * - the number of earthquakes per hour and per day (in UTC)
+ * - the largest magnitude per region, the last part of the location after its last comma (e.g.
+ *   "Chile" for "76 km SSE of Iquique, Chile")
+ *
+ * Earthquakes are keyed by their USGS event id; adding an id again replaces the earlier values.
+ * Earthquakes without an id cannot be updated, so they are left out.
+ *
+ * Keeping the values of every id costs as much memory as the earthquakes themselves, so rollups
+ * kept alongside a large set (see {@link EarthquakeCache#getStatistics()}) drop them with
+ * {@link #dropEvents()}, and are also what {@link #read(ByteBuffer)} returns. Their owner then
+ * knows which earthquakes are counted, and takes out the ones that change or go with
+ * {@link #subtract(EarthquakeStore, int)}.
+ *
+ * {@link #compute(EarthquakeStore, int)} builds the rollups of a large set of earthquakes on
+ * several threads. The rollups are safe to use from several threads.
+ */
+public final class EarthquakeStatistics {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakeStatistics.class.getSimpleName();
+
+    private static final long HOUR_IN_MILLS = 60 * 60 * 1000;
+    private static final long DAY_IN_MILLS = 24 * HOUR_IN_MILLS;
+
+    /* Smallest number of earthquakes given to each thread by {@link #compute} */
+    private static final int MIN_ROWS_PER_THREAD = 5000;
+
+    // Values counted for each event id, so they can be taken out again when it changes, or null
+    // once the owner of the rollups keeps track of them instead
+    private Map<String, Event> mEvents;
+
+    // Number of earthquakes counted
+    private int mSize;
+
+    private final long[] mMagnitudeCounts = new long[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+
+    // Number of earthquakes keyed by the start time (in milliseconds) of their hour or day
+    private final TreeMap<Long, Integer> mHourlyCounts = new TreeMap<>();
+    private final TreeMap<Long, Integer> mDailyCounts = new TreeMap<>();
+
+    // Magnitudes in each region, as a multiset from magnitude to the number of earthquakes.
+    // Regions without earthquakes are left out.
+    private final Map<String, TreeMap<Double, Integer>> mRegionMagnitudes = new HashMap<>();
+
+    public EarthquakeStatistics() {
+        this(true);
+    }
+
+    private EarthquakeStatistics(boolean keyed) {
+        mEvents = keyed ? new HashMap<String, Event>() : null;
+    }
+
+    /*
+     * Return the rollups of the given earthquakes, computed on up to parallelism threads.
+     * Each thread rolls up its own range of the earthquakes, and the results are then merged.
+     */
+    public static EarthquakeStatistics compute(final EarthquakeStore earthquakes,
+                                               int parallelism) {
+        int size = earthquakes.size();
+        int threads = Math.max(1, Math.min(parallelism, size / MIN_ROWS_PER_THREAD));
+        if (threads == 1) {
+            EarthquakeStatistics statistics = new EarthquakeStatistics();
+            statistics.addAll(earthquakes, 0, size);
+            return statistics;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<EarthquakeStatistics>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int from = (int) ((long) size * i / threads);
+            final int to = (int) ((long) size * (i + 1) / threads);
+            futures.add(executor.submit(new Callable<EarthquakeStatistics>() {
+                @Override
+                public EarthquakeStatistics call() {
+                    EarthquakeStatistics statistics = new EarthquakeStatistics();
+                    statistics.addAll(earthquakes, from, to);
+                    return statistics;
+                }
+            }));
+        }
+
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        try {
+            for (Future<EarthquakeStatistics> future : futures) {
+                statistics.merge(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem computing earthquake statistics", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return statistics;
+    }
+
+    /*
+     * Add the earthquake at the given index of the store, replacing any earlier earthquake with
+     * the same id.
+     */
+    public synchronized void add(EarthquakeStore earthquakes, int index) {
+        add(earthquakes, index, getRegion(earthquakes.getLocationPrimary(index)));
+    }
+
+    private void add(EarthquakeStore earthquakes, int index, String region) {
+        String id = earthquakes.getId(index);
+        if (id == null) {
+            return;
+        }
+        Event event = new Event(earthquakes.getMagnitude(index), earthquakes.getTimeInMills(index),
+                earthquakes.getUpdatedInMills(index), region);
+        Event previous = mEvents != null ? mEvents.put(id, event) : null;
+        if (previous != null) {
+            count(previous, -1);
+        }
+        count(event, 1);
+    }
+
+    /*
+     * Add every earthquake in the store, replacing earlier earthquakes with the same ids.
+     */
+    public void addAll(EarthquakeStore earthquakes) {
+        addAll(earthquakes, 0, earthquakes.size());
+    }
+
+    /*
+     * Add the earthquakes in the given range of rows. The store's dictionary is shared by every
+     * thread of {@link #compute}, so each distinct location of the range is decoded only once.
+     */
+    private synchronized void addAll(EarthquakeStore earthquakes, int from, int to) {
+        Map<Integer, String> regions = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            int code = earthquakes.getLocationPrimaryCode(i);
+            String region = regions.get(code);
+            if (region == null && !regions.containsKey(code)) {
+                region = getRegion(earthquakes.decode(code));
+                regions.put(code, region);
+            }
+            add(earthquakes, i, region);
+        }
+    }
+
+    /*
+     * Remove the earthquake with the given id, if there is one. Only for rollups keyed by id.
+     */
+    public synchronized void remove(String id) {
+        if (mEvents == null) {
+            throw new IllegalStateException("The rollups are not keyed by id");
+        }
+        Event previous = mEvents.remove(id);
+        if (previous != null) {
+            count(previous, -1);
+        }
+    }
+
+    /*
+     * Take the earthquake at the given index of the store out of the rollups. Rollups keyed by
+     * id take out whatever was counted for its id; the others take out the values of the row,
+     * which must be ones that were added.
+     */
+    synchronized void subtract(EarthquakeStore earthquakes, int index) {
+        String id = earthquakes.getId(index);
+        if (id == null) {
+            return;
+        }
+        if (mEvents != null) {
+            remove(id);
+            return;
+        }
+        count(new Event(earthquakes.getMagnitude(index), earthquakes.getTimeInMills(index),
+                earthquakes.getUpdatedInMills(index),
+                getRegion(earthquakes.getLocationPrimary(index))), -1);
+    }
+
+    /*
+     * Stop keeping the values of every id, leaving only the rollups themselves. Afterwards
+     * earthquakes are taken out with {@link #subtract(EarthquakeStore, int)}.
+     */
+    synchronized void dropEvents() {
+        mEvents = null;
+    }
+
+    /*
+     * Return the number of earthquakes.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /*
+     * Return the number of earthquakes in each magnitude bucket, indexed by bucket.
+     */
+    public synchronized long[] getMagnitudeCounts() {
+        return Arrays.copyOf(mMagnitudeCounts, mMagnitudeCounts.length);
+    }
+
+    /*
+     * Return the number of earthquakes per hour between the given times (in milliseconds),
+     * keyed by the start time of the hour. Hours without earthquakes are left out.
+     */
+    public synchronized SortedMap<Long, Integer> getHourlyCounts(long fromInMills,
+                                                                 long toInMills) {
+        return new TreeMap<>(mHourlyCounts.subMap(
+                getBucketStart(fromInMills, HOUR_IN_MILLS), toInMills));
+    }
+
+    /*
+     * Return the number of earthquakes per UTC day between the given times (in milliseconds),
+     * keyed by the start time of the day. Days without earthquakes are left out.
+     */
+    public synchronized SortedMap<Long, Integer> getDailyCounts(long fromInMills, long toInMills) {
+        return new TreeMap<>(mDailyCounts.subMap(
+                getBucketStart(fromInMills, DAY_IN_MILLS), toInMills));
+    }
+
+    /*
+     * Return the largest magnitude in the given region, or NaN if it has no earthquakes.
+     */
+    public synchronized double getMaxMagnitude(String region) {
+        TreeMap<Double, Integer> magnitudes = mRegionMagnitudes.get(region);
+        return magnitudes == null || magnitudes.isEmpty() ? Double.NaN : magnitudes.lastKey();
+    }
+
+    /*
+     * Return the largest magnitude of every region that has earthquakes.
+     */
+    public synchronized Map<String, Double> getMaxMagnitudes() {
+        Map<String, Double> maxMagnitudes = new HashMap<>(mRegionMagnitudes.size());
+        for (Map.Entry<String, TreeMap<Double, Integer>> entry : mRegionMagnitudes.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                maxMagnitudes.put(entry.getKey(), entry.getValue().lastKey());
+            }
+        }
+        return maxMagnitudes;
+    }
+
+    /*
+     * Add the rollups of another set of earthquakes to these. Where both have the same id,
+     * the earthquake updated last is kept. Both rollups must be keyed by id.
+     */
+    private synchronized void merge(EarthquakeStatistics other) {
+        // Every count of the other rollups is added first, so taking out the earthquakes both
+        // have never drops a count below 0
+        mSize += other.mSize;
+        for (int i = 0; i < mMagnitudeCounts.length; i++) {
+            mMagnitudeCounts[i] += other.mMagnitudeCounts[i];
+        }
+        for (Map.Entry<Long, Integer> entry : other.mHourlyCounts.entrySet()) {
+            increment(mHourlyCounts, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Long, Integer> entry : other.mDailyCounts.entrySet()) {
+            increment(mDailyCounts, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, TreeMap<Double, Integer>> region
+                : other.mRegionMagnitudes.entrySet()) {
+            for (Map.Entry<Double, Integer> entry : region.getValue().entrySet()) {
+                increment(getRegionMagnitudes(region.getKey()), entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Event> entry : other.mEvents.entrySet()) {
+            Event event = entry.getValue();
+            Event previous = mEvents.put(entry.getKey(), event);
+            if (previous == null) {
+                continue;
+            }
+            if (previous.updatedInMills > event.updatedInMills) {
+                mEvents.put(entry.getKey(), previous);
+                count(event, -1);
+            } else {
+                count(previous, -1);
+            }
+        }
+    }
+
+    /*
+     * Write the rollups, without the values of each id, for {@link #read(ByteBuffer)}.
+     */
+    synchronized void write(DataOutputStream output) throws IOException {
+        output.writeInt(mSize);
+        output.writeInt(mMagnitudeCounts.length);
+        for (long count : mMagnitudeCounts) {
+            output.writeLong(count);
+        }
+        writeCounts(output, mHourlyCounts);
+        writeCounts(output, mDailyCounts);
+        output.writeInt(mRegionMagnitudes.size());
+        for (Map.Entry<String, TreeMap<Double, Integer>> region : mRegionMagnitudes.entrySet()) {
+            StringDictionary.writeString(output, region.getKey());
+            output.writeInt(region.getValue().size());
+            for (Map.Entry<Double, Integer> entry : region.getValue().entrySet()) {
+                output.writeDouble(entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+        }
+    }
+
+    /*
+     * Read rollups written by {@link #write}. They are not keyed by id.
+     *
+     * @throws IllegalArgumentException or BufferUnderflowException if the data is malformed
+     */
+    static EarthquakeStatistics read(ByteBuffer buffer) {
+        EarthquakeStatistics statistics = new EarthquakeStatistics(false);
+        statistics.mSize = buffer.getInt();
+        if (buffer.getInt() != statistics.mMagnitudeCounts.length) {
+            throw new IllegalArgumentException("Magnitude buckets changed");
+        }
+        for (int i = 0; i < statistics.mMagnitudeCounts.length; i++) {
+            statistics.mMagnitudeCounts[i] = buffer.getLong();
+        }
+        readCounts(buffer, statistics.mHourlyCounts);
+        readCounts(buffer, statistics.mDailyCounts);
+        int regionCount = buffer.getInt();
+        for (int i = 0; i < regionCount; i++) {
+            TreeMap<Double, Integer> magnitudes =
+                    statistics.getRegionMagnitudes(StringDictionary.readString(buffer));
+            int magnitudeCount = buffer.getInt();
+            for (int j = 0; j < magnitudeCount; j++) {
+                magnitudes.put(buffer.getDouble(), buffer.getInt());
+            }
+        }
+        return statistics;
+    }
+
+    private static void writeCounts(DataOutputStream output, TreeMap<Long, Integer> counts)
+            throws IOException {
+        output.writeInt(counts.size());
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            output.writeLong(entry.getKey());
+            output.writeInt(entry.getValue());
+        }
+    }
+
+    private static void readCounts(ByteBuffer buffer, TreeMap<Long, Integer> counts) {
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++) {
+            counts.put(buffer.getLong(), buffer.getInt());
+        }
+    }
+
+    /*
+     * Add (for a delta of 1) or take out (for -1) an earthquake from every rollup.
+     */
+    private void count(Event event, int delta) {
+        mSize += delta;
+        mMagnitudeCounts[EarthquakeFormatter.getMagnitudeBucket(event.magnitude)] += delta;
+        increment(mHourlyCounts, getBucketStart(event.timeInMills, HOUR_IN_MILLS), delta);
+        increment(mDailyCounts, getBucketStart(event.timeInMills, DAY_IN_MILLS), delta);
+
+        if (event.region != null) {
+            TreeMap<Double, Integer> magnitudes = getRegionMagnitudes(event.region);
+            increment(magnitudes, event.magnitude, delta);
+            if (magnitudes.isEmpty()) {
+                mRegionMagnitudes.remove(event.region);
+            }
+        }
+    }
+
+    private TreeMap<Double, Integer> getRegionMagnitudes(String region) {
+        TreeMap<Double, Integer> magnitudes = mRegionMagnitudes.get(region);
+        if (magnitudes == null) {
+            magnitudes = new TreeMap<>();
+            mRegionMagnitudes.put(region, magnitudes);
+        }
+        return magnitudes;
+    }
+
+    /*
+     * Add delta to the count of the given key, removing the key once its count drops to 0.
+     */
+    private static <K> void increment(Map<K, Integer> counts, K key, int delta) {
+        Integer count = counts.get(key);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, newCount);
+        }
+    }
+
+    /*
+     * Return the region of the primary part of a location: the text after its last comma (e.g.
+     * "Chile" for "Iquique, Chile"), or the whole of it if it has no comma (e.g. "Fiji region").
+     * Returns null for an empty location.
+     */
+    static String getRegion(String primaryLocation) {
+        if (primaryLocation == null) {
+            return null;
+        }
+        String region = primaryLocation.substring(primaryLocation.lastIndexOf(',') + 1).trim();
+        return region.isEmpty() ? null : region;
+    }
+
+    /*
+     * Return the start of the hour or day (of the given length) holding the given time.
+     */
+    private static long getBucketStart(long timeInMills, long bucketLength) {
+        return timeInMills - ((timeInMills % bucketLength) + bucketLength) % bucketLength;
+    }
+
+    /*
+     * Values of one earthquake that the rollups depend on.
+     */
+    private static final class Event {
+        final double magnitude;
+        final long timeInMills;
+        final long updatedInMills;
+        final String region;
+
+        Event(double magnitude, long timeInMills, long updatedInMills, String region) {
+            this.magnitude = magnitude;
+            this.timeInMills = timeInMills;
+            this.updatedInMills = updatedInMills;
+            this.region = region;
+        }
+    }
+}
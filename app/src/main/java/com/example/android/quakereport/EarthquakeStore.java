@@ -0,0 +1,711 @@
+package com.example.android.quakereport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact, column-oriented store of earthquakes.
+ *
+ * Instead of one {@link Earthquake} object per event, every field lives in its own primitive
+ * array and strings are dictionary-encoded. Rows are read by index through the getters, so the
+ * list can be bound without materializing {@link Earthquake} objects.
+ *
+ * The text shown in the list (magnitude, date and time) is formatted once, when a row is added,
+ * and the location is kept already split into its offset and primary parts, so binding a row
+ * does no formatting at all. These values repeat heavily across earthquakes and go through the
+ * same dictionary.
+ *
+ * Most URLs are the USGS event page of the event id, so those are not stored: a row with an id
+ * and no URL of its own links to its event page, and the URL is only built when asked for.
+ *
+ * The epicenters are indexed in a {@link SpatialIndex}, so earthquakes near a point or inside a
+ * bounding box are found without scanning every row. The index is only built by the first such
+ * query, and then kept up to date as rows are added, so stores that are never queried by
+ * location do not pay for it.
+ *
+ * A store is not thread-safe. A loader builds a store on its background thread and then hands
+ * it over to the UI thread, which only reads from it. To keep appending to a store it has
+ * handed over, the loader hands over a {@link #view()} of it instead.
+ */
+public final class EarthquakeStore {
+
+    /* Page of an event on the USGS website, followed by the event id */
+    static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    /* Initial number of rows a new store has room for */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Number of earthquakes in the store
+    private int mSize;
+
+    /* Columns, one entry per earthquake */
+    private String[] mIds;
+    private double[] mMagnitudes;
+    private long[] mTimesInMills;
+    private long[] mUpdatedInMills;
+    private int[] mLocationCodes;
+    // Full URL, or null for the event page of the row's id
+    private String[] mUrls;
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private double[] mDepths;
+
+    /* Columns of text formatted for display, as dictionary codes */
+    private int[] mMagnitudeTextCodes;
+    private int[] mDateTextCodes;
+    private int[] mTimeTextCodes;
+    private int[] mLocationOffsetCodes;
+    private int[] mLocationPrimaryCodes;
+
+    // Dictionary for all string columns, shared with stores copied from this one and with
+    // merges that only add rows
+    private final StringDictionary mStrings;
+
+    // Grid of the rows by epicenter; built on the first spatial query by the thread querying
+    private SpatialIndex mSpatialIndex;
+
+    // Formats the display text of added rows; created on first use by the building thread
+    private EarthquakeFormatter mFormatter;
+
+    // Row index of each event id; built on first use by the thread that merges into the store
+    private Map<String, Integer> mIdIndex;
+
+    // True while the columns are shared with the store this one is a view of
+    private boolean mSharesColumns;
+
+    /*
+     * Constructs a new, empty {@link EarthquakeStore}.
+     */
+    public EarthquakeStore() {
+        this(DEFAULT_CAPACITY, new StringDictionary());
+    }
+
+    /*
+     * Constructs a new {@link EarthquakeStore} holding a copy of the rows in the given store.
+     */
+    public EarthquakeStore(EarthquakeStore other) {
+        this(Math.max(other.mSize, DEFAULT_CAPACITY), other.mStrings);
+        mSize = other.mSize;
+        System.arraycopy(other.mIds, 0, mIds, 0, mSize);
+        System.arraycopy(other.mMagnitudes, 0, mMagnitudes, 0, mSize);
+        System.arraycopy(other.mTimesInMills, 0, mTimesInMills, 0, mSize);
+        System.arraycopy(other.mUpdatedInMills, 0, mUpdatedInMills, 0, mSize);
+        System.arraycopy(other.mLocationCodes, 0, mLocationCodes, 0, mSize);
+        System.arraycopy(other.mUrls, 0, mUrls, 0, mSize);
+        System.arraycopy(other.mLatitudes, 0, mLatitudes, 0, mSize);
+        System.arraycopy(other.mLongitudes, 0, mLongitudes, 0, mSize);
+        System.arraycopy(other.mDepths, 0, mDepths, 0, mSize);
+        System.arraycopy(other.mMagnitudeTextCodes, 0, mMagnitudeTextCodes, 0, mSize);
+        System.arraycopy(other.mDateTextCodes, 0, mDateTextCodes, 0, mSize);
+        System.arraycopy(other.mTimeTextCodes, 0, mTimeTextCodes, 0, mSize);
+        System.arraycopy(other.mLocationOffsetCodes, 0, mLocationOffsetCodes, 0, mSize);
+        System.arraycopy(other.mLocationPrimaryCodes, 0, mLocationPrimaryCodes, 0, mSize);
+    }
+
+    private EarthquakeStore(int capacity, StringDictionary strings) {
+        mIds = new String[capacity];
+        mMagnitudes = new double[capacity];
+        mTimesInMills = new long[capacity];
+        mUpdatedInMills = new long[capacity];
+        mLocationCodes = new int[capacity];
+        mUrls = new String[capacity];
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mDepths = new double[capacity];
+        mMagnitudeTextCodes = new int[capacity];
+        mDateTextCodes = new int[capacity];
+        mTimeTextCodes = new int[capacity];
+        mLocationOffsetCodes = new int[capacity];
+        mLocationPrimaryCodes = new int[capacity];
+        mStrings = strings;
+    }
+
+    /*
+     * Return a store of the rows this store holds now, sharing its columns instead of copying
+     * them. Rows appended to this store afterwards are written past the end of the view, so a
+     * loader can keep appending pages while the UI thread reads the view. A view copies the
+     * columns before anything is appended to it.
+     */
+    public EarthquakeStore view() {
+        EarthquakeStore view = new EarthquakeStore(0, mStrings);
+        view.mSize = mSize;
+        view.mIds = mIds;
+        view.mMagnitudes = mMagnitudes;
+        view.mTimesInMills = mTimesInMills;
+        view.mUpdatedInMills = mUpdatedInMills;
+        view.mLocationCodes = mLocationCodes;
+        view.mUrls = mUrls;
+        view.mLatitudes = mLatitudes;
+        view.mLongitudes = mLongitudes;
+        view.mDepths = mDepths;
+        view.mMagnitudeTextCodes = mMagnitudeTextCodes;
+        view.mDateTextCodes = mDateTextCodes;
+        view.mTimeTextCodes = mTimeTextCodes;
+        view.mLocationOffsetCodes = mLocationOffsetCodes;
+        view.mLocationPrimaryCodes = mLocationPrimaryCodes;
+        view.mSharesColumns = true;
+        return view;
+    }
+
+    /*
+     * Return the number of earthquakes in the store.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /*
+     * Return true if the store holds no earthquakes.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /*
+     * Append an earthquake to the end of the store.
+     */
+    public void add(Earthquake earthquake) {
+        ensureCapacity(mSize + 1);
+        if (mFormatter == null) {
+            mFormatter = new EarthquakeFormatter();
+        }
+
+        double magnitude = earthquake.getMagnitude();
+        String location = earthquake.getLocation();
+        long timeInMills = earthquake.getTimeInMills();
+
+        mIds[mSize] = earthquake.getId();
+        mMagnitudes[mSize] = magnitude;
+        mTimesInMills[mSize] = timeInMills;
+        mUpdatedInMills[mSize] = earthquake.getUpdatedInMills();
+        mLocationCodes[mSize] = mStrings.encode(location);
+        mUrls[mSize] = compactUrl(earthquake.getId(), earthquake.getUrl());
+        mLatitudes[mSize] = earthquake.getLatitude();
+        mLongitudes[mSize] = earthquake.getLongitude();
+        mDepths[mSize] = earthquake.getDepth();
+        mMagnitudeTextCodes[mSize] = mStrings.encode(mFormatter.formatMagnitude(magnitude));
+        mDateTextCodes[mSize] = mStrings.encode(mFormatter.formatDate(timeInMills));
+        mTimeTextCodes[mSize] = mStrings.encode(mFormatter.formatTime(timeInMills));
+        mLocationOffsetCodes[mSize] = mStrings.encode(earthquake.getLocationOffset());
+        mLocationPrimaryCodes[mSize] = mStrings.encode(earthquake.getLocationPrimary());
+        indexAdded();
+    }
+
+    /*
+     * Append a copy of the given row of another store to the end of this store.
+     */
+    public void add(EarthquakeStore other, int index) {
+        other.checkIndex(index);
+        ensureCapacity(mSize + 1);
+
+        mIds[mSize] = other.mIds[index];
+        mMagnitudes[mSize] = other.mMagnitudes[index];
+        mTimesInMills[mSize] = other.mTimesInMills[index];
+        mUpdatedInMills[mSize] = other.mUpdatedInMills[index];
+        mUrls[mSize] = other.mUrls[index];
+        mLatitudes[mSize] = other.mLatitudes[index];
+        mLongitudes[mSize] = other.mLongitudes[index];
+        mDepths[mSize] = other.mDepths[index];
+        mLocationCodes[mSize] = copyCode(other, other.mLocationCodes[index]);
+        mMagnitudeTextCodes[mSize] = copyCode(other, other.mMagnitudeTextCodes[index]);
+        mDateTextCodes[mSize] = copyCode(other, other.mDateTextCodes[index]);
+        mTimeTextCodes[mSize] = copyCode(other, other.mTimeTextCodes[index]);
+        mLocationOffsetCodes[mSize] = copyCode(other, other.mLocationOffsetCodes[index]);
+        mLocationPrimaryCodes[mSize] = copyCode(other, other.mLocationPrimaryCodes[index]);
+        indexAdded();
+    }
+
+    /*
+     * Append all the rows of another store to the end of this store.
+     */
+    public void addAll(EarthquakeStore other) {
+        ensureCapacity(mSize + other.mSize);
+        for (int i = 0; i < other.mSize; i++) {
+            add(other, i);
+        }
+    }
+
+    /*
+     * Return the row index of the earthquake with the given event id, or -1 if there is none.
+     */
+    public int indexOf(String id) {
+        if (mIdIndex == null) {
+            mIdIndex = new HashMap<>(Math.max(mSize * 2, DEFAULT_CAPACITY));
+            for (int i = 0; i < mSize; i++) {
+                if (mIds[i] != null) {
+                    mIdIndex.put(mIds[i], i);
+                }
+            }
+        }
+        Integer index = mIdIndex.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /*
+     * Return a store with the new and updated earthquakes of the given delta merged into the rows
+     * of this store, keyed by event id. A row is replaced only if the delta has a newer "updated"
+     * time. Both stores are expected to be ordered by time, most recent first, and new earthquakes
+     * are inserted in that order.
+     *
+     * This store is left untouched. If the delta changes nothing, this store itself is returned,
+     * so an unchanged poll costs one lookup per delta row and no copying.
+     *
+     * A merge that replaces rows gives the merged store a dictionary of its own, holding only the
+     * strings its rows use, so the strings of replaced rows go away with the older stores
+     * instead of piling up in a dictionary every later merge shares. A merge that only adds
+     * rows keeps sharing it, as every string in it is still in use.
+     */
+    public EarthquakeStore merge(EarthquakeStore delta) {
+        // Row of this store -> row of the delta replacing it
+        Map<Integer, Integer> replacements = new HashMap<>();
+        List<Integer> additions = new ArrayList<>();
+
+        for (int i = 0; i < delta.mSize; i++) {
+            String id = delta.mIds[i];
+            if (id == null) {
+                continue;
+            }
+            int existing = indexOf(id);
+            if (existing < 0) {
+                additions.add(i);
+            } else if (delta.mUpdatedInMills[i] > mUpdatedInMills[existing]) {
+                replacements.put(existing, i);
+            }
+        }
+
+        if (replacements.isEmpty() && additions.isEmpty()) {
+            return this;
+        }
+
+        // Most recent additions first, matching the order of the rows
+        final EarthquakeStore source = delta;
+        Collections.sort(additions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstTime = source.mTimesInMills[first];
+                long secondTime = source.mTimesInMills[second];
+                return firstTime > secondTime ? -1 : (firstTime == secondTime ? 0 : 1);
+            }
+        });
+
+        EarthquakeStore merged = new EarthquakeStore(mSize + additions.size(),
+                replacements.isEmpty() ? mStrings : new StringDictionary());
+        int next = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (next < additions.size()
+                    && delta.mTimesInMills[additions.get(next)] > mTimesInMills[i]) {
+                merged.add(delta, additions.get(next++));
+            }
+            Integer replacement = replacements.get(i);
+            if (replacement != null) {
+                merged.add(delta, replacement);
+            } else {
+                merged.add(this, i);
+            }
+        }
+        while (next < additions.size()) {
+            merged.add(delta, additions.get(next++));
+        }
+        return merged;
+    }
+
+    /*
+     * Merge several stores, each ordered by time with the most recent first, into one store in
+     * the same order. Earthquakes appearing in more than one store are kept only once.
+     */
+    public static EarthquakeStore mergeSorted(List<EarthquakeStore> stores) {
+        int total = 0;
+        for (EarthquakeStore store : stores) {
+            total += store.mSize;
+        }
+
+        EarthquakeStore merged = new EarthquakeStore(Math.max(total, DEFAULT_CAPACITY),
+                stores.isEmpty() ? new StringDictionary() : stores.get(0).mStrings);
+        Set<String> seenIds = new HashSet<>(total * 2);
+
+        // Next row to take from each store
+        int[] positions = new int[stores.size()];
+        while (true) {
+            // Pick the store whose next row is the most recent
+            int next = -1;
+            long nextTime = Long.MIN_VALUE;
+            for (int i = 0; i < positions.length; i++) {
+                EarthquakeStore store = stores.get(i);
+                if (positions[i] < store.mSize
+                        && (next < 0 || store.mTimesInMills[positions[i]] > nextTime)) {
+                    next = i;
+                    nextTime = store.mTimesInMills[positions[i]];
+                }
+            }
+            if (next < 0) {
+                return merged;
+            }
+
+            EarthquakeStore store = stores.get(next);
+            int row = positions[next]++;
+            String id = store.mIds[row];
+            if (id == null || seenIds.add(id)) {
+                merged.add(store, row);
+            }
+        }
+    }
+
+    /*
+     * Write the rows of the store in the body format of an {@link EarthquakeSnapshot}: the row
+     * count, a table of the distinct strings the rows use, and then every column in turn, with
+     * strings written as their index in the table.
+     */
+    void writeSnapshot(DataOutputStream output) throws IOException {
+        // Number the strings in use from 0, leaving out the ones only older rows needed
+        StringDictionary strings = new StringDictionary();
+        int[] idCodes = new int[mSize];
+        int[] urlCodes = new int[mSize];
+        int[][] codeColumns = {mLocationCodes, mMagnitudeTextCodes, mDateTextCodes,
+                mTimeTextCodes, mLocationOffsetCodes, mLocationPrimaryCodes};
+        int[][] snapshotCodeColumns = new int[codeColumns.length][mSize];
+        for (int i = 0; i < mSize; i++) {
+            idCodes[i] = strings.encode(mIds[i]);
+            urlCodes[i] = strings.encode(mUrls[i]);
+            for (int column = 0; column < codeColumns.length; column++) {
+                snapshotCodeColumns[column][i] =
+                        strings.encode(mStrings.decode(codeColumns[column][i]));
+            }
+        }
+
+        output.writeInt(mSize);
+        output.writeInt(strings.size());
+        for (int i = 0; i < strings.size(); i++) {
+            StringDictionary.writeString(output, strings.decode(i));
+        }
+
+        writeColumn(output, idCodes);
+        writeColumn(output, urlCodes);
+        for (int[] column : snapshotCodeColumns) {
+            writeColumn(output, column);
+        }
+        writeColumn(output, mMagnitudes);
+        writeColumn(output, mLatitudes);
+        writeColumn(output, mLongitudes);
+        writeColumn(output, mDepths);
+        writeColumn(output, mTimesInMills);
+        writeColumn(output, mUpdatedInMills);
+    }
+
+    /*
+     * Read a store written by {@link #writeSnapshot} from the current position of the buffer.
+     * The columns are copied out of the buffer in bulk.
+     */
+    static EarthquakeStore readSnapshot(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        int stringCount = buffer.getInt();
+        if (size < 0 || stringCount < 0) {
+            throw new IllegalArgumentException("Corrupt snapshot");
+        }
+
+        // Strings are added in order to a new dictionary, so their codes match the snapshot
+        StringDictionary strings = new StringDictionary();
+        for (int i = 0; i < stringCount; i++) {
+            strings.encode(StringDictionary.readString(buffer));
+        }
+
+        EarthquakeStore store = new EarthquakeStore(Math.max(size, DEFAULT_CAPACITY), strings);
+        int[] idCodes = readIntColumn(buffer, size);
+        int[] urlCodes = readIntColumn(buffer, size);
+        for (int i = 0; i < size; i++) {
+            store.mIds[i] = strings.decode(idCodes[i]);
+            store.mUrls[i] = compactUrl(store.mIds[i], strings.decode(urlCodes[i]));
+        }
+        int[][] codeColumns = {store.mLocationCodes, store.mMagnitudeTextCodes,
+                store.mDateTextCodes, store.mTimeTextCodes, store.mLocationOffsetCodes,
+                store.mLocationPrimaryCodes};
+        for (int[] column : codeColumns) {
+            buffer.asIntBuffer().get(column, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            for (int i = 0; i < size; i++) {
+                if (column[i] < StringDictionary.NO_CODE || column[i] >= stringCount) {
+                    throw new IllegalArgumentException("Corrupt snapshot");
+                }
+            }
+        }
+        for (double[] column : new double[][] {store.mMagnitudes, store.mLatitudes,
+                store.mLongitudes, store.mDepths}) {
+            buffer.asDoubleBuffer().get(column, 0, size);
+            buffer.position(buffer.position() + size * 8);
+        }
+        for (long[] column : new long[][] {store.mTimesInMills, store.mUpdatedInMills}) {
+            buffer.asLongBuffer().get(column, 0, size);
+            buffer.position(buffer.position() + size * 8);
+        }
+
+        store.mSize = size;
+        return store;
+    }
+
+    private static int[] readIntColumn(ByteBuffer buffer, int size) {
+        int[] column = new int[size];
+        buffer.asIntBuffer().get(column);
+        buffer.position(buffer.position() + size * 4);
+        return column;
+    }
+
+    private void writeColumn(DataOutputStream output, int[] column) throws IOException {
+        for (int i = 0; i < mSize; i++) {
+            output.writeInt(column[i]);
+        }
+    }
+
+    private void writeColumn(DataOutputStream output, double[] column) throws IOException {
+        for (int i = 0; i < mSize; i++) {
+            output.writeDouble(column[i]);
+        }
+    }
+
+    private void writeColumn(DataOutputStream output, long[] column) throws IOException {
+        for (int i = 0; i < mSize; i++) {
+            output.writeLong(column[i]);
+        }
+    }
+
+    /*
+     * Return the rows of the earthquakes whose epicenter lies within radiusKm kilometers of the
+     * given point, in no particular order.
+     */
+    public int[] findWithinRadius(double latitude, double longitude, double radiusKm) {
+        return getSpatialIndex().findWithinRadius(this, latitude, longitude, radiusKm);
+    }
+
+    /*
+     * Return the rows of the earthquakes whose epicenter lies inside the given bounding box, in
+     * no particular order. If minLongitude is greater than maxLongitude, the box crosses the
+     * antimeridian.
+     */
+    public int[] findInBox(double minLatitude, double maxLatitude,
+                           double minLongitude, double maxLongitude) {
+        return getSpatialIndex().findInBox(this, minLatitude, maxLatitude, minLongitude,
+                maxLongitude);
+    }
+
+    /*
+     * Return the spatial index of the rows, building it on first use.
+     */
+    private SpatialIndex getSpatialIndex() {
+        if (mSpatialIndex == null) {
+            SpatialIndex spatialIndex = new SpatialIndex();
+            for (int i = 0; i < mSize; i++) {
+                spatialIndex.add(i, mLatitudes[i], mLongitudes[i]);
+            }
+            mSpatialIndex = spatialIndex;
+        }
+        return mSpatialIndex;
+    }
+
+    /*
+     * Record the row just written at mSize and count it.
+     */
+    private void indexAdded() {
+        if (mIdIndex != null && mIds[mSize] != null) {
+            mIdIndex.put(mIds[mSize], mSize);
+        }
+        if (mSpatialIndex != null) {
+            mSpatialIndex.add(mSize, mLatitudes[mSize], mLongitudes[mSize]);
+        }
+        mSize++;
+    }
+
+    /*
+     * Translate a dictionary code of another store into a code of this store.
+     */
+    private int copyCode(EarthquakeStore other, int code) {
+        if (other.mStrings == mStrings) {
+            return code;
+        }
+        return mStrings.encode(other.mStrings.decode(code));
+    }
+
+    /*
+     * Return the number of strings in the dictionary of the store, including any the rows no
+     * longer use.
+     */
+    int getStringCount() {
+        return mStrings.size();
+    }
+
+    /*
+     * Getters for a single row of the store
+     */
+
+    public String getId(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    public double getMagnitude(int index) {
+        checkIndex(index);
+        return mMagnitudes[index];
+    }
+
+    public long getTimeInMills(int index) {
+        checkIndex(index);
+        return mTimesInMills[index];
+    }
+
+    public long getUpdatedInMills(int index) {
+        checkIndex(index);
+        return mUpdatedInMills[index];
+    }
+
+    public String getLocation(int index) {
+        checkIndex(index);
+        return mStrings.decode(mLocationCodes[index]);
+    }
+
+    /*
+     * Return the URL of the earthquake, which is the USGS event page of its id unless it came
+     * with another one, or null if it has neither.
+     */
+    public String getUrl(int index) {
+        checkIndex(index);
+        String url = mUrls[index];
+        if (url == null && mIds[index] != null) {
+            return EVENT_PAGE_URL + mIds[index];
+        }
+        return url;
+    }
+
+    /*
+     * Return what to store for the given URL of the given event: null if there is none or it is
+     * the event page of the id, which getUrl builds instead, otherwise the URL itself.
+     */
+    static String compactUrl(String id, String url) {
+        if (id == null || url == null) {
+            return url;
+        }
+        if (url.length() == EVENT_PAGE_URL.length() + id.length()
+                && url.startsWith(EVENT_PAGE_URL) && url.endsWith(id)) {
+            return null;
+        }
+        return url;
+    }
+
+    // Return the latitude of the epicenter in degrees, or NaN if unknown
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return mLatitudes[index];
+    }
+
+    // Return the longitude of the epicenter in degrees, or NaN if unknown
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return mLongitudes[index];
+    }
+
+    // Return the depth of the hypocenter in kilometers, or NaN if unknown
+    public double getDepth(int index) {
+        checkIndex(index);
+        return mDepths[index];
+    }
+
+    /*
+     * Getters for the display text of a single row
+     */
+
+    public String getMagnitudeText(int index) {
+        checkIndex(index);
+        return mStrings.decode(mMagnitudeTextCodes[index]);
+    }
+
+    public String getDateText(int index) {
+        checkIndex(index);
+        return mStrings.decode(mDateTextCodes[index]);
+    }
+
+    public String getTimeText(int index) {
+        checkIndex(index);
+        return mStrings.decode(mTimeTextCodes[index]);
+    }
+
+    // Return the offset part of the location (i.e. "10km NW of"), or null if there is none
+    public String getLocationOffset(int index) {
+        checkIndex(index);
+        return mStrings.decode(mLocationOffsetCodes[index]);
+    }
+
+    public String getLocationPrimary(int index) {
+        checkIndex(index);
+        return mStrings.decode(mLocationPrimaryCodes[index]);
+    }
+
+    /*
+     * Return the dictionary code of the primary part of the location, the same for every row
+     * with the same text, so callers can decode each distinct location once with
+     * {@link #decode}.
+     */
+    int getLocationPrimaryCode(int index) {
+        checkIndex(index);
+        return mLocationPrimaryCodes[index];
+    }
+
+    /*
+     * Return the string of a dictionary code of the store.
+     */
+    String decode(int code) {
+        return mStrings.decode(code);
+    }
+
+    /*
+     * Return a new {@link Earthquake} object for the given row. Prefer the column getters on
+     * hot paths, which do not allocate.
+     */
+    public Earthquake get(int index) {
+        Earthquake earthquake = new Earthquake(getId(index), getMagnitude(index),
+                getLocation(index), getTimeInMills(index), getUrl(index));
+        earthquake.setUpdatedInMills(mUpdatedInMills[index]);
+        earthquake.setLatitude(mLatitudes[index]);
+        earthquake.setLongitude(mLongitudes[index]);
+        earthquake.setDepth(mDepths[index]);
+        return earthquake;
+    }
+
+    /*
+     * Grow the columns so they can hold at least the given number of rows. Shared columns are
+     * copied first, since the rows past the end of a view belong to the store it was taken of.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length && !mSharesColumns) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, (mSharesColumns ? mSize : mIds.length) * 2);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mMagnitudes = Arrays.copyOf(mMagnitudes, newCapacity);
+        mTimesInMills = Arrays.copyOf(mTimesInMills, newCapacity);
+        mUpdatedInMills = Arrays.copyOf(mUpdatedInMills, newCapacity);
+        mLocationCodes = Arrays.copyOf(mLocationCodes, newCapacity);
+        mUrls = Arrays.copyOf(mUrls, newCapacity);
+        mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+        mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+        mDepths = Arrays.copyOf(mDepths, newCapacity);
+        mMagnitudeTextCodes = Arrays.copyOf(mMagnitudeTextCodes, newCapacity);
+        mDateTextCodes = Arrays.copyOf(mDateTextCodes, newCapacity);
+        mTimeTextCodes = Arrays.copyOf(mTimeTextCodes, newCapacity);
+        mLocationOffsetCodes = Arrays.copyOf(mLocationOffsetCodes, newCapacity);
+        mLocationPrimaryCodes = Arrays.copyOf(mLocationPrimaryCodes, newCapacity);
+        mSharesColumns = false;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+}
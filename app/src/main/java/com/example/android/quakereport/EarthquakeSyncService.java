@@ -0,0 +1,278 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Refreshes the on-disk {@link EarthquakeCache} and the {@link EarthquakeSnapshot} in the
+ * background on a fixed schedule, so the app usually opens on fresh earthquakes without waiting
+ * for the network.
+ *
+ * The schedule is an inexact repeating alarm, which lets the system batch it with the alarms of
+ * other apps, and which does not wake the device up. When it fires, the sync is skipped unless
+ * there is a network connection (optionally an unmetered one) and the battery is charging or
+ * not low. A sync fetches the first page of the query, as a refresh by {@link EarthquakeLoader}
+ * would, stores it in the cache and rewrites the snapshot from the cache.
+ *
+ * The schedule is saved, and restored by {@link BootReceiver} after the device restarts.
+ *
+ * Imports of historical earthquakes started by {@link #startBackfill(Context, String, long, long)}
+ * run in the {@link BackfillService}, one at a time, with a {@link BackfillImporter}. It has a
+ * worker thread of its own, so an import, which can take many minutes, never holds up a sync.
+ * An import only runs on an unmetered network.
+ */
+public class EarthquakeSyncService extends IntentService {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EarthquakeSyncService.class.getSimpleName();
+
+    /* Name of the preferences file holding the schedule */
+    private static final String PREFS_NAME = "earthquake_sync";
+
+    /* Preference keys of the schedule */
+    private static final String KEY_URL = "url";
+    private static final String KEY_PAGE_SIZE = "page_size";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_UNMETERED_ONLY = "unmetered_only";
+
+    /* Action of a request to import historical earthquakes */
+    private static final String ACTION_BACKFILL =
+            "com.example.android.quakereport.action.BACKFILL";
+
+    /* Intent extras of a sync or import request */
+    private static final String EXTRA_URL = "url";
+    private static final String EXTRA_PAGE_SIZE = "page_size";
+    private static final String EXTRA_UNMETERED_ONLY = "unmetered_only";
+    private static final String EXTRA_START_TIME = "start_time";
+    private static final String EXTRA_END_TIME = "end_time";
+
+    /* Lowest battery level (in percent) at which to sync while not charging */
+    private static final int MIN_BATTERY_LEVEL = 20;
+
+    public EarthquakeSyncService() {
+        super(LOG_TAG);
+    }
+
+    /*
+     * Sync the earthquakes of the given query every intervalMillis milliseconds, replacing any
+     * previous schedule. Does nothing if the same schedule is already set, so it can be called
+     * every time the app starts without postponing the next sync.
+     *
+     * @param url USGS query URL, without any "endtime" or "limit" parameters
+     * @param pageSize number of earthquakes to fetch per sync
+     * @param intervalMillis time between syncs; one of the AlarmManager INTERVAL constants lets
+     *                       the system batch it best
+     * @param unmeteredOnly true to sync only over unmetered networks (e.g. Wi-Fi)
+     */
+    public static void schedule(Context context, String url, int pageSize, long intervalMillis,
+                                boolean unmeteredOnly) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        boolean unchanged = url.equals(preferences.getString(KEY_URL, null))
+                && pageSize == preferences.getInt(KEY_PAGE_SIZE, 0)
+                && intervalMillis == preferences.getLong(KEY_INTERVAL, 0)
+                && unmeteredOnly == preferences.getBoolean(KEY_UNMETERED_ONLY, false);
+        Intent intent = buildSyncIntent(context, url, pageSize, unmeteredOnly);
+        if (unchanged && PendingIntent.getService(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        preferences.edit()
+                .putString(KEY_URL, url)
+                .putInt(KEY_PAGE_SIZE, pageSize)
+                .putLong(KEY_INTERVAL, intervalMillis)
+                .putBoolean(KEY_UNMETERED_ONLY, unmeteredOnly)
+                .apply();
+        setAlarm(context, intent, intervalMillis);
+    }
+
+    /*
+     * Stop the scheduled syncs.
+     */
+    public static void cancel(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+
+        Intent intent = new Intent(context, EarthquakeSyncService.class);
+        PendingIntent pendingIntent =
+                PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            AlarmManager alarmManager =
+                    (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /*
+     * Import the earthquakes of the given query between the given times into the archive
+     * {@link EarthquakeCache} in the background. Starting the same import again resumes it.
+     *
+     * @param url USGS query URL, without any "starttime", "endtime", "offset" or "limit"
+     *            parameters
+     */
+    public static void startBackfill(Context context, String url, long startTimeInMills,
+                                     long endTimeInMills) {
+        context.startService(new Intent(context, BackfillService.class)
+                .setAction(ACTION_BACKFILL)
+                .putExtra(EXTRA_URL, url)
+                .putExtra(EXTRA_START_TIME, startTimeInMills)
+                .putExtra(EXTRA_END_TIME, endTimeInMills));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String url = intent.getStringExtra(EXTRA_URL);
+        int pageSize = intent.getIntExtra(EXTRA_PAGE_SIZE, 0);
+        if (url == null || pageSize <= 0) {
+            return;
+        }
+        if (!hasSuitableNetwork(this, intent.getBooleanExtra(EXTRA_UNMETERED_ONLY, false))
+                || !hasEnoughBattery()) {
+            Log.i(LOG_TAG, "Skipping sync until the network and battery allow it");
+            return;
+        }
+
+        EarthquakeCache cache = EarthquakeCache.getInstance(this);
+        // The cache already holds the last response, so a 304 does not need its body
+        FetchResult result = RequestScheduler.getInstance(this).fetch(
+                EarthquakeLoader.buildPageUrl(url, 0, pageSize),
+                HttpFetcher.FLAG_SKIP_NOT_MODIFIED_BODY);
+
+        // Nothing changed since the last refresh, so the snapshot is still up to date
+        if (result.getStatus() == FetchResult.STATUS_NOT_MODIFIED) {
+            cache.setLastRefreshTime(System.currentTimeMillis());
+            return;
+        }
+        if (!result.hasEarthquakes()) {
+            Log.w(LOG_TAG, "Sync failed with status " + result.getStatus());
+            return;
+        }
+
+        cache.insertOrReplace(result.getEarthquakes());
+        cache.setLastRefreshTime(System.currentTimeMillis());
+        EarthquakeSnapshot.write(this, cache.query(EarthquakeLoader.MAX_CACHED_RESULTS));
+    }
+
+    /*
+     * Return true if there is a network connection, and it is unmetered if that is required.
+     */
+    private static boolean hasSuitableNetwork(Context context, boolean unmeteredOnly) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected()
+                && !(unmeteredOnly && connectivityManager.isActiveNetworkMetered());
+    }
+
+    /*
+     * Return true if the battery is charging, or its level is at least MIN_BATTERY_LEVEL.
+     */
+    private boolean hasEnoughBattery() {
+        // The battery status is a sticky broadcast, so it can be read without a receiver
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return true;
+        }
+
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return true;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0 || level * 100 / scale >= MIN_BATTERY_LEVEL;
+    }
+
+    private static Intent buildSyncIntent(Context context, String url, int pageSize,
+                                          boolean unmeteredOnly) {
+        return new Intent(context, EarthquakeSyncService.class)
+                .putExtra(EXTRA_URL, url)
+                .putExtra(EXTRA_PAGE_SIZE, pageSize)
+                .putExtra(EXTRA_UNMETERED_ONLY, unmeteredOnly);
+    }
+
+    private static void setAlarm(Context context, Intent intent, long intervalMillis) {
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + intervalMillis, intervalMillis, pendingIntent);
+    }
+
+    /**
+     * Restores the saved sync schedule after the device restarts, since alarms do not survive
+     * a reboot.
+     */
+    public static class BootReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+                return;
+            }
+
+            SharedPreferences preferences =
+                    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            String url = preferences.getString(KEY_URL, null);
+            long intervalMillis = preferences.getLong(KEY_INTERVAL, 0);
+            if (url == null || intervalMillis <= 0) {
+                return;
+            }
+            Intent syncIntent = buildSyncIntent(context, url, preferences.getInt(KEY_PAGE_SIZE, 0),
+                    preferences.getBoolean(KEY_UNMETERED_ONLY, false));
+            setAlarm(context, syncIntent, intervalMillis);
+        }
+    }
+
+    /**
+     * Runs the imports started by {@link #startBackfill}, one at a time, on a worker thread apart
+     * from the syncs.
+     */
+    public static class BackfillService extends IntentService {
+
+        public BackfillService() {
+            super(BackfillService.class.getSimpleName());
+        }
+
+        /*
+         * Run the import requested by the given intent, if there is an unmetered network.
+         */
+        @Override
+        protected void onHandleIntent(Intent intent) {
+            if (!ACTION_BACKFILL.equals(intent.getAction())) {
+                return;
+            }
+
+            String url = intent.getStringExtra(EXTRA_URL);
+            if (url == null) {
+                return;
+            }
+            if (!hasSuitableNetwork(this, true)) {
+                Log.i(LOG_TAG, "Skipping import until there is an unmetered network");
+                return;
+            }
+
+            BackfillImporter importer = new BackfillImporter(this, url,
+                    intent.getLongExtra(EXTRA_START_TIME, 0),
+                    intent.getLongExtra(EXTRA_END_TIME, 0));
+            if (importer.run()) {
+                Log.i(LOG_TAG, "Import finished");
+            } else {
+                Log.w(LOG_TAG, "Import stopped; starting it again will resume it");
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory cache of the USGS event detail GeoJSON of single earthquakes, fetched the first time
+ * an earthquake's detail is asked for.
+ *
+ * The cache is bounded by the total length of the details it holds (MAX_SIZE characters) and
+ * evicts the least recently used ones first. Hits, misses and evictions are counted in
+ * {@link LoadMetrics}. Details not in memory are fetched through the {@link HttpFetcher} with
+ * {@link HttpFetcher#FLAG_NO_CACHE}: they are already kept here, and would otherwise evict the
+ * feeds from its small disk cache.
+ */
+public final class EventDetailCache {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = EventDetailCache.class.getSimpleName();
+
+    /* Detail of a single event, followed by the event id */
+    private static final String DETAIL_URL =
+            "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&eventid=";
+
+    /* Total length (in characters) of the details kept in memory, about 1 MB */
+    private static final int MAX_SIZE = 512 * 1024;
+
+    /*
+     * Callback for a detail fetched in the background.
+     */
+    public interface OnDetailLoadedListener {
+        /*
+         * Called on the main thread with the detail GeoJSON, or null if it could not be fetched.
+         */
+        void onDetailLoaded(String eventId, String detail);
+    }
+
+    private static EventDetailCache sInstance;
+
+    private final HttpFetcher mFetcher;
+
+    private final LoadMetrics mMetrics = LoadMetrics.getInstance();
+
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final LruCache<String, String> mDetails = new LruCache<String, String>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String eventId, String detail) {
+            return detail.length();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String eventId, String oldDetail,
+                                    String newDetail) {
+            if (evicted) {
+                mMetrics.increment(LoadMetrics.COUNTER_DETAIL_EVICTIONS);
+            }
+        }
+    };
+
+    private EventDetailCache(Context context) {
+        mFetcher = HttpFetcher.getInstance(context);
+    }
+
+    /*
+     * Return the single {@link EventDetailCache} for the app.
+     */
+    public static synchronized EventDetailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EventDetailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /*
+     * Return the detail GeoJSON of the given event, fetching it if it is not in memory, or null
+     * if it could not be fetched. Must be called from a background thread.
+     */
+    public String get(String eventId) {
+        String detail = mDetails.get(eventId);
+        if (detail != null) {
+            mMetrics.increment(LoadMetrics.COUNTER_DETAIL_HITS);
+            return detail;
+        }
+        mMetrics.increment(LoadMetrics.COUNTER_DETAIL_MISSES);
+
+        try {
+            detail = mFetcher.fetch(new URL(DETAIL_URL + eventId),
+                    new HttpFetcher.BodyReader<String>() {
+                        @Override
+                        public String read(InputStream inputStream) throws IOException {
+                            return QueryUtils.readText(inputStream);
+                        }
+                    }, HttpFetcher.FLAG_NO_CACHE).getBody();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem fetching the detail of " + eventId, e);
+            return null;
+        }
+        if (detail != null) {
+            mDetails.put(eventId, detail);
+        }
+        return detail;
+    }
+
+    /*
+     * Get the detail of the given event in the background, and pass it to the listener on the
+     * main thread.
+     */
+    public void get(final String eventId, final OnDetailLoadedListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String detail = get(eventId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDetailLoaded(eventId, detail);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Fetch the detail of the given event in the background if it is not in memory, so a later
+     * get returns it right away.
+     */
+    public void prefetch(final String eventId) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                get(eventId);
+            }
+        });
+    }
+
+    /*
+     * Return the event page URL ("properties"/"url") of an event detail, or null if it has none.
+     */
+    public static String getEventPageUrl(String detail) {
+        JsonReader reader = new JsonReader(new StringReader(detail));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("properties".equals(reader.nextName())
+                        && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("url".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                            return reader.nextString();
+                        }
+                        reader.skipValue();
+                    }
+                    return null;
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Problem parsing an event detail", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.quakereport;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Outcome of fetching earthquakes from USGS with {@link QueryUtils}.
+ *
+ * Tells a successful fetch apart from one that lost some features to malformed data, one that
+ * was answered from the HTTP cache because nothing changed, and the ways it can fail, so the
+ * caller can decide whether to keep what it already has or try again.
+ *
+ * A result that is not complete tells the {@link HttpFetcher} not to cache the body it was read
+ * from.
+ */
+public final class FetchResult implements HttpFetcher.PartialBody {
+
+    /* Every feature of the response was parsed */
+    public static final int STATUS_SUCCESS = 0;
+
+    /* Some features were malformed and skipped, or the response was cut short */
+    public static final int STATUS_PARTIAL = 1;
+
+    /* The server answered 304 Not Modified; the earthquakes come from the cached response, or
+     * are left out if the caller asked for {@link HttpFetcher#FLAG_SKIP_NOT_MODIFIED_BODY} */
+    public static final int STATUS_NOT_MODIFIED = 2;
+
+    /* No response could be read at all (no connection, timeout, broken stream or bad URL) */
+    public static final int STATUS_NETWORK_ERROR = 3;
+
+    /* The server answered with an HTTP error code */
+    public static final int STATUS_HTTP_ERROR = 4;
+
+    /* The server answered 200 OK, but no earthquake could be parsed from the whole body. Asking
+     * again would get the same body, so this is not retried. */
+    public static final int STATUS_PARSE_ERROR = 5;
+
+    private final int mStatus;
+
+    // HTTP response code, or 0 if no response was received
+    private final int mHttpCode;
+
+    // Earthquakes read from the response, or null if the fetch failed
+    private final EarthquakeStore mEarthquakes;
+
+    // Number of malformed features left out of the earthquakes
+    private final int mSkippedCount;
+
+    // False if the response was cut short, so there may be earthquakes missing from the end
+    private final boolean mComplete;
+
+    /*
+     * Constructs a new {@link FetchResult}.
+     *
+     * @param status one of the STATUS constants
+     * @param httpCode HTTP response code, or 0 if no response was received
+     * @param earthquakes read from the response, or null if the fetch failed
+     * @param skippedCount number of malformed features left out of the earthquakes
+     * @param complete false if the response was cut short
+     */
+    FetchResult(int status, int httpCode, EarthquakeStore earthquakes, int skippedCount,
+                boolean complete) {
+        mStatus = status;
+        mHttpCode = httpCode;
+        mEarthquakes = earthquakes;
+        mSkippedCount = skippedCount;
+        mComplete = complete;
+    }
+
+    /*
+     * Return a failed {@link FetchResult} for when no response could be read.
+     */
+    static FetchResult networkError() {
+        return new FetchResult(STATUS_NETWORK_ERROR, 0, null, 0, false);
+    }
+
+    /*
+     * Return a {@link FetchResult} for a 304 Not Modified whose cached body was not read.
+     */
+    static FetchResult notModified() {
+        return new FetchResult(STATUS_NOT_MODIFIED, HttpURLConnection.HTTP_NOT_MODIFIED, null, 0,
+                true);
+    }
+
+    /*
+     * Return a failed {@link FetchResult} for the given HTTP error code.
+     */
+    static FetchResult httpError(int httpCode) {
+        return new FetchResult(STATUS_HTTP_ERROR, httpCode, null, 0, false);
+    }
+
+    /*
+     * Getters methods
+     */
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getHttpCode() {
+        return mHttpCode;
+    }
+
+    public EarthquakeStore getEarthquakes() {
+        return mEarthquakes;
+    }
+
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /*
+     * Return true if the fetch produced earthquakes, even if some features were skipped.
+     */
+    public boolean hasEarthquakes() {
+        return mEarthquakes != null;
+    }
+
+    /*
+     * Return true if trying again later may succeed: the network failed, the server had an
+     * internal error, or it asked for fewer requests (429 Too Many Requests).
+     */
+    public boolean isTransientFailure() {
+        return mStatus == STATUS_NETWORK_ERROR
+                || (mStatus == STATUS_HTTP_ERROR && (mHttpCode >= 500 || mHttpCode == 429));
+    }
+}
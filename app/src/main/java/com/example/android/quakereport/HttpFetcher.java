@@ -0,0 +1,585 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reusable HTTP GET component used by {@link QueryUtils}.
+ *
+ * Responses are requested gzip-compressed and decoded on the fly. Each body is kept in a small
+ * on-disk cache together with its ETag / Last-Modified validators, so the next request for the
+ * same URL is sent conditionally and a 304 Not Modified response is answered from the cached
+ * body instead of downloading the whole feed again. A caller that still holds what it read from
+ * the body last time can pass {@link #FLAG_SKIP_NOT_MODIFIED_BODY} to get the 304 alone.
+ * One-off requests, such as the windows of a historical import, pass {@link #FLAG_NO_CACHE} so
+ * they neither send validators nor evict the cached bodies of the feeds polled over and over.
+ *
+ * Only bodies read to the end are cached. A reader that keeps what it got from a body that
+ * broke off or could not be parsed says so by returning a {@link PartialBody}.
+ *
+ * Connections are never explicitly disconnected after a successful request. Instead the body is
+ * read to the end and closed, which lets {@link HttpURLConnection} return the socket to its
+ * keep-alive pool for the next request. A request that must stop early is ended with
+ * {@link #abort(Thread)}, since interrupting the thread does not unblock a socket read.
+ */
+public final class HttpFetcher {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = HttpFetcher.class.getSimpleName();
+
+    /* Timeouts in milliseconds */
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+
+    /* Maximum number of response bodies kept in the on-disk cache */
+    private static final int MAX_CACHE_ENTRIES = 32;
+
+    /* Name of the cache directory, inside the app's cache directory */
+    private static final String CACHE_DIRECTORY = "http";
+
+    /* Options of a request, combined into the flags passed to fetch() */
+    // Answer a 304 Not Modified without reading the cached body, for callers that kept its data
+    public static final int FLAG_SKIP_NOT_MODIFIED_BODY = 1;
+    // Leave the cache alone: send the request unconditionally and do not keep the body
+    public static final int FLAG_NO_CACHE = 2;
+
+    /* File name suffixes for cached bodies and their validators */
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+
+    private static HttpFetcher sInstance;
+
+    private final File mCacheDirectory;
+
+    // Guards committing and opening cache entries so a body is never read while being replaced
+    private final Object mCacheLock = new Object();
+
+    // Connection of the request each thread is making; guarded by itself
+    private final Map<Thread, HttpURLConnection> mConnections = new HashMap<>();
+
+    /*
+     * Reads the decoded response body of a request.
+     */
+    public interface BodyReader<T> {
+        T read(InputStream inputStream) throws IOException;
+    }
+
+    /*
+     * Value read from a body that may be only part of it, because the body broke off or could
+     * not be parsed. An incomplete body is not cached, so a later 304 Not Modified cannot
+     * answer with it.
+     */
+    public interface PartialBody {
+        boolean isComplete();
+    }
+
+    /*
+     * Response code of a request, and the value read from its body if it had one.
+     */
+    public static final class Response<T> {
+        private final int mCode;
+        private final T mBody;
+        private final boolean mNotModified;
+
+        Response(int code, T body) {
+            this(code, body, false);
+        }
+
+        Response(int code, T body, boolean notModified) {
+            mCode = code;
+            mBody = body;
+            mNotModified = notModified;
+        }
+
+        // Return the HTTP response code (i.e. 200 or 304)
+        public int getCode() {
+            return mCode;
+        }
+
+        // Return the value returned by the body reader, or null if it was not called
+        public T getBody() {
+            return mBody;
+        }
+
+        // Return true if the server answered 304 Not Modified for a cached body, whether or not
+        // the body was read
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+    }
+
+    /*
+     * Constructs a new {@link HttpFetcher} keeping its cache in the given directory. The app uses
+     * the single instance from {@link #getInstance(Context)}.
+     */
+    HttpFetcher(File cacheDirectory) {
+        mCacheDirectory = cacheDirectory;
+        if (!mCacheDirectory.isDirectory() && !mCacheDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create HTTP cache directory " + mCacheDirectory);
+        }
+    }
+
+    /*
+     * Return the single {@link HttpFetcher} for the app.
+     */
+    public static synchronized HttpFetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HttpFetcher(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    /*
+     * Stop the request the given thread is making, if any, by closing its connection, so the
+     * read it is blocked on fails right away instead of at the read timeout. The thread should
+     * be interrupted first, which stops a request that has not connected yet.
+     */
+    public void abort(Thread thread) {
+        HttpURLConnection urlConnection;
+        synchronized (mConnections) {
+            urlConnection = mConnections.get(thread);
+        }
+        if (urlConnection != null) {
+            urlConnection.disconnect();
+        }
+    }
+
+    /*
+     * Make an HTTP GET request to the given URL and pass the decoded response body to the reader.
+     * If the server answers 304 Not Modified, the reader is given the cached body instead.
+     *
+     * @return the response code, with the value returned by the reader unless the server
+     * returned an error code
+     * @throws IOException if no response could be read
+     */
+    public <T> Response<T> fetch(URL url, BodyReader<T> reader) throws IOException {
+        return fetch(url, reader, 0);
+    }
+
+    /*
+     * Make an HTTP GET request to the given URL with the given options (a combination of the
+     * FLAG constants) and pass the decoded response body to the reader. With
+     * {@link #FLAG_SKIP_NOT_MODIFIED_BODY}, a 304 Not Modified returns a response with no body
+     * and the reader is not called.
+     */
+    public <T> Response<T> fetch(URL url, BodyReader<T> reader, int flags) throws IOException {
+        String key = url.toString();
+        boolean useCache = (flags & FLAG_NO_CACHE) == 0;
+        CacheEntry cacheEntry = useCache ? readCacheEntry(key) : null;
+
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        /* time in milliseconds */
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+        urlConnection.setReadTimeout(READ_TIMEOUT);
+        // Setting Accept-Encoding ourselves turns off transparent decoding, so we decode below
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+        if (cacheEntry != null) {
+            if (cacheEntry.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", cacheEntry.etag);
+            }
+            if (cacheEntry.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", cacheEntry.lastModified);
+            }
+        }
+
+        LoadMetrics metrics = LoadMetrics.getInstance();
+        metrics.increment(LoadMetrics.COUNTER_HTTP_REQUESTS);
+
+        InputStream inputStream = null;
+        File tempBody = null;
+        OutputStream cacheOutput = null;
+        synchronized (mConnections) {
+            mConnections.put(Thread.currentThread(), urlConnection);
+        }
+        try {
+            // An abort that came before the connection was registered interrupted the thread
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Request aborted");
+            }
+
+            long startTime = LoadMetrics.startTimer();
+            urlConnection.connect();
+            metrics.stopTimer(LoadMetrics.STAGE_CONNECT, startTime);
+
+            startTime = LoadMetrics.startTimer();
+            int responseCode = urlConnection.getResponseCode();
+            metrics.stopTimer(LoadMetrics.STAGE_FIRST_BYTE, startTime);
+
+            /* Unchanged since the last request, so answer from the cached body */
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+                // A 304 has no body; closing its empty stream returns the connection to the pool
+                closeQuietly(urlConnection.getInputStream());
+                if ((flags & FLAG_SKIP_NOT_MODIFIED_BODY) != 0) {
+                    metrics.increment(LoadMetrics.COUNTER_HTTP_CACHE_HITS);
+                    touchCachedBody(cacheEntry);
+                    return new Response<>(responseCode, null, true);
+                }
+                inputStream = openCachedBody(cacheEntry);
+                if (inputStream != null) {
+                    metrics.increment(LoadMetrics.COUNTER_HTTP_CACHE_HITS);
+                    return new Response<>(responseCode, reader.read(inputStream), true);
+                }
+                // The cached body went missing; fall through and treat it like an error
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(LOG_TAG, "Error response code: " + responseCode);
+                metrics.increment(LoadMetrics.COUNTER_HTTP_ERRORS);
+                urlConnection.disconnect();
+                return new Response<>(responseCode, null);
+            }
+
+            String etag = urlConnection.getHeaderField("ETag");
+            String lastModified = urlConnection.getHeaderField("Last-Modified");
+            boolean gzip = "gzip".equalsIgnoreCase(urlConnection.getContentEncoding());
+
+            // Count the bytes as they come off the network, before they are decoded
+            InputStream bodyStream = new BufferedInputStream(new LoadMetrics.CountingInputStream(
+                    new LengthCheckingInputStream(urlConnection.getInputStream(),
+                            urlConnection.getContentLength())));
+
+            // Copy the raw body to disk while it is being read, if it can be revalidated later
+            if (useCache && (etag != null || lastModified != null)) {
+                tempBody = File.createTempFile("body", null, mCacheDirectory);
+                cacheOutput = new FileOutputStream(tempBody);
+                bodyStream = new TeeInputStream(bodyStream, cacheOutput);
+            }
+
+            startTime = LoadMetrics.startTimer();
+            inputStream = gzip ? new GZIPInputStream(bodyStream) : bodyStream;
+            T result = reader.read(inputStream);
+            boolean complete = !(result instanceof PartialBody)
+                    || ((PartialBody) result).isComplete();
+
+            if (complete) {
+                // Read whatever the reader left, so the connection can be reused
+                drain(inputStream);
+            } else {
+                // The rest of the body is broken or of no use, and so is the connection
+                urlConnection.disconnect();
+            }
+            metrics.stopTimer(LoadMetrics.STAGE_BODY, startTime);
+
+            if (cacheOutput != null && complete) {
+                cacheOutput.close();
+                cacheOutput = null;
+                commitCacheEntry(new CacheEntry(key, etag, lastModified, gzip), tempBody);
+                tempBody = null;
+            }
+            return new Response<>(responseCode, result);
+        } catch (IOException e) {
+            metrics.increment(LoadMetrics.COUNTER_HTTP_ERRORS);
+            // A broken connection must not go back to the pool
+            urlConnection.disconnect();
+            throw e;
+        } finally {
+            synchronized (mConnections) {
+                mConnections.remove(Thread.currentThread());
+            }
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (cacheOutput != null) {
+                cacheOutput.close();
+            }
+            if (tempBody != null && !tempBody.delete()) {
+                Log.w(LOG_TAG, "Could not delete " + tempBody);
+            }
+        }
+    }
+
+    /*
+     * Read and discard the rest of the stream.
+     */
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (inputStream.read(buffer) != -1) {
+            // Discard
+        }
+    }
+
+    /*
+     * Return the base file name of the cache entry for the given URL.
+     */
+    private File cacheFile(String key, String suffix) {
+        return new File(mCacheDirectory, Integer.toHexString(key.hashCode()) + suffix);
+    }
+
+    /*
+     * Return the cached validators for the given URL, or null if it has no usable cache entry.
+     */
+    private CacheEntry readCacheEntry(String key) {
+        synchronized (mCacheLock) {
+            File metaFile = cacheFile(key, META_SUFFIX);
+            if (!metaFile.exists() || !cacheFile(key, BODY_SUFFIX).exists()) {
+                return null;
+            }
+
+            DataInputStream metaInput = null;
+            try {
+                metaInput = new DataInputStream(new FileInputStream(metaFile));
+                String url = metaInput.readUTF();
+                String etag = metaInput.readUTF();
+                String lastModified = metaInput.readUTF();
+                boolean gzip = metaInput.readBoolean();
+
+                // Two URLs may hash to the same file name
+                if (!key.equals(url)) {
+                    return null;
+                }
+                return new CacheEntry(key, etag.isEmpty() ? null : etag,
+                        lastModified.isEmpty() ? null : lastModified, gzip);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem reading HTTP cache entry", e);
+                return null;
+            } finally {
+                closeQuietly(metaInput);
+            }
+        }
+    }
+
+    /*
+     * Open the decoded cached body of the given entry, or return null if it is missing.
+     */
+    private InputStream openCachedBody(CacheEntry cacheEntry) throws IOException {
+        synchronized (mCacheLock) {
+            File bodyFile = cacheFile(cacheEntry.url, BODY_SUFFIX);
+            if (!bodyFile.exists()) {
+                return null;
+            }
+
+            // Touch the file so eviction keeps recently used entries
+            bodyFile.setLastModified(System.currentTimeMillis());
+
+            InputStream bodyStream = new BufferedInputStream(new FileInputStream(bodyFile));
+            return cacheEntry.gzip ? new GZIPInputStream(bodyStream) : bodyStream;
+        }
+    }
+
+    /*
+     * Mark the cached body of the given entry as recently used, without reading it.
+     */
+    private void touchCachedBody(CacheEntry cacheEntry) {
+        synchronized (mCacheLock) {
+            cacheFile(cacheEntry.url, BODY_SUFFIX).setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /*
+     * Move a freshly downloaded body into the cache along with its validators, then evict the
+     * least recently used entries beyond MAX_CACHE_ENTRIES.
+     */
+    private void commitCacheEntry(CacheEntry cacheEntry, File tempBody) throws IOException {
+        synchronized (mCacheLock) {
+            File metaFile = cacheFile(cacheEntry.url, META_SUFFIX);
+            File bodyFile = cacheFile(cacheEntry.url, BODY_SUFFIX);
+
+            DataOutputStream metaOutput = new DataOutputStream(new FileOutputStream(metaFile));
+            try {
+                metaOutput.writeUTF(cacheEntry.url);
+                metaOutput.writeUTF(cacheEntry.etag == null ? "" : cacheEntry.etag);
+                metaOutput.writeUTF(cacheEntry.lastModified == null ? "" : cacheEntry.lastModified);
+                metaOutput.writeBoolean(cacheEntry.gzip);
+            } finally {
+                metaOutput.close();
+            }
+
+            if (!tempBody.renameTo(bodyFile)) {
+                Log.e(LOG_TAG, "Could not store HTTP cache entry for " + cacheEntry.url);
+                metaFile.delete();
+                tempBody.delete();
+                return;
+            }
+
+            evictOldEntries();
+        }
+    }
+
+    /*
+     * Delete the least recently used cache entries beyond MAX_CACHE_ENTRIES.
+     */
+    private void evictOldEntries() {
+        File[] bodies = mCacheDirectory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+        bodies = filterBodies(bodies);
+        if (bodies.length <= MAX_CACHE_ENTRIES) {
+            return;
+        }
+
+        // Most recently used first
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long firstModified = first.lastModified();
+                long secondModified = second.lastModified();
+                return firstModified < secondModified ? 1 : (firstModified == secondModified ? 0 : -1);
+            }
+        });
+
+        for (int i = MAX_CACHE_ENTRIES; i < bodies.length; i++) {
+            String name = bodies[i].getName();
+            String baseName = name.substring(0, name.length() - BODY_SUFFIX.length());
+            bodies[i].delete();
+            new File(mCacheDirectory, baseName + META_SUFFIX).delete();
+        }
+    }
+
+    /*
+     * Return only the cached body files out of the given directory listing.
+     */
+    private static File[] filterBodies(File[] files) {
+        int count = 0;
+        File[] bodies = new File[files.length];
+        for (File file : files) {
+            if (file.getName().endsWith(BODY_SUFFIX)) {
+                bodies[count++] = file;
+            }
+        }
+        return Arrays.copyOf(bodies, count);
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // Nothing useful to do
+            }
+        }
+    }
+
+    /*
+     * Validators and encoding of a cached response body.
+     */
+    private static final class CacheEntry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final boolean gzip;
+
+        CacheEntry(String url, String etag, String lastModified, boolean gzip) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.gzip = gzip;
+        }
+    }
+
+    /*
+     * {@link InputStream} that fails at the end of the body if fewer bytes came through than the
+     * Content-Length announced, so a body cut short reads as broken. HttpURLConnection does this
+     * itself on Android, but not on every JVM.
+     */
+    private static final class LengthCheckingInputStream extends FilterInputStream {
+        // Content-Length of the body, or -1 if it was not given
+        private final long mLength;
+        private long mCount;
+
+        LengthCheckingInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            mLength = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                checkLength();
+            } else {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                checkLength();
+            } else {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        private void checkLength() throws EOFException {
+            if (mLength >= 0 && mCount < mLength) {
+                throw new EOFException("Body ended after " + mCount + " of " + mLength + " bytes");
+            }
+        }
+    }
+
+    /*
+     * {@link InputStream} that copies every byte it reads into an {@link OutputStream}.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOutput;
+
+        TeeInputStream(InputStream inputStream, OutputStream output) {
+            super(inputStream);
+            mOutput = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mOutput.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mOutput.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must still be copied, so read them instead
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
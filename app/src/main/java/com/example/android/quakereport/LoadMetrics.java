@@ -0,0 +1,363 @@
+package com.example.android.quakereport;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lightweight timers and counters for the stages of loading earthquakes, from the HTTP request
+ * down to binding the list rows.
+ *
+ * Every stage records how many times it ran, its total time and its longest time, and a
+ * histogram of its times from which latency percentiles are read. Counters track bytes read,
+ * events parsed, parse failures, skipped features, and cache hits and misses, and the highest
+ * heap usage seen after reading a response is kept as well. Recording is lock-free, so it can be
+ * left on in the field; {@link #getSnapshot()} returns a consistent copy to query, and
+ * {@link #startPeriodicDump(long)} writes one to the log at a fixed interval.
+ */
+public final class LoadMetrics {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = LoadMetrics.class.getSimpleName();
+
+    /* Stages of a load */
+    // Opening the connection, including the DNS lookup and TLS handshake
+    public static final int STAGE_CONNECT = 0;
+    // Sending the request until the response status arrives (time to first byte)
+    public static final int STAGE_FIRST_BYTE = 1;
+    // Downloading and parsing the response body, which are streamed together
+    public static final int STAGE_BODY = 2;
+    // Reading earthquakes from the on-disk cache
+    public static final int STAGE_CACHE_READ = 3;
+    // Running EarthquakeLoader.loadInBackground()
+    public static final int STAGE_LOAD = 4;
+    // From starting a load to delivering its result, including waiting for a background thread
+    public static final int STAGE_LOAD_TO_DELIVERY = 5;
+    // Binding one row of the list
+    public static final int STAGE_BIND = 6;
+    // Reading and writing the binary snapshot of the list
+    public static final int STAGE_SNAPSHOT_READ = 7;
+    public static final int STAGE_SNAPSHOT_WRITE = 8;
+    private static final int STAGE_COUNT = 9;
+
+    private static final String[] STAGE_NAMES = {
+            "connect", "first_byte", "body", "cache_read", "load", "load_to_delivery", "bind",
+            "snapshot_read", "snapshot_write"};
+
+    /* Counters */
+    public static final int COUNTER_BYTES_READ = 0;
+    public static final int COUNTER_EVENTS_PARSED = 1;
+    public static final int COUNTER_PARSE_FAILURES = 2;
+    public static final int COUNTER_HTTP_REQUESTS = 3;
+    public static final int COUNTER_HTTP_ERRORS = 4;
+    // Requests answered from the HTTP cache after a 304 Not Modified
+    public static final int COUNTER_HTTP_CACHE_HITS = 5;
+    // Loads answered from the on-disk earthquake cache
+    public static final int COUNTER_CACHE_HITS = 6;
+    // Malformed features left out of the parsed earthquakes
+    public static final int COUNTER_FEATURES_SKIPPED = 7;
+    // Lookups of event details answered from memory, fetched, and details evicted for space
+    public static final int COUNTER_DETAIL_HITS = 8;
+    public static final int COUNTER_DETAIL_MISSES = 9;
+    public static final int COUNTER_DETAIL_EVICTIONS = 10;
+    private static final int COUNTER_COUNT = 11;
+
+    private static final String[] COUNTER_NAMES = {
+            "bytes_read", "events_parsed", "parse_failures", "http_requests", "http_errors",
+            "http_cache_hits", "cache_hits", "features_skipped", "detail_hits", "detail_misses",
+            "detail_evictions"};
+
+    /* Number of histogram buckets per stage; bucket i holds times of [2^i, 2^(i+1)) microseconds */
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private static final LoadMetrics sInstance = new LoadMetrics();
+
+    /* Per stage: number of runs, and total and longest time in nanoseconds */
+    private final AtomicLongArray mStageCounts = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mStageTotalNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mStageMaxNanos = new AtomicLongArray(STAGE_COUNT);
+
+    /* Per stage, HISTOGRAM_BUCKETS consecutive run counts */
+    private final AtomicLongArray mStageHistograms =
+            new AtomicLongArray(STAGE_COUNT * HISTOGRAM_BUCKETS);
+
+    // Highest heap usage (in bytes) recorded by recordHeapUsage()
+    private final AtomicLong mHeapHighWater = new AtomicLong();
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    private final Handler mDumpHandler = new Handler(Looper.getMainLooper());
+
+    // Interval (in milliseconds) of the periodic dump
+    private long mDumpInterval;
+
+    // Writes a snapshot to the log, then schedules itself again
+    private final Runnable mDumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(LOG_TAG, getSnapshot().toString());
+            mDumpHandler.postDelayed(this, mDumpInterval);
+        }
+    };
+
+    private LoadMetrics() {
+    }
+
+    /*
+     * Return the metrics of the app.
+     */
+    public static LoadMetrics getInstance() {
+        return sInstance;
+    }
+
+    /*
+     * Return the start time to pass to {@link #stopTimer(int, long)}.
+     */
+    public static long startTimer() {
+        return System.nanoTime();
+    }
+
+    /*
+     * Record one run of the given stage, which began at the given start time.
+     */
+    public void stopTimer(int stage, long startTime) {
+        long elapsed = System.nanoTime() - startTime;
+        mStageCounts.incrementAndGet(stage);
+        mStageTotalNanos.addAndGet(stage, elapsed);
+        mStageHistograms.incrementAndGet(stage * HISTOGRAM_BUCKETS + getHistogramBucket(elapsed));
+
+        long max = mStageMaxNanos.get(stage);
+        while (elapsed > max && !mStageMaxNanos.compareAndSet(stage, max, elapsed)) {
+            max = mStageMaxNanos.get(stage);
+        }
+    }
+
+    /*
+     * Return the histogram bucket of the given time (in nanoseconds).
+     */
+    private static int getHistogramBucket(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /*
+     * Record how much of the heap is in use now, keeping the highest value seen. Called once a
+     * response has been read, when the most memory is held.
+     */
+    public void recordHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long max = mHeapHighWater.get();
+        while (used > max && !mHeapHighWater.compareAndSet(max, used)) {
+            max = mHeapHighWater.get();
+        }
+    }
+
+    /*
+     * Add the given amount to a counter.
+     */
+    public void increment(int counter, long amount) {
+        mCounters.addAndGet(counter, amount);
+    }
+
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    /*
+     * Return a copy of all the timers and counters.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            snapshot.mStageCounts[i] = mStageCounts.get(i);
+            snapshot.mStageTotalNanos[i] = mStageTotalNanos.get(i);
+            snapshot.mStageMaxNanos[i] = mStageMaxNanos.get(i);
+        }
+        for (int i = 0; i < STAGE_COUNT * HISTOGRAM_BUCKETS; i++) {
+            snapshot.mStageHistograms[i] = mStageHistograms.get(i);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            snapshot.mCounters[i] = mCounters.get(i);
+        }
+        snapshot.mHeapHighWater = mHeapHighWater.get();
+        return snapshot;
+    }
+
+    /*
+     * Clear all the timers and counters.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageCounts.set(i, 0);
+            mStageTotalNanos.set(i, 0);
+            mStageMaxNanos.set(i, 0);
+        }
+        for (int i = 0; i < STAGE_COUNT * HISTOGRAM_BUCKETS; i++) {
+            mStageHistograms.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.set(i, 0);
+        }
+        mHeapHighWater.set(0);
+    }
+
+    /*
+     * Write a snapshot to the log every intervalMillis milliseconds, until
+     * {@link #stopPeriodicDump()}. Must be called on the main thread.
+     */
+    public void startPeriodicDump(long intervalMillis) {
+        mDumpHandler.removeCallbacks(mDumpRunnable);
+        mDumpInterval = intervalMillis;
+        mDumpHandler.postDelayed(mDumpRunnable, intervalMillis);
+    }
+
+    /*
+     * Stop writing snapshots to the log. Must be called on the main thread.
+     */
+    public void stopPeriodicDump() {
+        mDumpHandler.removeCallbacks(mDumpRunnable);
+    }
+
+    /**
+     * Copy of the timers and counters at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] mStageCounts = new long[STAGE_COUNT];
+        private final long[] mStageTotalNanos = new long[STAGE_COUNT];
+        private final long[] mStageMaxNanos = new long[STAGE_COUNT];
+        private final long[] mStageHistograms = new long[STAGE_COUNT * HISTOGRAM_BUCKETS];
+        private final long[] mCounters = new long[COUNTER_COUNT];
+        private long mHeapHighWater;
+
+        private Snapshot() {
+        }
+
+        /*
+         * Return the number of times the given stage ran.
+         */
+        public long getStageCount(int stage) {
+            return mStageCounts[stage];
+        }
+
+        /*
+         * Return the total time (in milliseconds) spent in the given stage.
+         */
+        public double getStageTotalMillis(int stage) {
+            return mStageTotalNanos[stage] / 1e6;
+        }
+
+        /*
+         * Return the average time (in milliseconds) of the given stage, or 0 if it never ran.
+         */
+        public double getStageAverageMillis(int stage) {
+            return mStageCounts[stage] == 0 ? 0 : getStageTotalMillis(stage) / mStageCounts[stage];
+        }
+
+        /*
+         * Return the longest time (in milliseconds) of the given stage.
+         */
+        public double getStageMaxMillis(int stage) {
+            return mStageMaxNanos[stage] / 1e6;
+        }
+
+        /*
+         * Return the time (in milliseconds) that the given percentage (e.g. 99) of the runs of
+         * the given stage took at most, or 0 if it never ran. Times are kept in power-of-two
+         * buckets, so this is the upper bound of the bucket holding the percentile.
+         */
+        public double getStagePercentileMillis(int stage, double percentile) {
+            long count = mStageCounts[stage];
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS - 1; i++) {
+                seen += mStageHistograms[stage * HISTOGRAM_BUCKETS + i];
+                if (seen >= rank) {
+                    return Math.min((1L << (i + 1)) / 1e3, getStageMaxMillis(stage));
+                }
+            }
+            return getStageMaxMillis(stage);
+        }
+
+        public long getCounter(int counter) {
+            return mCounters[counter];
+        }
+
+        /*
+         * Return the highest heap usage (in bytes) recorded after reading a response.
+         */
+        public long getHeapHighWaterBytes() {
+            return mHeapHighWater;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Load metrics:");
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (mStageCounts[i] == 0) {
+                    continue;
+                }
+                builder.append(' ').append(STAGE_NAMES[i])
+                        .append("[n=").append(mStageCounts[i])
+                        .append(" avg=").append(Math.round(getStageAverageMillis(i)))
+                        .append("ms p50=").append(Math.round(getStagePercentileMillis(i, 50)))
+                        .append("ms p90=").append(Math.round(getStagePercentileMillis(i, 90)))
+                        .append("ms p99=").append(Math.round(getStagePercentileMillis(i, 99)))
+                        .append("ms max=").append(Math.round(getStageMaxMillis(i)))
+                        .append("ms]");
+            }
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                builder.append(' ').append(COUNTER_NAMES[i]).append('=').append(mCounters[i]);
+            }
+            builder.append(" heap_high_water=").append(mHeapHighWater);
+            return builder.toString();
+        }
+    }
+
+    /**
+     * {@link InputStream} that adds every byte read through it to COUNTER_BYTES_READ.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                sInstance.increment(COUNTER_BYTES_READ);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                sInstance.increment(COUNTER_BYTES_READ, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            sInstance.increment(COUNTER_BYTES_READ, skipped);
+            return skipped;
+        }
+    }
+}
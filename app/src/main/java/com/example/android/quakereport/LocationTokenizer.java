@@ -0,0 +1,88 @@
+package com.example.android.quakereport;
+
+/**
+ * Splits a USGS place string into its offset (e.g. "10km NW of") and primary location
+ * (e.g. "Tokyo, Japan").
+ *
+ * The split happens on the first " of " token only, without regular expressions, so place names
+ * that contain "of" (e.g. "Sofia, Bulgaria") are left intact. An offset is only recognized in the
+ * shapes USGS writes them: a distance ("76 km SSE of Iquique, Chile"), a compass direction
+ * ("South of the Fiji Islands") or a coast ("off the coast of Oregon"). Any other "of" is part of
+ * a name (e.g. "Gulf of California" or "Sea of Okhotsk"), and the place has no offset.
+ */
+public final class LocationTokenizer {
+
+    /* Token between the offset and the primary location */
+    private static final String SEPARATOR = " of ";
+
+    /* Compass directions that make up a whole offset (e.g. "Southeast of Easter Island") */
+    private static final String[] DIRECTIONS = {
+            "North", "South", "East", "West", "Northeast", "Northwest", "Southeast", "Southwest"};
+
+    /* Starts of offsets describing a coast (e.g. "near the east coast of Honshu, Japan") */
+    private static final String[] COAST_PREFIXES = {"off the ", "near the "};
+
+    /**
+     * Create a private constructor because no one should ever create a {@link LocationTokenizer}
+     * object. This class is only meant to hold static methods.
+     */
+    private LocationTokenizer() {
+    }
+
+    /*
+     * Return the offset part of the location (i.e. "10km NW of"), or null if there is none.
+     */
+    public static String getOffset(String location) {
+        int separatorIndex = findSeparator(location);
+        if (separatorIndex < 0) {
+            return null;
+        }
+        // Keep the "of", drop the trailing space
+        return location.substring(0, separatorIndex + SEPARATOR.length() - 1);
+    }
+
+    /*
+     * Return the primary part of the location (i.e. "Tokyo, Japan"). If the location has no
+     * offset, this is the whole location.
+     */
+    public static String getPrimary(String location) {
+        int separatorIndex = findSeparator(location);
+        if (separatorIndex < 0) {
+            return location;
+        }
+        return location.substring(separatorIndex + SEPARATOR.length());
+    }
+
+    /*
+     * Return the index of the separator ending the offset, or -1 if the location has no offset.
+     */
+    private static int findSeparator(String location) {
+        if (location == null || location.isEmpty()) {
+            return -1;
+        }
+        int separatorIndex = location.indexOf(SEPARATOR);
+        if (separatorIndex < 0) {
+            return -1;
+        }
+
+        // A distance
+        if (Character.isDigit(location.charAt(0))) {
+            return separatorIndex;
+        }
+        // A compass direction and nothing else
+        for (String direction : DIRECTIONS) {
+            if (separatorIndex == direction.length()
+                    && location.regionMatches(true, 0, direction, 0, separatorIndex)) {
+                return separatorIndex;
+            }
+        }
+        // A coast
+        for (String prefix : COAST_PREFIXES) {
+            if (separatorIndex > prefix.length()
+                    && location.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return separatorIndex;
+            }
+        }
+        return -1;
+    }
+}
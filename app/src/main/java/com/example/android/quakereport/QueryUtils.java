@@ -4,23 +4,23 @@ package com.example.android.quakereport;
  * Created by namlu on 02-Feb-17.
  */
 
-import android.text.TextUtils;
+import android.content.Context;
+import android.net.Uri;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * Helper methods related to requesting and receiving earthquake data from USGS.
@@ -30,6 +30,21 @@ public final class QueryUtils {
     /* Tag for the log messages */
     public static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
+    /* Query parameters used by the USGS API to select a time window or region */
+    private static final String PARAM_START_TIME = "starttime";
+    private static final String PARAM_END_TIME = "endtime";
+    private static final String PARAM_MIN_LATITUDE = "minlatitude";
+    private static final String PARAM_MAX_LATITUDE = "maxlatitude";
+    private static final String PARAM_MIN_LONGITUDE = "minlongitude";
+    private static final String PARAM_MAX_LONGITUDE = "maxlongitude";
+
+    /* Query parameter and value used by the USGS API to select the response format */
+    private static final String PARAM_FORMAT = "format";
+    private static final String FORMAT_CSV = "csv";
+
+    /* Time format accepted by the USGS API, in UTC */
+    private static final String ISO_8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
      * This class is only meant to hold static variables and methods, which can be accessed
@@ -39,25 +54,135 @@ public final class QueryUtils {
     }
 
     /*
-     * Query the USGS dataset and return an {@link Earthquake} object to represent a single earthquake.
+     * Query the USGS dataset and return an {@link EarthquakeStore} holding the earthquakes, or
+     * null if the request failed.
+     */
+    public static EarthquakeStore fetchEarthquakeData(Context context, String requestUrl) {
+        return fetchEarthquakes(context, requestUrl).getEarthquakes();
+    }
+
+    /*
+     * Query the USGS dataset and return a {@link FetchResult} with the earthquakes, telling
+     * whether the request failed and how.
      */
-    public static List<Earthquake> fetchEarthquakeData(String requestUrl) {
+    public static FetchResult fetchEarthquakes(Context context, String requestUrl) {
+        return fetchEarthquakes(context, requestUrl, 0, null);
+    }
+
+    /*
+     * Query the USGS dataset and return a {@link FetchResult} with the earthquakes, passing them
+     * to the given listener in batches while the response is still being read.
+     *
+     * Interrupting the calling thread cancels the request; it then fails with a network error
+     * and the thread stays interrupted.
+     *
+     * @param flags options of the request, a combination of the {@link HttpFetcher} FLAG
+     *              constants
+     * @param listener to pass the earthquakes to as they are parsed, or null
+     */
+    public static FetchResult fetchEarthquakes(Context context, String requestUrl, int flags,
+                                               EarthquakePipeline.PartialResultListener listener) {
+        return fetchEarthquakes(HttpFetcher.getInstance(context), requestUrl, flags, listener);
+    }
+
+    /*
+     * Query the USGS dataset through the given {@link HttpFetcher}, as
+     * {@link #fetchEarthquakes(Context, String, int, EarthquakePipeline.PartialResultListener)}.
+     */
+    static FetchResult fetchEarthquakes(HttpFetcher fetcher, String requestUrl, int flags,
+                                        EarthquakePipeline.PartialResultListener listener) {
         // Create a URL object
         URL url = createUrl(requestUrl);
 
-        // Perform HTTP request to the URL and receive a JSON response back
-        String jsonResponse = null;
+        // Perform HTTP request to the URL and parse the response as it streams in
         try {
-            jsonResponse = makeHttpRequest(url);
+            return makeHttpRequest(fetcher, url, flags, listener);
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Error obtaining JSON response.", e);
+            Log.e(LOG_TAG, "Problem retrieving the earthquake results.", e);
+            return FetchResult.networkError();
         }
+    }
 
-        // Extract relevant fields from the JSON response and create a List of {@link Earthquake}
-        List<Earthquake> earthquakes = extractEarthquakesFromJson(jsonResponse);
+    /*
+     * Split a query over [startTimeInMills, endTimeInMills) into the given number of shard URLs
+     * covering consecutive, equally long time windows, most recent first, to be fetched together
+     * with {@link RequestScheduler#fetchShards}.
+     *
+     * @param requestUrl USGS query URL without any "starttime" or "endtime" parameters
+     */
+    public static List<String> buildTimeShards(String requestUrl, long startTimeInMills,
+                                               long endTimeInMills, int shardCount) {
+        SimpleDateFormat isoFormat = createIsoFormat();
 
-        // Return the List of {@link Earthquake}
-        return earthquakes;
+        List<String> shardUrls = new ArrayList<>(shardCount);
+        long windowLength = Math.max(1, (endTimeInMills - startTimeInMills) / shardCount);
+        long windowEnd = endTimeInMills;
+        for (int i = 0; i < shardCount && windowEnd > startTimeInMills; i++) {
+            long windowStart = i == shardCount - 1
+                    ? startTimeInMills : Math.max(startTimeInMills, windowEnd - windowLength);
+            shardUrls.add(buildTimeWindowUrl(requestUrl, windowStart, windowEnd, isoFormat));
+            windowEnd = windowStart;
+        }
+        return shardUrls;
+    }
+
+    /*
+     * Return the given query restricted to the time window [startTimeInMills, endTimeInMills).
+     *
+     * @param requestUrl USGS query URL without any "starttime" or "endtime" parameters
+     */
+    public static String buildTimeWindowUrl(String requestUrl, long startTimeInMills,
+                                            long endTimeInMills) {
+        return buildTimeWindowUrl(requestUrl, startTimeInMills, endTimeInMills, createIsoFormat());
+    }
+
+    private static String buildTimeWindowUrl(String requestUrl, long startTimeInMills,
+                                             long endTimeInMills, SimpleDateFormat isoFormat) {
+        return Uri.parse(requestUrl).buildUpon()
+                .appendQueryParameter(PARAM_START_TIME,
+                        isoFormat.format(new Date(startTimeInMills)))
+                .appendQueryParameter(PARAM_END_TIME, isoFormat.format(new Date(endTimeInMills)))
+                .build()
+                .toString();
+    }
+
+    /*
+     * Return the given query restricted to earthquakes at or before the given time.
+     *
+     * @param requestUrl USGS query URL without an "endtime" parameter
+     */
+    public static String buildEndTimeUrl(String requestUrl, long endTimeInMills) {
+        return Uri.parse(requestUrl).buildUpon()
+                .appendQueryParameter(PARAM_END_TIME,
+                        createIsoFormat().format(new Date(endTimeInMills)))
+                .build()
+                .toString();
+    }
+
+    private static SimpleDateFormat createIsoFormat() {
+        SimpleDateFormat isoFormat = new SimpleDateFormat(ISO_8601_FORMAT, Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return isoFormat;
+    }
+
+    /*
+     * Return one shard URL per bounding box, each box given as
+     * {minLatitude, maxLatitude, minLongitude, maxLongitude}.
+     *
+     * @param requestUrl USGS query URL without any latitude or longitude parameters
+     */
+    public static List<String> buildRegionShards(String requestUrl, double[][] boundingBoxes) {
+        List<String> shardUrls = new ArrayList<>(boundingBoxes.length);
+        for (double[] box : boundingBoxes) {
+            shardUrls.add(Uri.parse(requestUrl).buildUpon()
+                    .appendQueryParameter(PARAM_MIN_LATITUDE, String.valueOf(box[0]))
+                    .appendQueryParameter(PARAM_MAX_LATITUDE, String.valueOf(box[1]))
+                    .appendQueryParameter(PARAM_MIN_LONGITUDE, String.valueOf(box[2]))
+                    .appendQueryParameter(PARAM_MAX_LONGITUDE, String.valueOf(box[3]))
+                    .build()
+                    .toString());
+        }
+        return shardUrls;
     }
 
     /*
@@ -75,123 +200,82 @@ public final class QueryUtils {
     }
 
     /*
-     * Make an HTTP request to the given URL and return a String as the response.
+     * Make an HTTP request to the given URL and return the {@link Earthquake}s parsed from the
+     * response.
      */
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
-
+    private static FetchResult makeHttpRequest(HttpFetcher fetcher, URL url, int flags,
+            final EarthquakePipeline.PartialResultListener listener) throws IOException {
         // If url is null, then return early
         if (url == null) {
-            return jsonResponse;
+            return FetchResult.networkError();
         }
 
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
+        // Parse the response body while it streams in, one earthquake at a time
+        final URL requestUrl = url;
+        HttpFetcher.Response<FetchResult> response =
+                fetcher.fetch(url, new HttpFetcher.BodyReader<FetchResult>() {
+                    @Override
+                    public FetchResult read(InputStream inputStream) throws IOException {
+                        return EarthquakePipeline.read(requestUrl, inputStream,
+                                EarthquakeParser.FIELDS_ALL, listener);
+                    }
+                }, flags);
 
-        /*
-         * Create connection to object, setup parameters and general request properties, and
-         * make the actual connection to remote object
-         */
-        try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            /* time in milliseconds */
-            urlConnection.setReadTimeout(10000);
-            urlConnection.setReadTimeout(15000);
-            urlConnection.connect();
-
-            /*
-             * If connection is successful (Response code = 200), read the input stream
-             * and parse the response
-             */
-            if (urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
-            } else {
-                Log.e(LOG_TAG, "Error response code: " + urlConnection.getResponseCode());
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Problem retrieving JSON results.", e);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (inputStream != null) {
-                inputStream.close();
-            }
+        FetchResult result = response.getBody();
+        if (response.isNotModified() && result == null) {
+            return FetchResult.notModified();
+        }
+        if (result == null) {
+            return FetchResult.httpError(response.getCode());
         }
-        return jsonResponse;
+        if (response.isNotModified() && result.hasEarthquakes()) {
+            return new FetchResult(FetchResult.STATUS_NOT_MODIFIED, response.getCode(),
+                    result.getEarthquakes(), result.getSkippedCount(), result.isComplete());
+        }
+        return result;
     }
 
     /*
-     * Convert the binary data {@link InputStream} into a String which contains the
-     * whole JSON response from the server.
+     * Read a whole UTF-8 response body, e.g. a count or a single event, into a String.
      */
-    private static String readFromStream(InputStream inputStream) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-
-        if (inputStream != null) {
-            // InputStreamReader reads bytes and decodes them into characters using a specified charset
-            InputStreamReader inputStreamReader =
-                    new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-
-            // Since InputStreamReader only read a single character at a time, wrapping it in a
-            // BufferedReader will buffer the input before converting into characters and returning
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-            String line = bufferedReader.readLine();
-
-            while (line != null) {
-                stringBuilder.append(line);
-                line = bufferedReader.readLine();
-            }
+    static String readText(InputStream inputStream) throws IOException {
+        Reader reader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            text.append(buffer, 0, read);
         }
-        return stringBuilder.toString();
+        return text.toString();
     }
 
     /*
-     * Return a List of {@link Earthquake} object by parsing out information
-     * about the earthquake from the input earthquakeJSON string.
+     * Return a parser reading the given fields from the response to the given USGS URL, in the
+     * format the URL asked for.
      */
-    private static List<Earthquake> extractEarthquakesFromJson(String earthquakeJSON) {
+    static EarthquakeParser createParser(URL url, InputStream inputStream, int fields) {
+        return isCsv(url)
+                ? new EarthquakeCsvParser(inputStream, fields)
+                : new EarthquakeJsonParser(inputStream, fields);
+    }
 
-        // If the JSON string is empty or null, then return early.
-        if (TextUtils.isEmpty(earthquakeJSON)) {
-            return null;
+    /*
+     * Return true if the given USGS URL asks for CSV: a query with "format=csv", or a ".csv"
+     * summary feed. Anything else is read as GeoJSON.
+     */
+    private static boolean isCsv(URL url) {
+        if (url.getPath().endsWith("." + FORMAT_CSV)) {
+            return true;
         }
-
-        // Create an empty List that we can start adding earthquakes to
-        List<Earthquake> earthquakes = new ArrayList<>();
-
-        try {
-            JSONObject earthquakeObject = new JSONObject(earthquakeJSON);
-            JSONArray featuresArray = earthquakeObject.getJSONArray("features");
-
-            // If there are results in the JSONArray, then continue
-            if (featuresArray.length() > 0) {
-
-                // For each earthquake in JSONArray, create an {@link Earthquake} object and add it to
-                // the earthquakes List.
-                for (int i = 0; i < featuresArray.length(); i++) {
-
-                    // Extract each "Feature" object, and get its "properties" object, which
-                    // contains data needed for an {@link Earthquake} object
-                    JSONObject currentEarthquake = featuresArray.getJSONObject(i);
-                    JSONObject properties = currentEarthquake.getJSONObject("properties");
-
-                    // Extract the magnitude, location, time, and URL from the JSON object
-                    double magnitude = properties.getDouble("mag");
-                    String location = properties.getString("place");
-                    long timeInMills = properties.getLong("time");
-                    String url = properties.getString("url");
-
-                    // Add a {@link Earthquake} object to the list earthquakes
-                    earthquakes.add(new Earthquake(magnitude, location, timeInMills, url));
-                }
+        String query = url.getQuery();
+        if (query == null) {
+            return false;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.equals(PARAM_FORMAT + "=" + FORMAT_CSV)) {
+                return true;
             }
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
         }
-        // Return a list of {@link Earthquake}
-        return earthquakes;
+        return false;
     }
 }
@@ -0,0 +1,369 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the USGS requests made by {@link EarthquakeLoader}s.
+ *
+ * - Identical requests are coalesced: if a URL is already being fetched, a second caller waits
+ *   for that fetch instead of starting its own. When a fetch is shared, every caller gets its
+ *   own copy of the earthquakes.
+ * - Transient failures (network errors, 5xx and 429 responses) are retried up to MAX_ATTEMPTS
+ *   times, with an exponential backoff randomized over the whole delay ("full jitter") so
+ *   clients that failed together do not all come back at once.
+ * - At most MAX_CONCURRENT_REQUESTS requests are sent at a time. Waiting out a backoff does not
+ *   hold a slot.
+ * - A query split into shards (e.g. by {@link QueryUtils#buildTimeShards}) is fetched with
+ *   {@link #fetchShards}: the shards run concurrently, within the same limit on requests, each
+ *   with its share of one deadline, and are merged by time into one list.
+ *
+ * {@link #fetch(String, int)} and {@link #fetchShards} block, so they must be called from a
+ * background thread.
+ */
+public final class RequestScheduler {
+
+    /* Tag for the log messages */
+    private static final String LOG_TAG = RequestScheduler.class.getSimpleName();
+
+    /* Maximum number of requests sent to USGS at the same time */
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+
+    /* Maximum number of tries for one request, including the first */
+    private static final int MAX_ATTEMPTS = 4;
+
+    /* Backoff before the first retry, doubled for every retry after it, in milliseconds */
+    private static final long BASE_BACKOFF = 1000;
+
+    /* Longest backoff between two tries, in milliseconds */
+    private static final long MAX_BACKOFF = 30 * 1000;
+
+    private static RequestScheduler sInstance;
+
+    // Names the threads fetching shards, which must not keep the process alive
+    private static final ThreadFactory sShardThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RequestScheduler-shard");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    // Interrupts the shards still running at the end of their share of the deadline
+    private static final ScheduledExecutorService sShardTimer =
+            Executors.newSingleThreadScheduledExecutor(sShardThreadFactory);
+
+    private final HttpFetcher mFetcher;
+
+    private final Semaphore mRequestPermits = new Semaphore(MAX_CONCURRENT_REQUESTS, true);
+
+    // Fetch in progress for each URL; guarded by itself
+    private final Map<String, InFlightRequest> mInFlight = new HashMap<>();
+
+    private final Random mRandom = new Random();
+
+    RequestScheduler(HttpFetcher fetcher) {
+        mFetcher = fetcher;
+    }
+
+    /*
+     * Return the single {@link RequestScheduler} for the app.
+     */
+    public static synchronized RequestScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RequestScheduler(HttpFetcher.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    /*
+     * Fetch earthquakes from the given URL, joining a fetch of the same URL already in progress,
+     * and retrying transient failures. Returns the result of the last try.
+     */
+    public FetchResult fetch(String url) {
+        return fetch(url, 0);
+    }
+
+    /*
+     * Fetch earthquakes from the given URL with the given {@link HttpFetcher} FLAG options. Only
+     * a fetch in progress with the same options is joined.
+     */
+    public FetchResult fetch(String url, int flags) {
+        return fetch(url, flags, null);
+    }
+
+    /*
+     * Fetch earthquakes like {@link #fetch(String, int)}, passing them to the given listener in
+     * batches while the response is still being read. A try that fails after passing some on
+     * is followed by a retry that passes them on again, so the listener may see the same event
+     * ids more than once. A caller that joins a fetch already in progress gets no batches.
+     *
+     * @param listener to pass the earthquakes to as they are parsed, or null
+     */
+    public FetchResult fetch(final String url, final int flags,
+                             final EarthquakePipeline.PartialResultListener listener) {
+        String key = flags + ":" + url;
+        InFlightRequest request;
+        boolean owner = false;
+        synchronized (mInFlight) {
+            request = mInFlight.get(key);
+            if (request == null) {
+                request = new InFlightRequest(new Callable<FetchResult>() {
+                    @Override
+                    public FetchResult call() {
+                        return fetchWithRetries(url, flags, listener);
+                    }
+                });
+                mInFlight.put(key, request);
+                owner = true;
+            } else {
+                request.shared = true;
+            }
+        }
+
+        if (owner) {
+            // Run the fetch on this thread; other callers for the URL wait for it
+            try {
+                request.task.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+
+        FetchResult result;
+        boolean shared;
+        try {
+            result = request.task.get();
+            synchronized (mInFlight) {
+                shared = request.shared;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FetchResult.networkError();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem fetching " + url, e.getCause());
+            return FetchResult.networkError();
+        }
+
+        // Callers may change the store they get, so a store read by several callers is left
+        // untouched and each of them gets a copy
+        if (shared && result.hasEarthquakes()) {
+            result = new FetchResult(result.getStatus(), result.getHttpCode(),
+                    new EarthquakeStore(result.getEarthquakes()), result.getSkippedCount(),
+                    result.isComplete());
+        }
+        return result;
+    }
+
+    /*
+     * Fetch the shards of a query, at most concurrency of them at a time, and merge their
+     * earthquakes into one store, most recent first, with duplicates removed by event id.
+     *
+     * All the shards share one deadline, timeoutMillis from now. A shard gets an even share of
+     * the time left when it starts: the time left divided by the number of rounds of concurrency
+     * shards still to start. A shard still running at the end of its share is cancelled, so a
+     * slow one cannot use up the time of the shards waiting behind it. Cancelled shards, like
+     * shards that failed, are left out of the result.
+     *
+     * Every time range is fetched once, so shards are fetched with HttpFetcher.FLAG_NO_CACHE
+     * rather than filling the HTTP cache and evicting the responses worth revalidating.
+     *
+     * @param concurrency largest number of shards fetched at a time. Requests are still sent at
+     *                    most MAX_CONCURRENT_REQUESTS at a time in all, so more shards than that
+     *                    would only wait for their turn.
+     * @return the merged earthquakes, complete only if every shard succeeded, or a network error
+     * if none did
+     */
+    public FetchResult fetchShards(List<String> shardUrls, int concurrency, long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final int threadCount = Math.max(1, Math.min(concurrency, shardUrls.size()));
+        final AtomicInteger unstartedCount = new AtomicInteger(shardUrls.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, sShardThreadFactory);
+
+        List<Future<FetchResult>> futures = new ArrayList<>(shardUrls.size());
+        for (final String shardUrl : shardUrls) {
+            futures.add(executor.submit(new Callable<FetchResult>() {
+                @Override
+                public FetchResult call() {
+                    int rounds = (unstartedCount.getAndDecrement() + threadCount - 1)
+                            / threadCount;
+                    return fetchShard(shardUrl, (deadline - System.nanoTime()) / rounds);
+                }
+            }));
+        }
+
+        List<EarthquakeStore> shards = new ArrayList<>(futures.size());
+        int skippedCount = 0;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<FetchResult> future = futures.get(i);
+                try {
+                    FetchResult result = future.get(
+                            Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (result.hasEarthquakes() && result.isComplete()) {
+                        shards.add(result.getEarthquakes());
+                        skippedCount += result.getSkippedCount();
+                    }
+                } catch (TimeoutException e) {
+                    Log.e(LOG_TAG, "Timed out fetching shard " + shardUrls.get(i));
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Problem fetching shard " + shardUrls.get(i), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Stop the shards still running or waiting for a thread
+            for (Future<FetchResult> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+
+        if (shards.isEmpty()) {
+            return FetchResult.networkError();
+        }
+        boolean complete = shards.size() == shardUrls.size();
+        return new FetchResult(
+                complete && skippedCount == 0 ? FetchResult.STATUS_SUCCESS
+                        : FetchResult.STATUS_PARTIAL,
+                HttpURLConnection.HTTP_OK, EarthquakeStore.mergeSorted(shards), skippedCount,
+                complete);
+    }
+
+    /*
+     * Fetch one shard of a query, interrupting it if it is still running after the given time
+     * (in nanoseconds).
+     */
+    private FetchResult fetchShard(String shardUrl, long timeoutNanos) {
+        ShardTimeout timeout = new ShardTimeout(Thread.currentThread(), mFetcher);
+        ScheduledFuture<?> timer =
+                sShardTimer.schedule(timeout, Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+        try {
+            return fetch(shardUrl, HttpFetcher.FLAG_NO_CACHE);
+        } finally {
+            timer.cancel(false);
+            if (timeout.finish()) {
+                Log.e(LOG_TAG, "Timed out fetching shard " + shardUrl);
+            }
+        }
+    }
+
+    /*
+     * Fetch the given URL, backing off and trying again while the failures are transient.
+     */
+    private FetchResult fetchWithRetries(String url, int flags,
+                                         EarthquakePipeline.PartialResultListener listener) {
+        FetchResult result = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                long backoff = getBackoff(attempt);
+                Log.w(LOG_TAG, "Retrying " + url + " in " + backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return result;
+                }
+            }
+
+            try {
+                mRequestPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result != null ? result : FetchResult.networkError();
+            }
+            try {
+                result = QueryUtils.fetchEarthquakes(mFetcher, url, flags, listener);
+            } finally {
+                mRequestPermits.release();
+            }
+
+            if (!result.isTransientFailure()) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Return a random backoff (in milliseconds) before the given retry, between 0 and
+     * BASE_BACKOFF * 2^(attempt - 1), capped at MAX_BACKOFF.
+     */
+    private long getBackoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF, BASE_BACKOFF << (attempt - 1));
+        return (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    /*
+     * Stops the fetch of a shard when the time of the shard is up, by interrupting its thread
+     * and aborting its request, unless the fetch has finished by then.
+     */
+    private static final class ShardTimeout implements Runnable {
+        private final Thread mThread;
+        private final HttpFetcher mFetcher;
+
+        // Guarded by this
+        private boolean mFinished;
+        private boolean mTimedOut;
+
+        ShardTimeout(Thread thread, HttpFetcher fetcher) {
+            mThread = thread;
+            mFetcher = fetcher;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mFinished) {
+                mTimedOut = true;
+                mThread.interrupt();
+                mFetcher.abort(mThread);
+            }
+        }
+
+        /*
+         * Mark the fetch finished, so it is no longer interrupted, and return true if it was.
+         */
+        synchronized boolean finish() {
+            mFinished = true;
+            return mTimedOut;
+        }
+    }
+
+    /*
+     * A fetch in progress, and whether more than one caller is waiting for it.
+     */
+    private static final class InFlightRequest {
+        final FutureTask<FetchResult> task;
+
+        // Guarded by mInFlight
+        boolean shared;
+
+        InFlightRequest(Callable<FetchResult> callable) {
+            task = new FutureTask<>(callable);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid index over the coordinates of the rows of an {@link EarthquakeStore}.
+ *
+ * The globe is divided into cells of CELL_DEGREES by CELL_DEGREES, and each cell lists the rows
+ * whose epicenter falls inside it. Rows are added one at a time, and radius or bounding-box
+ * queries only look at the rows in the few cells overlapping the query area instead of scanning
+ * every earthquake.
+ */
+final class SpatialIndex {
+
+    /* Size of a grid cell, in degrees of latitude and longitude */
+    private static final double CELL_DEGREES = 1.0;
+
+    /* Number of cells around the globe along a parallel */
+    private static final int LONGITUDE_CELLS = (int) (360 / CELL_DEGREES);
+
+    /* Mean radius of the Earth, in kilometers */
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    /* Kilometers per degree of latitude */
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    // Rows in each non-empty cell, keyed by cell number
+    private final Map<Integer, Cell> mCells;
+
+    SpatialIndex() {
+        mCells = new HashMap<>();
+    }
+
+    /*
+     * Add a row of the store at the given coordinates. Rows without coordinates are ignored.
+     */
+    void add(int row, double latitude, double longitude) {
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return;
+        }
+
+        int cellNumber = cellNumber(latitudeCell(latitude), longitudeCell(longitude));
+        Cell cell = mCells.get(cellNumber);
+        if (cell == null) {
+            cell = new Cell();
+            mCells.put(cellNumber, cell);
+        }
+        cell.add(row);
+    }
+
+    /*
+     * Return the rows of the store within radiusKm kilometers of the given point, in no
+     * particular order.
+     */
+    int[] findWithinRadius(EarthquakeStore store, double latitude, double longitude,
+                           double radiusKm) {
+        double latitudeSpan = radiusKm / KM_PER_DEGREE;
+        double minLatitude = Math.max(-90, latitude - latitudeSpan);
+        double maxLatitude = Math.min(90, latitude + latitudeSpan);
+
+        // Parallels get shorter towards the poles, so widen the longitude span accordingly
+        double cosLatitude = Math.cos(Math.toRadians(Math.max(Math.abs(minLatitude),
+                Math.abs(maxLatitude))));
+        double longitudeSpan = cosLatitude > 0 ? latitudeSpan / cosLatitude : 360;
+
+        double cosPoint = Math.cos(Math.toRadians(latitude));
+        Result result = new Result();
+        for (Cell cell : findCells(minLatitude, maxLatitude,
+                longitude - longitudeSpan, longitude + longitudeSpan)) {
+            for (int i = 0; i < cell.size; i++) {
+                int row = cell.rows[i];
+                if (distanceKm(latitude, longitude, cosPoint,
+                        store.getLatitude(row), store.getLongitude(row)) <= radiusKm) {
+                    result.add(row);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    /*
+     * Return the rows of the store inside the given bounding box, in no particular order.
+     * If minLongitude is greater than maxLongitude, the box crosses the antimeridian.
+     */
+    int[] findInBox(EarthquakeStore store, double minLatitude, double maxLatitude,
+                    double minLongitude, double maxLongitude) {
+        if (minLongitude > maxLongitude) {
+            maxLongitude += 360;
+        }
+
+        Result result = new Result();
+        for (Cell cell : findCells(minLatitude, maxLatitude, minLongitude, maxLongitude)) {
+            for (int i = 0; i < cell.size; i++) {
+                int row = cell.rows[i];
+                double rowLatitude = store.getLatitude(row);
+                double rowLongitude = store.getLongitude(row);
+                if (rowLongitude < minLongitude) {
+                    rowLongitude += 360;
+                }
+                if (rowLatitude >= minLatitude && rowLatitude <= maxLatitude
+                        && rowLongitude >= minLongitude && rowLongitude <= maxLongitude) {
+                    result.add(row);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    /*
+     * Return every non-empty cell overlapping the given area, once each. Longitudes may run
+     * past 180 to wrap around the antimeridian.
+     */
+    private List<Cell> findCells(double minLatitude, double maxLatitude, double minLongitude,
+                                 double maxLongitude) {
+        int firstLatitudeCell = latitudeCell(Math.max(-90, minLatitude));
+        int lastLatitudeCell = latitudeCell(Math.min(90, maxLatitude));
+
+        // Never visit the same column of cells twice
+        int longitudeCells = (int) Math.min(LONGITUDE_CELLS, Math.floor(maxLongitude / CELL_DEGREES)
+                - Math.floor(minLongitude / CELL_DEGREES) + 1);
+        int firstLongitudeCell = longitudeCell(minLongitude);
+
+        List<Cell> cells = new ArrayList<>();
+        for (int latitudeCell = firstLatitudeCell; latitudeCell <= lastLatitudeCell; latitudeCell++) {
+            for (int i = 0; i < longitudeCells; i++) {
+                int longitudeCell = (firstLongitudeCell + i) % LONGITUDE_CELLS;
+                Cell cell = mCells.get(cellNumber(latitudeCell, longitudeCell));
+                if (cell != null) {
+                    cells.add(cell);
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static int latitudeCell(double latitude) {
+        // Latitude 90 belongs to the last row of cells
+        return (int) Math.min(Math.floor((latitude + 90) / CELL_DEGREES), 180 / CELL_DEGREES - 1);
+    }
+
+    private static int longitudeCell(double longitude) {
+        int cell = (int) Math.floor((longitude + 180) / CELL_DEGREES) % LONGITUDE_CELLS;
+        return cell < 0 ? cell + LONGITUDE_CELLS : cell;
+    }
+
+    private static int cellNumber(int latitudeCell, int longitudeCell) {
+        return latitudeCell * LONGITUDE_CELLS + longitudeCell;
+    }
+
+    /*
+     * Return the great-circle distance in kilometers between two points (haversine formula).
+     * cosLatitude is the cosine of the first point's latitude, computed once per query.
+     */
+    private static double distanceKm(double latitude, double longitude, double cosLatitude,
+                                     double otherLatitude, double otherLongitude) {
+        double sinHalfLatitude = Math.sin(Math.toRadians(otherLatitude - latitude) / 2);
+        double sinHalfLongitude = Math.sin(Math.toRadians(otherLongitude - longitude) / 2);
+        double h = sinHalfLatitude * sinHalfLatitude + cosLatitude
+                * Math.cos(Math.toRadians(otherLatitude)) * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /*
+     * Growable list of the rows in one cell.
+     */
+    private static final class Cell {
+        int[] rows;
+        int size;
+
+        Cell() {
+            rows = new int[4];
+        }
+
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(4, size * 2));
+            }
+            rows[size++] = row;
+        }
+    }
+
+    /*
+     * Growable list of matching rows.
+     */
+    private static final class Result {
+        private int[] mRows = new int[16];
+        private int mSize;
+
+        void add(int row) {
+            if (mSize == mRows.length) {
+                mRows = Arrays.copyOf(mRows, mSize * 2);
+            }
+            mRows[mSize++] = row;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mRows, mSize);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.quakereport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary that encodes repeated strings as small int codes, so each distinct string is only
+ * held in memory once no matter how many earthquakes refer to it.
+ *
+ * Codes are handed out in order starting from 0 and never change. The dictionary is safe to
+ * use from several threads, e.g. a background load encoding while the UI thread decodes.
+ * Strings are never removed, so a store that replaces rows starts a new dictionary instead (see
+ * {@link EarthquakeStore#merge}).
+ */
+public final class StringDictionary {
+
+    /* Code used for a null string */
+    public static final int NO_CODE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Integer> mCodes = new HashMap<>();
+    private String[] mStrings = new String[16];
+    private int mSize;
+
+    /*
+     * Return the code for the given string, adding it to the dictionary if needed.
+     */
+    public synchronized int encode(String string) {
+        if (string == null) {
+            return NO_CODE;
+        }
+
+        Integer code = mCodes.get(string);
+        if (code != null) {
+            return code;
+        }
+
+        if (mSize == mStrings.length) {
+            mStrings = Arrays.copyOf(mStrings, mSize * 2);
+        }
+        mStrings[mSize] = string;
+        mCodes.put(string, mSize);
+        return mSize++;
+    }
+
+    /*
+     * Return the string for the given code.
+     */
+    public synchronized String decode(int code) {
+        return code == NO_CODE ? null : mStrings[code];
+    }
+
+    /*
+     * Return the number of distinct strings in the dictionary.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /*
+     * Write a string as its length in UTF-8 bytes followed by the bytes. Null is written as a
+     * length of -1.
+     */
+    static void writeString(DataOutputStream output, String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /*
+     * Read a string written by {@link #writeString}.
+     */
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Corrupt snapshot");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
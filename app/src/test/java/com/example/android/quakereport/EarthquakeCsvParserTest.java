@@ -0,0 +1,183 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EarthquakeCsvParserTest {
+
+    private static final String HEADER = "time,latitude,longitude,depth,mag,id,updated,place";
+
+    @Test
+    public void readsEveryField() throws IOException, ParseException {
+        EarthquakeCsvParser parser = parser(HEADER + "\n"
+                + "2017-02-01T12:34:56.789Z,-20.5,-70.25,33.1,6.2,us1,"
+                + "2017-02-02T00:00:00.000Z,76 km SSE of Iquique\n", EarthquakeParser.FIELDS_ALL);
+
+        Earthquake earthquake = parser.next();
+        assertEquals(time("2017-02-01 12:34:56.789"), earthquake.getTimeInMills());
+        assertEquals(time("2017-02-02 00:00:00.000"), earthquake.getUpdatedInMills());
+        assertEquals(-20.5, earthquake.getLatitude(), 0);
+        assertEquals(-70.25, earthquake.getLongitude(), 0);
+        assertEquals(33.1, earthquake.getDepth(), 0);
+        assertEquals(6.2, earthquake.getMagnitude(), 0);
+        assertEquals("us1", earthquake.getId());
+        assertEquals("76 km SSE of Iquique", earthquake.getLocation());
+        // The store builds the event page URL from the id
+        assertNull(earthquake.getUrl());
+        assertNull(parser.next());
+        assertEquals(0, parser.getSkippedCount());
+    }
+
+    @Test
+    public void readsQuotedCells() throws IOException {
+        List<Earthquake> earthquakes = parseAll(HEADER + "\r\n"
+                + "2017-02-01T00:00:00.000Z,0,0,10,5,us1,,\"76 km SSE of Iquique, Chile\"\r\n"
+                + "\r\n"
+                + "2017-02-01T00:00:00.000Z,0,0,10,5,us2,,\"the \"\"Ring\"\" of Fire\"\r\n"
+                + "2017-02-01T00:00:00.000Z,0,0,10,5,us3,,\"two\nlines\"\r\n"
+                + "\"2017-02-01T00:00:00.000Z\",0,0,10,\"5\",us4,,\"\"\n");
+
+        assertEquals(4, earthquakes.size());
+        assertEquals("76 km SSE of Iquique, Chile", earthquakes.get(0).getLocation());
+        assertEquals("Iquique, Chile", earthquakes.get(0).getLocationPrimary());
+        assertEquals("the \"Ring\" of Fire", earthquakes.get(1).getLocation());
+        assertEquals("two\nlines", earthquakes.get(2).getLocation());
+        assertEquals(5, earthquakes.get(3).getMagnitude(), 0);
+        assertEquals("", earthquakes.get(3).getLocation());
+    }
+
+    @Test
+    public void findsColumnsByName() throws IOException {
+        List<Earthquake> earthquakes = parseAll("place,extra,id,mag,time\n"
+                + "Tokyo,\"a,b\",us1,4.5,2017-02-01T00:00:00.000Z\n");
+
+        assertEquals(1, earthquakes.size());
+        assertEquals("Tokyo", earthquakes.get(0).getLocation());
+        assertEquals("us1", earthquakes.get(0).getId());
+        assertEquals(4.5, earthquakes.get(0).getMagnitude(), 0);
+        assertTrue(Double.isNaN(earthquakes.get(0).getLatitude()));
+    }
+
+    @Test
+    public void skipsRowsWithoutMagnitudeOrTime() throws IOException {
+        EarthquakeCsvParser parser = parser(HEADER + "\n"
+                + "2017-02-01T00:00:00.000Z,0,0,10,,us1,,no magnitude\n"
+                + "2017-02-01T00:00:00.000Z,0,0,10,NaN,us2,,NaN magnitude\n"
+                + "yesterday,0,0,10,5,us3,,bad time\n"
+                + "2017-02-01T00:00:00.000Z,bad,0,10,5,us4,bad,bad latitude\n",
+                EarthquakeParser.FIELDS_ALL);
+
+        // Other malformed values are only left empty
+        Earthquake earthquake = parser.next();
+        assertEquals("us4", earthquake.getId());
+        assertTrue(Double.isNaN(earthquake.getLatitude()));
+        assertEquals(0, earthquake.getLongitude(), 0);
+        assertEquals(0, earthquake.getUpdatedInMills());
+        assertNull(parser.next());
+        assertEquals(3, parser.getSkippedCount());
+    }
+
+    @Test
+    public void leavesOutFieldsNotAskedFor() throws IOException {
+        EarthquakeCsvParser parser = parser(HEADER + "\n"
+                + "2017-02-01T00:00:00.000Z,-20.5,-70.25,33.1,6.2,us1,"
+                + "2017-02-02T00:00:00.000Z,\"76 km SSE of Iquique, Chile\"\n",
+                EarthquakeParser.FIELD_LOCATION);
+
+        Earthquake earthquake = parser.next();
+        assertEquals("us1", earthquake.getId());
+        assertEquals(6.2, earthquake.getMagnitude(), 0);
+        assertEquals("76 km SSE of Iquique, Chile", earthquake.getLocation());
+        assertEquals(0, earthquake.getUpdatedInMills());
+        assertTrue(Double.isNaN(earthquake.getLatitude()));
+        assertTrue(Double.isNaN(earthquake.getDepth()));
+    }
+
+    @Test
+    public void emptyBodyHasNoEarthquakes() throws IOException {
+        assertNull(parser("", EarthquakeParser.FIELDS_ALL).next());
+        assertNull(parser(HEADER + "\n", EarthquakeParser.FIELDS_ALL).next());
+    }
+
+    @Test(expected = IOException.class)
+    public void headerWithoutMagnitudeIsAnError() throws IOException {
+        parser("time,place\n2017-02-01T00:00:00.000Z,Tokyo\n", EarthquakeParser.FIELDS_ALL)
+                .next();
+    }
+
+    @Test
+    public void parsesTimes() throws ParseException {
+        assertEquals(0, EarthquakeCsvParser.parseTime("1970-01-01T00:00:00.000Z"));
+        assertEquals(time("2017-02-01 12:34:56.789"),
+                EarthquakeCsvParser.parseTime("2017-02-01T12:34:56.789Z"));
+        // Leap day, and a time before the epoch
+        assertEquals(time("2016-02-29 23:59:59.999"),
+                EarthquakeCsvParser.parseTime("2016-02-29T23:59:59.999Z"));
+        assertEquals(time("1906-04-18 13:12:21.000"),
+                EarthquakeCsvParser.parseTime("1906-04-18T13:12:21.000Z"));
+    }
+
+    @Test
+    public void parsesTimeFractions() throws ParseException {
+        long second = time("2017-02-01 12:34:56.000");
+        assertEquals(second, EarthquakeCsvParser.parseTime("2017-02-01T12:34:56Z"));
+        assertEquals(second, EarthquakeCsvParser.parseTime("2017-02-01T12:34:56"));
+        assertEquals(second + 700, EarthquakeCsvParser.parseTime("2017-02-01T12:34:56.7Z"));
+        assertEquals(second + 50, EarthquakeCsvParser.parseTime("2017-02-01T12:34:56.05Z"));
+        // Digits past the milliseconds are dropped
+        assertEquals(second + 123, EarthquakeCsvParser.parseTime("2017-02-01T12:34:56.123456Z"));
+    }
+
+    @Test
+    public void rejectsOtherTimeFormats() {
+        String[] times = {"", "2017-02-01", "2017-02-01 12:34:56.789Z",
+                "2017/02/01T12:34:56.789Z", "2017-02-01T12:34:5x.789Z", "1485952496789"};
+        for (String text : times) {
+            try {
+                EarthquakeCsvParser.parseTime(text);
+                fail("Parsed " + text);
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static EarthquakeCsvParser parser(String csv, int fields) {
+        return new EarthquakeCsvParser(
+                new ByteArrayInputStream(csv.getBytes(Charset.forName("UTF-8"))), fields);
+    }
+
+    private static List<Earthquake> parseAll(String csv) throws IOException {
+        EarthquakeCsvParser parser = parser(csv, EarthquakeParser.FIELDS_ALL);
+        List<Earthquake> earthquakes = new ArrayList<>();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            earthquakes.add(earthquake);
+        }
+        assertEquals(0, parser.getSkippedCount());
+        return earthquakes;
+    }
+
+    /*
+     * Return the given UTC time ("yyyy-MM-dd HH:mm:ss.SSS") in milliseconds since the epoch.
+     */
+    private static long time(String text) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(text).getTime();
+    }
+}
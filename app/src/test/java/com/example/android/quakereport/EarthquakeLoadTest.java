@@ -0,0 +1,351 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the fetch path: {@link HttpFetcher} and {@link EarthquakePipeline} reading CSV
+ * responses from a {@link StubUsgsServer}, once per network condition it simulates.
+ *
+ * Each scenario sends its requests from CLIENT_COUNT threads at once, with no retries, and checks
+ * the outcome of every one. The latency percentiles, throughput and heap high-water of every
+ * scenario are written to build/reports/loadtest/loadtest.csv, one row per scenario, so the
+ * reports of two builds can be diffed.
+ *
+ * The scenarios take a while, so they are left out of the unit tests and only run with
+ * ./gradlew testDebugUnitTest -PloadTests.
+ */
+@Category(LoadTests.class)
+public class EarthquakeLoadTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Number of threads sending requests at the same time */
+    private static final int CLIENT_COUNT = 4;
+
+    /* Recorded USGS response replayed by replaysFixture, in the test resources */
+    private static final String FIXTURE = "/usgs_query.csv";
+
+    /* Where the report is written, relative to the module being tested */
+    private static final File REPORT_FILE = new File("build/reports/loadtest/loadtest.csv");
+
+    private static final String REPORT_HEADER = "scenario,requests,failures,p50_ms,p90_ms,"
+            + "p99_ms,max_ms,requests_per_s,events_per_s,kb_per_s,heap_high_water_kb";
+
+    // Report row of every scenario run, by scenario name
+    private static final Map<String, String> sReportRows = new TreeMap<>();
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private StubUsgsServer mServer;
+
+    private HttpFetcher mFetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubUsgsServer();
+        mFetcher = new HttpFetcher(mTemporaryFolder.newFolder());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        File directory = REPORT_FILE.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(REPORT_FILE), UTF_8);
+        try {
+            writer.write(REPORT_HEADER + "\n");
+            for (String row : sReportRows.values()) {
+                writer.write(row + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void replaysFixture() throws Exception {
+        String csv = readFixture();
+        mServer.setCsv(csv);
+        final int eventCount = csv.split("\n").length - 1;
+
+        run("fixture_replay", 200, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+                assertEquals(eventCount, result.getEarthquakes().size());
+            }
+        });
+    }
+
+    @Test
+    public void readsSynthesizedEvents() throws Exception {
+        mServer.setEvents(5000);
+
+        run("synthesized_5000", 40, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+                assertEquals(5000, result.getEarthquakes().size());
+            }
+        });
+    }
+
+    @Test
+    public void waitsOutLatency() throws Exception {
+        mServer.setEvents(1000);
+        mServer.setLatencyMillis(200);
+
+        Scenario scenario = run("latency_200ms", 20, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+            }
+        });
+        assertTrue(scenario.getPercentileMillis(50) >= 200);
+    }
+
+    @Test
+    public void readsThroughBandwidthLimit() throws Exception {
+        mServer.setEvents(500);
+        mServer.setBytesPerSecond(256 * 1024);
+
+        run("bandwidth_256kb_per_s", 8, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+                assertEquals(500, result.getEarthquakes().size());
+            }
+        });
+    }
+
+    @Test
+    public void keepsWhatArrivedOfTruncatedBodies() throws Exception {
+        mServer.setEvents(2000);
+        mServer.setTruncateAfterBytes(UsgsFixtures.csv(2000).length / 2);
+
+        run("truncated_body", 20, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_PARTIAL, result.getStatus());
+                assertFalse(result.isComplete());
+                assertTrue(result.getEarthquakes().size() > 0);
+                assertTrue(result.getEarthquakes().size() < 2000);
+            }
+        });
+    }
+
+    @Test
+    public void reportsServerErrors() throws Exception {
+        mServer.setEvents(1000);
+        mServer.failNextRequests(503, 50);
+
+        run("server_error_503", 50, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_HTTP_ERROR, result.getStatus());
+                assertEquals(503, result.getHttpCode());
+                assertTrue(result.isTransientFailure());
+            }
+        });
+    }
+
+    @Test
+    public void answersNotModifiedFromCache() throws Exception {
+        mServer.setEvents(2000);
+        mServer.setEtag("\"v1\"");
+        assertEquals(FetchResult.STATUS_SUCCESS, fetch(0).getStatus());
+
+        run("not_modified_304", 50, 0, new Check() {
+            @Override
+            public void check(FetchResult result) {
+                assertEquals(FetchResult.STATUS_NOT_MODIFIED, result.getStatus());
+                assertEquals(2000, result.getEarthquakes().size());
+            }
+        });
+        assertEquals(50, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void skipsNotModifiedBodies() throws Exception {
+        mServer.setEvents(2000);
+        mServer.setEtag("\"v1\"");
+        assertEquals(FetchResult.STATUS_SUCCESS, fetch(0).getStatus());
+
+        run("not_modified_304_skip_body", 50, HttpFetcher.FLAG_SKIP_NOT_MODIFIED_BODY,
+                new Check() {
+                    @Override
+                    public void check(FetchResult result) {
+                        assertEquals(FetchResult.STATUS_NOT_MODIFIED, result.getStatus());
+                        assertFalse(result.hasEarthquakes());
+                    }
+                });
+    }
+
+    /*
+     * Send the given number of requests with the given HttpFetcher FLAG options from
+     * CLIENT_COUNT threads, check each result, and add the scenario to the report.
+     */
+    private Scenario run(String name, int requestCount, final int flags, Check check)
+            throws InterruptedException, ExecutionException {
+        LoadMetrics metrics = LoadMetrics.getInstance();
+        System.gc();
+        metrics.reset();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENT_COUNT);
+        List<Future<Sample>> futures = new ArrayList<>(requestCount);
+        long startTime = System.nanoTime();
+        try {
+            for (int i = 0; i < requestCount; i++) {
+                futures.add(executor.submit(new Callable<Sample>() {
+                    @Override
+                    public Sample call() {
+                        long requestStart = System.nanoTime();
+                        FetchResult result = fetch(flags);
+                        // The pipeline records it too, but not for responses it never reads
+                        LoadMetrics.getInstance().recordHeapUsage();
+                        return new Sample(System.nanoTime() - requestStart, result);
+                    }
+                }));
+            }
+
+            Scenario scenario = new Scenario(requestCount);
+            for (Future<Sample> future : futures) {
+                Sample sample = future.get();
+                check.check(sample.result);
+                scenario.add(sample);
+            }
+            scenario.finish(System.nanoTime() - startTime, metrics.getSnapshot());
+            sReportRows.put(name, scenario.toReportRow(name));
+            return scenario;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private FetchResult fetch(int flags) {
+        return QueryUtils.fetchEarthquakes(mFetcher, mServer.getQueryUrl(), flags, null);
+    }
+
+    private static String readFixture() throws IOException {
+        InputStream inputStream = EarthquakeLoadTest.class.getResourceAsStream(FIXTURE);
+        if (inputStream == null) {
+            throw new IOException("Missing test resource " + FIXTURE);
+        }
+        try {
+            return QueryUtils.readText(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /*
+     * Assertions on the result of every request of a scenario.
+     */
+    private interface Check {
+        void check(FetchResult result);
+    }
+
+    /*
+     * Time taken by one request, and its result.
+     */
+    private static final class Sample {
+        final long nanos;
+        final FetchResult result;
+
+        Sample(long nanos, FetchResult result) {
+            this.nanos = nanos;
+            this.result = result;
+        }
+    }
+
+    /*
+     * Measurements of one scenario.
+     */
+    private static final class Scenario {
+        private final long[] mLatencies;
+        private int mCount;
+        private int mFailureCount;
+        private long mEventCount;
+        private long mElapsedNanos;
+        private long mBytesRead;
+        private long mHeapHighWater;
+
+        Scenario(int requestCount) {
+            mLatencies = new long[requestCount];
+        }
+
+        void add(Sample sample) {
+            mLatencies[mCount++] = sample.nanos;
+            int status = sample.result.getStatus();
+            if (status == FetchResult.STATUS_NETWORK_ERROR
+                    || status == FetchResult.STATUS_HTTP_ERROR
+                    || status == FetchResult.STATUS_PARSE_ERROR) {
+                mFailureCount++;
+            }
+            if (sample.result.hasEarthquakes()) {
+                mEventCount += sample.result.getEarthquakes().size();
+            }
+        }
+
+        void finish(long elapsedNanos, LoadMetrics.Snapshot metrics) {
+            mElapsedNanos = elapsedNanos;
+            mBytesRead = metrics.getCounter(LoadMetrics.COUNTER_BYTES_READ);
+            mHeapHighWater = metrics.getHeapHighWaterBytes();
+            Arrays.sort(mLatencies, 0, mCount);
+        }
+
+        /*
+         * Return the latency (in milliseconds) the given percentage of the requests took at
+         * most, by the nearest-rank method.
+         */
+        double getPercentileMillis(double percentile) {
+            int rank = (int) Math.ceil(mCount * percentile / 100);
+            return mLatencies[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        String toReportRow(String name) {
+            double seconds = mElapsedNanos / 1e9;
+            return String.format(Locale.US, "%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.0f,%.0f,%d",
+                    name, mCount, mFailureCount, getPercentileMillis(50),
+                    getPercentileMillis(90), getPercentileMillis(99),
+                    mLatencies[mCount - 1] / 1e6, mCount / seconds, mEventCount / seconds,
+                    mBytesRead / 1024.0 / seconds, mHeapHighWater / 1024);
+        }
+    }
+}
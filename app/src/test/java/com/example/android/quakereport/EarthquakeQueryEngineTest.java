@@ -0,0 +1,159 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EarthquakeQueryEngineTest {
+
+    private static final int EVENT_COUNT = 2000;
+
+    @Test
+    public void sortsByTimeAndByMagnitude() throws IOException {
+        EarthquakeStore store = shuffledStore();
+        EarthquakeQueryEngine engine = new EarthquakeQueryEngine(store);
+        engine.buildIndexes();
+
+        EarthquakeQuery query = new EarthquakeQuery();
+        assertEquals(expectedRows(store, query), rows(engine.select(query)));
+
+        query.setSortOrder(EarthquakeQuery.SORT_BY_MAGNITUDE);
+        assertEquals(expectedRows(store, query), rows(engine.select(query)));
+    }
+
+    @Test
+    public void filtersOnMoreThanTheSortKey() throws IOException {
+        EarthquakeStore store = shuffledStore();
+        EarthquakeQueryEngine engine = new EarthquakeQueryEngine(store);
+
+        EarthquakeQuery query = new EarthquakeQuery();
+        query.setMagnitudeRange(4, 6);
+        query.setPlaceText("japan");
+        List<Integer> expected = expectedRows(store, query);
+        EarthquakeSelection selection = engine.select(query);
+
+        // The query changing afterwards does not change the selection
+        query.setPlaceText("chile");
+
+        assertEquals(expected.size(), selection.size());
+        // Read from the end first, then everything in order
+        assertEquals(expected.get(expected.size() - 1),
+                (Integer) selection.getRow(selection.size() - 1));
+        assertEquals(expected, rows(selection));
+    }
+
+    @Test
+    public void filtersOnTimeWhenSortedByMagnitude() throws IOException {
+        EarthquakeStore store = shuffledStore();
+        EarthquakeQueryEngine engine = new EarthquakeQueryEngine(store);
+
+        EarthquakeQuery query = new EarthquakeQuery();
+        query.setSortOrder(EarthquakeQuery.SORT_BY_MAGNITUDE);
+        query.setTimeWindow(UsgsFixtures.LATEST_TIME - 10 * 60 * 60 * 1000,
+                UsgsFixtures.LATEST_TIME - 60 * 60 * 1000);
+        query.setMagnitudeRange(3, 7);
+
+        assertEquals(expectedRows(store, query), rows(engine.select(query)));
+    }
+
+    @Test
+    public void extendedIndexesMatchRebuiltOnes() throws IOException {
+        EarthquakeStore shuffled = shuffledStore();
+        EarthquakeStore store = new EarthquakeStore();
+        EarthquakeQueryEngine engine = null;
+        EarthquakeQuery byTime = new EarthquakeQuery();
+        EarthquakeQuery byMagnitude = new EarthquakeQuery();
+        byMagnitude.setSortOrder(EarthquakeQuery.SORT_BY_MAGNITUDE);
+
+        // Append pages of different sizes, extending the engine of the previous page each time
+        for (int page = 1; store.size() < shuffled.size(); page *= 3) {
+            int end = Math.min(store.size() + page, shuffled.size());
+            while (store.size() < end) {
+                store.add(shuffled, store.size());
+            }
+            EarthquakeStore view = store.view();
+            if (engine == null) {
+                engine = new EarthquakeQueryEngine(view);
+            } else {
+                engine = engine.extend(view);
+            }
+            engine.buildIndexes();
+
+            assertEquals(expectedRows(view, byTime), rows(engine.select(byTime)));
+            assertEquals(expectedRows(view, byMagnitude), rows(engine.select(byMagnitude)));
+        }
+    }
+
+    /*
+     * Return the fixture earthquakes in a random order, so the indexes have something to sort.
+     */
+    private static EarthquakeStore shuffledStore() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(
+                new ByteArrayInputStream(UsgsFixtures.csv(EVENT_COUNT)),
+                EarthquakeParser.FIELDS_ALL);
+        List<Earthquake> earthquakes = new ArrayList<>();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            earthquakes.add(earthquake);
+        }
+        Collections.shuffle(earthquakes, new Random(7));
+
+        EarthquakeStore store = new EarthquakeStore();
+        for (Earthquake shuffled : earthquakes) {
+            store.add(shuffled);
+        }
+        return store;
+    }
+
+    /*
+     * Return the rows matching the query by checking every row, sorted with a boxed stable sort.
+     */
+    private static List<Integer> expectedRows(final EarthquakeStore store,
+                                              EarthquakeQuery query) {
+        List<Integer> rows = new ArrayList<>();
+        for (int row = 0; row < store.size(); row++) {
+            String location = store.getLocation(row);
+            if (store.getMagnitude(row) >= query.getMinMagnitude()
+                    && store.getMagnitude(row) <= query.getMaxMagnitude()
+                    && store.getTimeInMills(row) >= query.getStartTimeInMills()
+                    && store.getTimeInMills(row) <= query.getEndTimeInMills()
+                    && (query.getPlaceText() == null || location.toLowerCase()
+                    .contains(query.getPlaceText().toLowerCase()))) {
+                rows.add(row);
+            }
+        }
+
+        final Comparator<Integer> byTime = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(store.getTimeInMills(second), store.getTimeInMills(first));
+            }
+        };
+        Collections.sort(rows, byTime);
+        if (query.getSortOrder() == EarthquakeQuery.SORT_BY_MAGNITUDE) {
+            Collections.sort(rows, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    return Double.compare(store.getMagnitude(second), store.getMagnitude(first));
+                }
+            });
+        }
+        return rows;
+    }
+
+    private static List<Integer> rows(EarthquakeSelection selection) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < selection.size(); i++) {
+            rows.add(selection.getRow(i));
+        }
+        return rows;
+    }
+}
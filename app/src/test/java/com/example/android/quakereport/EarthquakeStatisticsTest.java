@@ -0,0 +1,168 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EarthquakeStatisticsTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+
+    @Test
+    public void regionIsTheTextAfterTheLastComma() {
+        assertEquals("Chile", EarthquakeStatistics.getRegion("Iquique, Chile"));
+        assertEquals("Japan", EarthquakeStatistics.getRegion("Tokyo, Honshu, Japan"));
+        assertEquals("Fiji region", EarthquakeStatistics.getRegion("Fiji region"));
+        assertNull(EarthquakeStatistics.getRegion("Iquique,"));
+        assertNull(EarthquakeStatistics.getRegion(null));
+    }
+
+    @Test
+    public void keepsTheLargestMagnitudePerRegion() {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(new Earthquake("us1", 6.2, "76 km SSE of Iquique, Chile", 1000, null));
+        store.add(new Earthquake("us2", 7.1, "10 km W of Arica, Chile", 2000, null));
+        store.add(new Earthquake("us3", 5.4, "20 km N of Tokyo, Japan", 3000, null));
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        statistics.addAll(store);
+
+        Map<String, Double> maxMagnitudes = statistics.getMaxMagnitudes();
+        assertEquals(2, maxMagnitudes.size());
+        assertEquals(7.1, maxMagnitudes.get("Chile"), 0);
+        assertEquals(5.4, statistics.getMaxMagnitude("Japan"), 0);
+
+        // Taking out the largest one leaves the next largest
+        statistics.remove("us2");
+        assertEquals(6.2, statistics.getMaxMagnitude("Chile"), 0);
+    }
+
+    @Test
+    public void parallelComputeMatchesSequential() {
+        // The last rows repeat the ids of the first ones, which another thread rolls up
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < 20000; i++) {
+            Earthquake earthquake = new Earthquake("us" + (i % 15000), (i % 100) / 10.0,
+                    (i % 50) + " km N of Place, Region " + (i % 37), i * 10 * 60 * 1000L, null);
+            earthquake.setUpdatedInMills(i);
+            store.add(earthquake);
+        }
+
+        EarthquakeStatistics sequential = EarthquakeStatistics.compute(store, 1);
+        EarthquakeStatistics parallel = EarthquakeStatistics.compute(store, 4);
+
+        assertEquals(15000, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        assertArrayEquals(sequential.getMagnitudeCounts(), parallel.getMagnitudeCounts());
+        assertEquals(sequential.getHourlyCounts(0, Long.MAX_VALUE),
+                parallel.getHourlyCounts(0, Long.MAX_VALUE));
+        assertEquals(sequential.getDailyCounts(0, Long.MAX_VALUE),
+                parallel.getDailyCounts(0, Long.MAX_VALUE));
+        assertEquals(sequential.getMaxMagnitudes(), parallel.getMaxMagnitudes());
+        assertEquals(37, parallel.getMaxMagnitudes().size());
+    }
+
+    @Test
+    public void countsPerHourAndDay() {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(new Earthquake("us1", 5.0, "Iquique, Chile", 10 * 60 * 1000, null));
+        store.add(new Earthquake("us2", 5.0, "Iquique, Chile", 50 * 60 * 1000, null));
+        store.add(new Earthquake("us3", 5.0, "Iquique, Chile", HOUR + 5 * 60 * 1000, null));
+        store.add(new Earthquake("us4", 5.0, "Iquique, Chile", 2 * DAY - 1, null));
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        statistics.addAll(store);
+
+        SortedMap<Long, Integer> hourly = statistics.getHourlyCounts(0, 2 * DAY);
+        assertEquals(3, hourly.size());
+        assertEquals(2, (int) hourly.get(0L));
+        assertEquals(1, (int) hourly.get(HOUR));
+        assertEquals(1, (int) hourly.get(DAY + 23 * HOUR));
+
+        // The hour holding the start of the range counts, the one at its end does not
+        hourly = statistics.getHourlyCounts(30 * 60 * 1000, DAY + 23 * HOUR);
+        assertEquals(2, hourly.size());
+        assertEquals(2, (int) hourly.get(0L));
+
+        SortedMap<Long, Integer> daily = statistics.getDailyCounts(0, 2 * DAY);
+        assertEquals(2, daily.size());
+        assertEquals(3, (int) daily.get(0L));
+        assertEquals(1, (int) daily.get(DAY));
+    }
+
+    @Test
+    public void countsMagnitudeBuckets() {
+        double[] magnitudes = {-0.5, 0.99, 1.0, 1.99, 2.0, 9.99, 10.0, 12.3};
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < magnitudes.length; i++) {
+            store.add(new Earthquake("us" + i, magnitudes[i], "Iquique, Chile", 1000, null));
+        }
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        statistics.addAll(store);
+
+        long[] counts = statistics.getMagnitudeCounts();
+        assertEquals(EarthquakeFormatter.MAGNITUDE_BUCKETS, counts.length);
+        assertArrayEquals(new long[] {2, 2, 1, 0, 0, 0, 0, 0, 0, 1, 2}, counts);
+    }
+
+    @Test
+    public void replacingAnUpdatedEventTakesOutItsOldCounts() {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(new Earthquake("us1", 6.2, "76 km SSE of Iquique, Chile", 1000, null));
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        statistics.addAll(store);
+
+        EarthquakeStore updated = new EarthquakeStore();
+        Earthquake earthquake = new Earthquake("us1", 4.1, "20 km N of Tokyo, Japan",
+                2 * DAY + 1000, null);
+        earthquake.setUpdatedInMills(5000);
+        updated.add(earthquake);
+        statistics.addAll(updated);
+
+        assertEquals(1, statistics.size());
+        long[] counts = statistics.getMagnitudeCounts();
+        assertEquals(0, counts[6]);
+        assertEquals(1, counts[4]);
+        assertFalse(statistics.getDailyCounts(0, Long.MAX_VALUE).containsKey(0L));
+        assertEquals(1, (int) statistics.getDailyCounts(0, Long.MAX_VALUE).get(2 * DAY));
+        assertTrue(Double.isNaN(statistics.getMaxMagnitude("Chile")));
+        assertFalse(statistics.getMaxMagnitudes().containsKey("Chile"));
+        assertEquals(4.1, statistics.getMaxMagnitude("Japan"), 0);
+    }
+
+    @Test
+    public void readRollupsTakeOutTheRowsTheyAreGiven() throws IOException {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(new Earthquake("us1", 6.2, "76 km SSE of Iquique, Chile", 1000, null));
+        store.add(new Earthquake("us2", 5.4, "20 km N of Tokyo, Japan", 3000, null));
+        EarthquakeStatistics statistics = new EarthquakeStatistics();
+        statistics.addAll(store);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        statistics.write(output);
+        output.close();
+        EarthquakeStatistics read = EarthquakeStatistics.read(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(2, read.size());
+        assertArrayEquals(statistics.getMagnitudeCounts(), read.getMagnitudeCounts());
+        assertEquals(statistics.getHourlyCounts(0, Long.MAX_VALUE),
+                read.getHourlyCounts(0, Long.MAX_VALUE));
+        assertEquals(statistics.getMaxMagnitudes(), read.getMaxMagnitudes());
+
+        read.subtract(store, 0);
+        assertEquals(1, read.size());
+        assertTrue(Double.isNaN(read.getMaxMagnitude("Chile")));
+        assertEquals(5.4, read.getMaxMagnitude("Japan"), 0);
+    }
+}
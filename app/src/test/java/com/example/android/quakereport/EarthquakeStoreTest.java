@@ -0,0 +1,289 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EarthquakeStoreTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void addKeepsEveryColumn() {
+        Earthquake earthquake = earthquake("us1", 10 * HOUR, 11 * HOUR, 6.25);
+        earthquake.setLatitude(-20.5);
+        earthquake.setLongitude(-70.25);
+        earthquake.setDepth(33);
+
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(earthquake);
+
+        assertEquals(1, store.size());
+        assertEquals("us1", store.getId(0));
+        assertEquals(6.25, store.getMagnitude(0), 0);
+        assertEquals(10 * HOUR, store.getTimeInMills(0));
+        assertEquals(11 * HOUR, store.getUpdatedInMills(0));
+        assertEquals("76 km SSE of Iquique, Chile", store.getLocation(0));
+        assertEquals("76 km SSE of", store.getLocationOffset(0));
+        assertEquals("Iquique, Chile", store.getLocationPrimary(0));
+        assertEquals(-20.5, store.getLatitude(0), 0);
+        assertEquals(-70.25, store.getLongitude(0), 0);
+        assertEquals(33, store.getDepth(0), 0);
+        assertEquals(0, store.indexOf("us1"));
+        assertEquals(-1, store.indexOf("us2"));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        EarthquakeStore store = store(earthquake("us1", 2 * HOUR, 0, 5));
+        EarthquakeStore copy = new EarthquakeStore(store);
+        copy.add(earthquake("us2", HOUR, 0, 6));
+
+        assertEquals(1, store.size());
+        assertEquals(2, copy.size());
+        assertEquals("us2", copy.getId(1));
+        assertEquals(-1, store.indexOf("us2"));
+    }
+
+    @Test
+    public void viewKeepsItsRowsWhileTheStoreGrows() {
+        EarthquakeStore store = store(earthquake("us1", 2 * HOUR, 0, 5));
+        EarthquakeStore view = store.view();
+        for (int i = 0; i < 40; i++) {
+            store.add(earthquake("us" + (i + 2), HOUR - i, 0, 6));
+        }
+        assertEquals(1, view.size());
+        assertEquals(-1, view.indexOf("us2"));
+
+        // Appending to the view leaves the rows of the store alone
+        view.add(earthquake("other", HOUR, 0, 7));
+        assertEquals(2, view.size());
+        assertEquals("other", view.getId(1));
+        assertEquals("us2", store.getId(1));
+        assertEquals(6, store.getMagnitude(1), 0);
+        assertEquals(41, store.size());
+    }
+
+    @Test
+    public void mergeWithoutChangesReturnsSameStore() {
+        EarthquakeStore store = store(
+                earthquake("us2", 2 * HOUR, 2 * HOUR, 5),
+                earthquake("us1", HOUR, HOUR, 6));
+
+        // Same events, and one with an older update than the one already loaded
+        EarthquakeStore delta = store(
+                earthquake("us2", 2 * HOUR, 2 * HOUR, 5.5),
+                earthquake("us1", HOUR, HOUR - 1, 7));
+
+        assertSame(store, store.merge(delta));
+        assertSame(store, store.merge(new EarthquakeStore()));
+    }
+
+    @Test
+    public void mergeReplacesUpdatedAndInsertsNewInTimeOrder() {
+        EarthquakeStore store = store(
+                earthquake("us4", 40 * HOUR, 40 * HOUR, 5),
+                earthquake("us2", 20 * HOUR, 20 * HOUR, 5),
+                earthquake("us1", 10 * HOUR, 10 * HOUR, 5));
+
+        // Unordered delta: a new head, an update, and a new row between two loaded ones
+        EarthquakeStore delta = store(
+                earthquake("us3", 30 * HOUR, 30 * HOUR, 4),
+                earthquake("us2", 20 * HOUR, 21 * HOUR, 6.5),
+                earthquake("us5", 50 * HOUR, 50 * HOUR, 3));
+
+        EarthquakeStore merged = store.merge(delta);
+
+        assertEquals(Arrays.asList("us5", "us4", "us3", "us2", "us1"), ids(merged));
+        assertEquals(6.5, merged.getMagnitude(merged.indexOf("us2")), 0);
+        assertEquals(21 * HOUR, merged.getUpdatedInMills(merged.indexOf("us2")));
+
+        // The merged store is new; the loaded one is left as it was
+        assertEquals(Arrays.asList("us4", "us2", "us1"), ids(store));
+        assertEquals(5, store.getMagnitude(1), 0);
+    }
+
+    @Test
+    public void repeatedMergesDoNotKeepReplacedStrings() {
+        EarthquakeStore store = store(earthquake("us1", 10 * HOUR, 10 * HOUR, 5));
+        int stringCount = store.getStringCount();
+
+        // Every update has a new magnitude, whose display text the replaced row no longer uses
+        for (int i = 1; i <= 50; i++) {
+            store = store.merge(store(earthquake("us1", 10 * HOUR, (10 + i) * HOUR, 5 + i / 10.0)));
+        }
+        assertEquals(1, store.size());
+        assertEquals(10, store.getMagnitude(0), 0);
+        assertEquals(stringCount, store.getStringCount());
+    }
+
+    @Test
+    public void mergeAppendsOlderRows() {
+        EarthquakeStore store = store(earthquake("us2", 20 * HOUR, 0, 5));
+        EarthquakeStore merged = store.merge(store(earthquake("us1", 10 * HOUR, 0, 5)));
+
+        assertEquals(Arrays.asList("us2", "us1"), ids(merged));
+    }
+
+    @Test
+    public void mergeSortedInterleavesAndDropsDuplicates() {
+        EarthquakeStore first = store(
+                earthquake("us6", 60 * HOUR, 0, 5),
+                earthquake("us3", 30 * HOUR, 0, 5),
+                earthquake("us1", 10 * HOUR, 0, 5));
+        EarthquakeStore second = store(
+                earthquake("us5", 50 * HOUR, 0, 5),
+                earthquake("us3", 30 * HOUR, 0, 5),
+                earthquake("us2", 20 * HOUR, 0, 5));
+        EarthquakeStore third = store(earthquake("us4", 40 * HOUR, 0, 5));
+
+        EarthquakeStore merged =
+                EarthquakeStore.mergeSorted(Arrays.asList(first, second, new EarthquakeStore(),
+                        third));
+
+        assertEquals(Arrays.asList("us6", "us5", "us4", "us3", "us2", "us1"), ids(merged));
+        for (int i = 0; i < merged.size(); i++) {
+            assertEquals(i, merged.indexOf(merged.getId(i)));
+        }
+    }
+
+    @Test
+    public void mergeSortedOfNothingIsEmpty() {
+        assertTrue(EarthquakeStore.mergeSorted(
+                Collections.<EarthquakeStore>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void snapshotRoundTripKeepsEveryColumn() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(
+                new ByteArrayInputStream(UsgsFixtures.csv(500)), EarthquakeParser.FIELDS_ALL);
+        EarthquakeStore store = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            store.add(earthquake);
+        }
+        // A row without coordinates or a place
+        Earthquake unlocated = new Earthquake(2.5, null, HOUR, null);
+        unlocated.setId("us0");
+        store.add(unlocated);
+
+        ByteBuffer buffer = ByteBuffer.wrap(writeSnapshot(store));
+        EarthquakeStore read = EarthquakeStore.readSnapshot(buffer);
+
+        assertEquals(0, buffer.remaining());
+        assertEquals(store.size(), read.size());
+        for (int i = 0; i < store.size(); i++) {
+            assertEquals(store.getId(i), read.getId(i));
+            assertEquals(store.getMagnitude(i), read.getMagnitude(i), 0);
+            assertEquals(store.getTimeInMills(i), read.getTimeInMills(i));
+            assertEquals(store.getUpdatedInMills(i), read.getUpdatedInMills(i));
+            assertEquals(store.getLocation(i), read.getLocation(i));
+            assertEquals(store.getUrl(i), read.getUrl(i));
+            assertEquals(store.getLatitude(i), read.getLatitude(i), 0);
+            assertEquals(store.getLongitude(i), read.getLongitude(i), 0);
+            assertEquals(store.getDepth(i), read.getDepth(i), 0);
+            assertEquals(store.getMagnitudeText(i), read.getMagnitudeText(i));
+            assertEquals(store.getDateText(i), read.getDateText(i));
+            assertEquals(store.getTimeText(i), read.getTimeText(i));
+            assertEquals(store.getLocationOffset(i), read.getLocationOffset(i));
+            assertEquals(store.getLocationPrimary(i), read.getLocationPrimary(i));
+            assertEquals(i, read.indexOf(store.getId(i)));
+        }
+
+        // The read store can grow and be queried like the one written
+        read.add(earthquake("us1", 2 * HOUR, 0, 5));
+        assertEquals(store.size(), read.indexOf("us1"));
+        assertArrayEquals(sorted(store.findInBox(-30, 30, -60, 60)),
+                sorted(read.findInBox(-30, 30, -60, 60)));
+    }
+
+    @Test
+    public void keepsOnlyUrlsOtherThanTheEventPage() {
+        String eventPage = EarthquakeStore.EVENT_PAGE_URL + "us1";
+        String otherEventPage = EarthquakeStore.EVENT_PAGE_URL + "us2";
+        assertNull(EarthquakeStore.compactUrl("us1", eventPage));
+        assertNull(EarthquakeStore.compactUrl("us1", null));
+        assertEquals(EarthquakeStore.EVENT_PAGE_URL,
+                EarthquakeStore.compactUrl("us1", EarthquakeStore.EVENT_PAGE_URL));
+        assertEquals(otherEventPage, EarthquakeStore.compactUrl("us1", otherEventPage));
+        assertEquals("https://example.com/us1",
+                EarthquakeStore.compactUrl("us1", "https://example.com/us1"));
+        assertEquals(eventPage, EarthquakeStore.compactUrl(null, eventPage));
+
+        // Without a URL, as from CSV, or with the event page, as from GeoJSON, the URL is built
+        // from the id
+        EarthquakeStore store = store(
+                new Earthquake("us1", 5, "Tokyo, Japan", HOUR, null),
+                new Earthquake("us2", 5, "Tokyo, Japan", HOUR, otherEventPage),
+                new Earthquake("us3", 5, "Tokyo, Japan", HOUR, "https://example.com/us3"),
+                new Earthquake(5, "Tokyo, Japan", HOUR, null));
+        assertEquals(eventPage, store.getUrl(0));
+        assertEquals(otherEventPage, store.getUrl(1));
+        assertEquals("https://example.com/us3", store.getUrl(2));
+        assertNull(store.getUrl(3));
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncatedSnapshotIsRejected() throws IOException {
+        byte[] snapshot = writeSnapshot(store(
+                earthquake("us2", 2 * HOUR, 0, 5),
+                earthquake("us1", HOUR, 0, 6)));
+
+        EarthquakeStore.readSnapshot(ByteBuffer.wrap(snapshot, 0, snapshot.length - 1));
+    }
+
+    /*
+     * Return an earthquake in Chile with the given event id, times and magnitude.
+     */
+    private static Earthquake earthquake(String id, long timeInMills, long updatedInMills,
+                                         double magnitude) {
+        Earthquake earthquake = new Earthquake(magnitude, "76 km SSE of Iquique, Chile",
+                timeInMills, null);
+        earthquake.setId(id);
+        earthquake.setUpdatedInMills(updatedInMills);
+        return earthquake;
+    }
+
+    private static EarthquakeStore store(Earthquake... earthquakes) {
+        EarthquakeStore store = new EarthquakeStore();
+        for (Earthquake earthquake : earthquakes) {
+            store.add(earthquake);
+        }
+        return store;
+    }
+
+    private static byte[] writeSnapshot(EarthquakeStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        store.writeSnapshot(output);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static int[] sorted(int[] rows) {
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    private static List<String> ids(EarthquakeStore store) {
+        String[] ids = new String[store.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = store.getId(i);
+        }
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,8 @@
+package com.example.android.quakereport;
+
+/**
+ * JUnit category of the load tests, which the unit test tasks leave out unless run with
+ * -PloadTests (see build.gradle).
+ */
+public interface LoadTests {
+}
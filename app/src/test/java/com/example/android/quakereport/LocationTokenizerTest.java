@@ -0,0 +1,68 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LocationTokenizerTest {
+
+    /* Place strings in the shapes USGS writes them, with the expected offset and primary part */
+    private static final String[][] CORPUS = {
+            // Distance and bearing from a town
+            {"76 km SSE of Iquique, Chile", "76 km SSE of", "Iquique, Chile"},
+            {"10km NW of Tokyo, Japan", "10km NW of", "Tokyo, Japan"},
+            {"3km SSW of Volcano, Hawaii", "3km SSW of", "Volcano, Hawaii"},
+            {"42 km S of Kokopo, Papua New Guinea", "42 km S of", "Kokopo, Papua New Guinea"},
+            // "of" inside a town name, with or without a space before it
+            {"25km ENE of Sofia, Bulgaria", "25km ENE of", "Sofia, Bulgaria"},
+            {"5km N of Isle of Palms, South Carolina", "5km N of",
+                    "Isle of Palms, South Carolina"},
+            {"12km E of Bay of Plenty, New Zealand", "12km E of", "Bay of Plenty, New Zealand"},
+            // Compass direction from a region
+            {"South of the Fiji Islands", "South of", "the Fiji Islands"},
+            {"West of Macquarie Island", "West of", "Macquarie Island"},
+            {"Southeast of Easter Island", "Southeast of", "Easter Island"},
+            {"north of Ascension Island", "north of", "Ascension Island"},
+            // Coasts
+            {"off the coast of Oregon", "off the coast of", "Oregon"},
+            {"near the east coast of Honshu, Japan", "near the east coast of", "Honshu, Japan"},
+            {"off the west coast of northern Sumatra", "off the west coast of",
+                    "northern Sumatra"},
+            // Names that contain "of" but have no offset
+            {"Gulf of California", null, "Gulf of California"},
+            {"Sea of Okhotsk", null, "Sea of Okhotsk"},
+            {"Gulf of Alaska", null, "Gulf of Alaska"},
+            {"Strait of Gibraltar", null, "Strait of Gibraltar"},
+            {"South Island of New Zealand", null, "South Island of New Zealand"},
+            // No "of" at all
+            {"Fiji region", null, "Fiji region"},
+            {"Kermadec Islands, New Zealand", null, "Kermadec Islands, New Zealand"},
+            {"central Mid-Atlantic Ridge", null, "central Mid-Atlantic Ridge"},
+            {"Owen Fracture Zone region", null, "Owen Fracture Zone region"},
+            {"Southwestern Atlantic Ocean", null, "Southwestern Atlantic Ocean"},
+    };
+
+    @Test
+    public void splitsCorpus() {
+        for (String[] place : CORPUS) {
+            assertEquals(place[0], place[1], LocationTokenizer.getOffset(place[0]));
+            assertEquals(place[0], place[2], LocationTokenizer.getPrimary(place[0]));
+        }
+    }
+
+    @Test
+    public void emptyPlaces() {
+        assertEquals(null, LocationTokenizer.getOffset(null));
+        assertEquals(null, LocationTokenizer.getPrimary(null));
+        assertEquals(null, LocationTokenizer.getOffset(""));
+        assertEquals("", LocationTokenizer.getPrimary(""));
+    }
+
+    @Test
+    public void separatorAtEdges() {
+        // An offset with nothing after it, or a direction with nothing before "of"
+        assertEquals(null, LocationTokenizer.getOffset("off the  of "));
+        assertEquals("10 km N of", LocationTokenizer.getOffset("10 km N of "));
+        assertEquals("", LocationTokenizer.getPrimary("10 km N of "));
+    }
+}
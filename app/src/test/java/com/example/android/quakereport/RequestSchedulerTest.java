@@ -0,0 +1,314 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link RequestScheduler} against a {@link StubUsgsServer}: retries, what gets cached, the
+ * limit on concurrent requests, how sharded fetches share a deadline, and the wall-clock speedup
+ * of fetching a query in more shards.
+ */
+public class RequestSchedulerTest {
+
+    private static final int EVENT_COUNT = 4000;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private StubUsgsServer mServer;
+
+    private HttpFetcher mFetcher;
+
+    private RequestScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubUsgsServer();
+        mServer.setEvents(EVENT_COUNT);
+        mFetcher = new HttpFetcher(mTemporaryFolder.newFolder());
+        mScheduler = new RequestScheduler(mFetcher);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void fetchesQuery() {
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl());
+
+        assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+        assertEquals(EVENT_COUNT, result.getEarthquakes().size());
+        assertEquals(UsgsFixtures.getId(0), result.getEarthquakes().getId(0));
+    }
+
+    @Test
+    public void passesPartialResults() {
+        final List<Integer> batchSizes = new ArrayList<>();
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl(), 0,
+                new EarthquakePipeline.PartialResultListener() {
+                    @Override
+                    public int getBatchSize() {
+                        return 100;
+                    }
+
+                    @Override
+                    public void onPartialResult(EarthquakeStore earthquakes) {
+                        synchronized (batchSizes) {
+                            batchSizes.add(earthquakes.size());
+                        }
+                    }
+                });
+
+        assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+        int passedCount = 0;
+        synchronized (batchSizes) {
+            assertEquals(EVENT_COUNT / 100, batchSizes.size());
+            for (int batchSize : batchSizes) {
+                assertEquals(100, batchSize);
+                passedCount += batchSize;
+            }
+        }
+        assertEquals(EVENT_COUNT, passedCount);
+    }
+
+    @Test
+    public void retriesServerErrors() {
+        mServer.failNextRequests(503, 1);
+
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl());
+
+        assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() {
+        mServer.failNextRequests(400, 1);
+
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl());
+
+        assertEquals(FetchResult.STATUS_HTTP_ERROR, result.getStatus());
+        assertEquals(400, result.getHttpCode());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryParseErrors() {
+        // Every row is there, but none of them has a magnitude
+        StringBuilder csv = new StringBuilder(UsgsFixtures.CSV_HEADER).append('\n');
+        for (String row : UsgsFixtures.csv(10, 0).split("\n")) {
+            if (!row.startsWith(UsgsFixtures.CSV_HEADER)) {
+                String[] columns = row.split(",", 6);
+                columns[4] = "";
+                csv.append(join(columns)).append('\n');
+            }
+        }
+        mServer.setCsv(csv.toString());
+
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl());
+
+        assertEquals(FetchResult.STATUS_PARSE_ERROR, result.getStatus());
+        assertFalse(result.hasEarthquakes());
+        assertEquals(10, result.getSkippedCount());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void doesNotCacheTruncatedBody() {
+        mServer.setEtag("\"v1\"");
+        mServer.setTruncateAfterBytes(10000);
+
+        FetchResult truncated = mScheduler.fetch(mServer.getQueryUrl());
+        assertFalse(truncated.isComplete());
+
+        // Had the truncated body been cached, this would be a 304 answered with it
+        mServer.setTruncateAfterBytes(-1);
+        FetchResult result = mScheduler.fetch(mServer.getQueryUrl());
+
+        assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+        assertEquals(EVENT_COUNT, result.getEarthquakes().size());
+        assertEquals(0, mServer.getNotModifiedCount());
+
+        // The complete body is cached
+        assertEquals(FetchResult.STATUS_NOT_MODIFIED,
+                mScheduler.fetch(mServer.getQueryUrl()).getStatus());
+    }
+
+    @Test
+    public void noCacheFetchLeavesCacheAlone() throws IOException {
+        mServer.setEtag("\"v1\"");
+        mScheduler.fetch(mServer.getQueryUrl());
+
+        // Sent without validators, so the whole body comes back, and it is not kept
+        HttpFetcher.Response<Boolean> response = mFetcher.fetch(new URL(mServer.getQueryUrl()),
+                new HttpFetcher.BodyReader<Boolean>() {
+                    @Override
+                    public Boolean read(InputStream inputStream) throws IOException {
+                        return inputStream.read() != -1;
+                    }
+                }, HttpFetcher.FLAG_NO_CACHE);
+        assertEquals(200, response.getCode());
+        assertTrue(response.getBody());
+        assertEquals(0, mServer.getNotModifiedCount());
+
+        // The body cached before is still there to revalidate
+        assertEquals(FetchResult.STATUS_NOT_MODIFIED,
+                mScheduler.fetch(mServer.getQueryUrl()).getStatus());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void shardsMergeWithoutDuplicates() {
+        FetchResult result = mScheduler.fetchShards(buildShards(5), 2, 30 * 1000);
+
+        assertTrue(result.isComplete());
+        EarthquakeStore earthquakes = result.getEarthquakes();
+        assertEquals(EVENT_COUNT, earthquakes.size());
+        for (int i = 1; i < earthquakes.size(); i++) {
+            assertTrue(earthquakes.getTimeInMills(i - 1) >= earthquakes.getTimeInMills(i));
+        }
+    }
+
+    @Test
+    public void shardsShareRequestLimit() {
+        mServer.setLatencyMillis(100);
+
+        mScheduler.fetchShards(buildShards(8), 8, 30 * 1000);
+
+        assertEquals(8, mServer.getRequestCount());
+        assertTrue(mServer.getMaxActiveRequests() <= 2);
+    }
+
+    @Test
+    public void shardsShareOneDeadline() {
+        // Two shards run at a time, in three rounds, so each gets a third of the deadline, which
+        // is less than a response takes
+        mServer.setLatencyMillis(1000);
+
+        long startTime = System.nanoTime();
+        FetchResult result = mScheduler.fetchShards(buildShards(6), 2, 1500);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2500);
+        assertFalse(result.hasEarthquakes());
+        assertEquals(FetchResult.STATUS_NETWORK_ERROR, result.getStatus());
+    }
+
+    @Test
+    public void slowShardOnlyTakesItsShare() {
+        // One shard at a time, and the first one stalls for longer than the whole deadline
+        mServer.delayNextRequests(10 * 1000, 1);
+        List<String> shardUrls = buildShards(4);
+
+        long startTime = System.nanoTime();
+        FetchResult result = mScheduler.fetchShards(shardUrls, 1, 4000);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        // It is cancelled after a quarter of the deadline, and the other shards still run
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2500);
+        assertFalse(result.isComplete());
+        assertEquals(FetchResult.STATUS_PARTIAL, result.getStatus());
+        int expectedCount = 0;
+        for (String shardUrl : shardUrls.subList(1, shardUrls.size())) {
+            expectedCount += mScheduler.fetch(shardUrl).getEarthquakes().size();
+        }
+        assertEquals(expectedCount, result.getEarthquakes().size());
+    }
+
+    @Test
+    public void shardsLeaveCacheAlone() {
+        mServer.setEtag("\"v1\"");
+
+        // Sent without validators both times, so nothing comes back Not Modified
+        mScheduler.fetchShards(buildShards(2), 2, 30 * 1000);
+        FetchResult result = mScheduler.fetchShards(buildShards(2), 2, 30 * 1000);
+
+        assertEquals(FetchResult.STATUS_SUCCESS, result.getStatus());
+        assertEquals(EVENT_COUNT, result.getEarthquakes().size());
+        assertEquals(0, mServer.getNotModifiedCount());
+    }
+
+    @Test
+    public void shardedFetchIsFaster() {
+        // Each response takes as long as a slow mobile round trip
+        mServer.setLatencyMillis(250);
+
+        StringBuilder report = new StringBuilder("shards  serial_ms  sharded_ms  speedup\n");
+        double speedupOfFour = 0;
+        for (int shardCount : new int[] {1, 2, 4, 8}) {
+            List<String> shardUrls = buildShards(shardCount);
+
+            long startTime = System.nanoTime();
+            int serialCount = 0;
+            for (String shardUrl : shardUrls) {
+                serialCount += mScheduler.fetch(shardUrl).getEarthquakes().size();
+            }
+            long serialMillis = (System.nanoTime() - startTime) / 1000000;
+
+            startTime = System.nanoTime();
+            FetchResult result = mScheduler.fetchShards(shardUrls, 2, 30 * 1000);
+            long shardedMillis = (System.nanoTime() - startTime) / 1000000;
+
+            assertEquals(serialCount, result.getEarthquakes().size());
+            double speedup = (double) serialMillis / shardedMillis;
+            if (shardCount == 4) {
+                speedupOfFour = speedup;
+            }
+            report.append(String.format(Locale.US, "%6d  %9d  %10d  %7.2f%n",
+                    shardCount, serialMillis, shardedMillis, speedup));
+        }
+        System.out.print(report);
+
+        // Two requests run at a time, so four shards take about half as long
+        assertTrue("speedup " + speedupOfFour, speedupOfFour > 1.5);
+    }
+
+    private static String join(String[] columns) {
+        StringBuilder joined = new StringBuilder(columns[0]);
+        for (int i = 1; i < columns.length; i++) {
+            joined.append(',').append(columns[i]);
+        }
+        return joined.toString();
+    }
+
+    /*
+     * Split the query over the time of the served earthquakes into the given number of shards,
+     * the way {@link QueryUtils#buildTimeShards} does. That one builds URLs with android.net.Uri,
+     * which does nothing in unit tests.
+     */
+    private List<String> buildShards(int shardCount) {
+        long[] times = mServer.getTimes();
+        long startTime = times[times.length - 1];
+        long windowLength = (times[0] + 1 - startTime + shardCount - 1) / shardCount;
+
+        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<String> shardUrls = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            long windowStart = startTime + i * windowLength;
+            shardUrls.add(mServer.getQueryUrl()
+                    + "&starttime=" + isoFormat.format(new Date(windowStart))
+                    + "&endtime=" + isoFormat.format(new Date(windowStart + windowLength)));
+        }
+        return shardUrls;
+    }
+}
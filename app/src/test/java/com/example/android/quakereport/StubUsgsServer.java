@@ -0,0 +1,303 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP server standing in for the USGS query API in the tests.
+ *
+ * It answers every request with CSV earthquakes, either synthesized ({@link #setEvents(int)}) or
+ * replayed from a fixture ({@link #setCsv(String)}), filtered by the "starttime", "endtime" and
+ * "limit" parameters the way USGS filters them. Network conditions are simulated on request:
+ * a latency before the response, a bandwidth limit, a body cut short, error responses, and an
+ * ETag that is answered with 304 Not Modified.
+ */
+final class StubUsgsServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Size of the pieces a throttled body is written in */
+    private static final int THROTTLE_CHUNK_SIZE = 1024;
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    /* Rows of the CSV body, without the header, and the time of each row */
+    private volatile String[] mRows = new String[0];
+    private volatile long[] mTimes = new long[0];
+
+    private volatile long mLatencyMillis;
+
+    // Bytes written per second, or 0 for no limit
+    private volatile long mBytesPerSecond;
+
+    // Number of body bytes written before the connection is closed, or -1 to write it all
+    private volatile int mTruncateAfterBytes = -1;
+
+    // ETag sent with every body, or null for none
+    private volatile String mEtag;
+
+    // Status codes answered, one per request, before the body is served again
+    private final Deque<Integer> mQueuedStatusCodes = new ArrayDeque<>();
+
+    // Extra delays (in milliseconds), one per request, before the latency applies to all again
+    private final Deque<Long> mQueuedDelays = new ArrayDeque<>();
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+    private final AtomicInteger mMaxActiveRequests = new AtomicInteger();
+
+    StubUsgsServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int active = mActiveRequests.incrementAndGet();
+                try {
+                    updateMaxActiveRequests(active);
+                    mRequestCount.incrementAndGet();
+                    respond(exchange);
+                } finally {
+                    mActiveRequests.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /*
+     * Return the URL of a CSV query on this server, without any time or paging parameters.
+     */
+    String getQueryUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort()
+                + "/fdsnws/event/1/query?format=csv&orderby=time";
+    }
+
+    /*
+     * Serve the given number of earthquakes generated by {@link UsgsFixtures}.
+     */
+    void setEvents(int eventCount) {
+        setCsv(UsgsFixtures.csv(eventCount, 0));
+    }
+
+    /*
+     * Serve the earthquakes of the given USGS CSV response, e.g. a recorded fixture. Its rows
+     * must be ordered by time, most recent first.
+     */
+    void setCsv(String csv) {
+        String[] lines = csv.split("\n");
+        String[] rows = new String[lines.length - 1];
+        long[] times = new long[rows.length];
+        SimpleDateFormat timeFormat = createTimeFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = lines[i + 1];
+            times[i] = parseTime(timeFormat, rows[i].substring(0, rows[i].indexOf(',')));
+        }
+        mTimes = times;
+        mRows = rows;
+    }
+
+    /*
+     * Return the times of the served earthquakes, most recent first.
+     */
+    long[] getTimes() {
+        return mTimes.clone();
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    void setTruncateAfterBytes(int truncateAfterBytes) {
+        mTruncateAfterBytes = truncateAfterBytes;
+    }
+
+    void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    /*
+     * Answer the next count requests with the given status code and no body.
+     */
+    void failNextRequests(int statusCode, int count) {
+        synchronized (mQueuedStatusCodes) {
+            for (int i = 0; i < count; i++) {
+                mQueuedStatusCodes.add(statusCode);
+            }
+        }
+    }
+
+    /*
+     * Hold the next count requests for the given time (in milliseconds) on top of the latency.
+     */
+    void delayNextRequests(long delayMillis, int count) {
+        synchronized (mQueuedDelays) {
+            for (int i = 0; i < count; i++) {
+                mQueuedDelays.add(delayMillis);
+            }
+        }
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /*
+     * Return the largest number of requests the server was answering at the same time.
+     */
+    int getMaxActiveRequests() {
+        return mMaxActiveRequests.get();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        Long delay;
+        synchronized (mQueuedDelays) {
+            delay = mQueuedDelays.poll();
+        }
+        sleep(mLatencyMillis + (delay != null ? delay : 0));
+
+        Integer statusCode;
+        synchronized (mQueuedStatusCodes) {
+            statusCode = mQueuedStatusCodes.poll();
+        }
+        if (statusCode != null) {
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+
+        String etag = mEtag;
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                mNotModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+
+        byte[] body = buildBody(parseQuery(exchange.getRequestURI().getRawQuery()));
+        exchange.getResponseHeaders().set("Content-Type", "text/csv");
+        exchange.sendResponseHeaders(200, body.length);
+
+        int length = mTruncateAfterBytes >= 0 ? Math.min(mTruncateAfterBytes, body.length)
+                : body.length;
+        OutputStream output = exchange.getResponseBody();
+        long bytesPerSecond = mBytesPerSecond;
+        for (int offset = 0; offset < length; offset += THROTTLE_CHUNK_SIZE) {
+            int count = Math.min(THROTTLE_CHUNK_SIZE, length - offset);
+            output.write(body, offset, count);
+            if (bytesPerSecond > 0) {
+                output.flush();
+                sleep(count * 1000L / bytesPerSecond);
+            }
+        }
+        output.flush();
+    }
+
+    /*
+     * Return the CSV body for a query with the given parameters.
+     */
+    private byte[] buildBody(Map<String, String> parameters) {
+        SimpleDateFormat isoFormat = createTimeFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        long startTime = parameters.containsKey("starttime")
+                ? parseTime(isoFormat, parameters.get("starttime")) : Long.MIN_VALUE;
+        long endTime = parameters.containsKey("endtime")
+                ? parseTime(isoFormat, parameters.get("endtime")) : Long.MAX_VALUE;
+        int limit = parameters.containsKey("limit")
+                ? Integer.parseInt(parameters.get("limit")) : Integer.MAX_VALUE;
+
+        String[] rows = mRows;
+        long[] times = mTimes;
+        StringBuilder body = new StringBuilder(UsgsFixtures.CSV_HEADER).append('\n');
+        int count = 0;
+        for (int i = 0; i < rows.length && count < limit; i++) {
+            if (times[i] >= startTime && times[i] <= endTime) {
+                body.append(rows[i]).append('\n');
+                count++;
+            }
+        }
+        return body.toString().getBytes(UTF_8);
+    }
+
+    private void updateMaxActiveRequests(int active) {
+        int max;
+        do {
+            max = mMaxActiveRequests.get();
+        } while (active > max && !mMaxActiveRequests.compareAndSet(max, active));
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(parameter.substring(0, equals),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static SimpleDateFormat createTimeFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static long parseTime(SimpleDateFormat format, String text) {
+        try {
+            return format.parse(text).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad time " + text, e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Builds USGS responses for the tests and the benchmarks.
+ *
+ * The earthquakes are made up, but written the way USGS writes them: the columns and quoting of
+ * the "format=csv" query, most recent first, with place strings in the shapes USGS uses. They are
+ * generated from a fixed seed, so every run of a test or benchmark reads the same bytes.
+ */
+final class UsgsFixtures {
+
+    /* Header row of the USGS CSV format */
+    static final String CSV_HEADER = "time,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,"
+            + "net,id,updated,place,type,horizontalError,depthError,magError,magNst,status,"
+            + "locationSource,magSource";
+
+    /* Time of the most recent generated earthquake: 2017-02-02T00:00:00Z */
+    static final long LATEST_TIME = 1485993600000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Place strings in the shapes USGS uses, with and without a distance offset */
+    private static final String[] PLACES = {
+            "76 km SSE of Iquique, Chile",
+            "10km NW of Tokyo, Japan",
+            "3km SSW of Volcano, Hawaii",
+            "120 km WNW of Sola, Vanuatu",
+            "25km ENE of Sofia, Bulgaria",
+            "42 km S of Kokopo, Papua New Guinea",
+            "South of the Fiji Islands",
+            "Fiji region",
+            "Kermadec Islands, New Zealand",
+            "Gulf of California",
+            "Sea of Okhotsk",
+            "central Mid-Atlantic Ridge",
+            "off the coast of Oregon",
+            "near the east coast of Honshu, Japan",
+            "West of Macquarie Island",
+            "Owen Fracture Zone region",
+    };
+
+    /* Source networks of the event ids */
+    private static final String[] NETWORKS = {"us", "ak", "ci", "nc", "hv"};
+
+    private UsgsFixtures() {
+    }
+
+    /*
+     * Return a USGS CSV response with the given number of earthquakes.
+     */
+    static byte[] csv(int eventCount) {
+        return csv(eventCount, 0).getBytes(UTF_8);
+    }
+
+    /*
+     * Return the text of a USGS CSV response with the given number of earthquakes, skipping the
+     * first offset ones, as a query with "offset" and "limit" would.
+     */
+    static String csv(int eventCount, int offset) {
+        SimpleDateFormat isoFormat =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date();
+
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        Random random = new Random(42);
+        long time = LATEST_TIME;
+        for (int i = 0; i < offset + eventCount; i++) {
+            time -= 1 + random.nextInt(10 * 60 * 1000);
+            double latitude = random.nextDouble() * 180 - 90;
+            double longitude = random.nextDouble() * 360 - 180;
+            double depth = random.nextDouble() * 600;
+            double magnitude = 2.5 + Math.round(random.nextDouble() * 60) / 10.0;
+            String network = NETWORKS[random.nextInt(NETWORKS.length)];
+            String place = PLACES[random.nextInt(PLACES.length)];
+            if (i < offset) {
+                continue;
+            }
+
+            date.setTime(time);
+            String timeText = isoFormat.format(date);
+            date.setTime(time + 60 * 60 * 1000);
+            String updatedText = isoFormat.format(date);
+            csv.append(timeText).append(',')
+                    .append(String.format(Locale.US, "%.4f,%.4f,%.2f,%.1f", latitude, longitude,
+                            depth, magnitude))
+                    .append(",mb,,25,1.2,0.8,").append(network).append(',')
+                    .append(getId(i)).append(',').append(updatedText).append(',')
+                    .append('"').append(place).append('"')
+                    .append(",earthquake,7.5,1.9,0.06,80,reviewed,").append(network).append(',')
+                    .append(network).append('\n');
+        }
+        return csv.toString();
+    }
+
+    /*
+     * Return the event id of the earthquake at the given position of the generated responses.
+     */
+    static String getId(int position) {
+        return "us" + (10000000 + position);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Reading everything EarthquakeItemsAdapter.onBindViewHolder() shows for one row of an
+ * {@link EarthquakeSelection}: the magnitude text and circle color, the location offset and
+ * primary parts, and the date and time. Run with the gc profiler, the allocation rate per
+ * operation (gc.alloc.rate.norm) should be 0 bytes.
+ */
+@State(Scope.Thread)
+public class BindBenchmark {
+
+    private static final int EVENT_COUNT = 1000;
+
+    /* Stand-in for the adapter's table of magnitude circle colors */
+    private final int[] mMagnitudeColors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+
+    private EarthquakeSelection mSelection;
+
+    private final String mDefaultLocationOffset = "Near the";
+
+    private int mPosition;
+
+    @Setup
+    public void setUp() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(
+                new ByteArrayInputStream(UsgsFixtures.csv(EVENT_COUNT)),
+                EarthquakeParser.FIELDS_ALL);
+        EarthquakeStore store = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            store.add(earthquake);
+        }
+        mSelection = new EarthquakeQueryEngine(store).select(new EarthquakeQuery());
+        for (int i = 0; i < mMagnitudeColors.length; i++) {
+            mMagnitudeColors[i] = 0xff000000 | i;
+        }
+    }
+
+    @Benchmark
+    public void bind(Blackhole blackhole) {
+        EarthquakeSelection selection = mSelection;
+        int position = mPosition;
+        mPosition = (position + 1) % selection.size();
+
+        blackhole.consume(selection.getMagnitudeText(position));
+        blackhole.consume(mMagnitudeColors[
+                EarthquakeFormatter.getMagnitudeBucket(selection.getMagnitude(position))]);
+        String locationOffset = selection.getLocationOffset(position);
+        blackhole.consume(locationOffset != null ? locationOffset : mDefaultLocationOffset);
+        blackhole.consume(selection.getLocationPrimary(position));
+        blackhole.consume(selection.getDateText(position));
+        blackhole.consume(selection.getTimeText(position));
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Parsing a USGS CSV response with {@link EarthquakeCsvParser}, on its own and into an
+ * {@link EarthquakeStore} (which also formats the display text of every row), for a small, a
+ * medium and a huge response.
+ */
+@State(Scope.Benchmark)
+public class CsvParserBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int eventCount;
+
+    private byte[] mCsv;
+
+    @Setup
+    public void setUp() {
+        mCsv = UsgsFixtures.csv(eventCount);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(new ByteArrayInputStream(mCsv),
+                EarthquakeParser.FIELDS_ALL);
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            blackhole.consume(earthquake);
+        }
+    }
+
+    @Benchmark
+    public EarthquakeStore parseIntoStore() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(new ByteArrayInputStream(mCsv),
+                EarthquakeParser.FIELDS_ALL);
+        EarthquakeStore store = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            store.add(earthquake);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Formatting the text of one list row with {@link EarthquakeFormatter}. Each call formats the
+ * next of a fixed set of times and magnitudes, so no result can be cached.
+ */
+@State(Scope.Thread)
+public class FormatterBenchmark {
+
+    private static final int VALUE_COUNT = 1024;
+
+    private final EarthquakeFormatter mFormatter = new EarthquakeFormatter();
+
+    private final long[] mTimes = new long[VALUE_COUNT];
+    private final double[] mMagnitudes = new double[VALUE_COUNT];
+
+    private int mNext;
+
+    public FormatterBenchmark() {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mTimes[i] = UsgsFixtures.LATEST_TIME - i * 997L * 1000;
+            mMagnitudes[i] = (i % 100) / 10.0;
+        }
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return mFormatter.formatDate(mTimes[next()]);
+    }
+
+    @Benchmark
+    public String formatTime() {
+        return mFormatter.formatTime(mTimes[next()]);
+    }
+
+    @Benchmark
+    public String formatMagnitude() {
+        return mFormatter.formatMagnitude(mMagnitudes[next()]);
+    }
+
+    @Benchmark
+    public int getMagnitudeBucket() {
+        return EarthquakeFormatter.getMagnitudeBucket(mMagnitudes[next()]);
+    }
+
+    private int next() {
+        mNext = (mNext + 1) & (VALUE_COUNT - 1);
+        return mNext;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting USGS place strings into their offset and primary parts with
+ * {@link LocationTokenizer}, against the regex split the list adapter used to run on every
+ * bind.
+ */
+@State(Scope.Thread)
+public class LocationSplitBenchmark {
+
+    /* Separator of the old split, which also matched "of" inside names */
+    private static final String LEGACY_SEPARATOR = "of";
+
+    private static final String[] PLACES = {
+            "76 km SSE of Iquique, Chile",
+            "10km NW of Tokyo, Japan",
+            "25km ENE of Sofia, Bulgaria",
+            "South of the Fiji Islands",
+            "Kermadec Islands, New Zealand",
+            "Gulf of California",
+            "off the coast of Oregon",
+            "Owen Fracture Zone region",
+    };
+
+    private int mNext;
+
+    @Benchmark
+    public void tokenizer(Blackhole blackhole) {
+        String place = nextPlace();
+        blackhole.consume(LocationTokenizer.getOffset(place));
+        blackhole.consume(LocationTokenizer.getPrimary(place));
+    }
+
+    @Benchmark
+    public void legacySplit(Blackhole blackhole) {
+        String place = nextPlace();
+        if (place.contains(LEGACY_SEPARATOR)) {
+            String[] parts = place.split(LEGACY_SEPARATOR);
+            blackhole.consume(parts[0] + LEGACY_SEPARATOR);
+            blackhole.consume(parts[1]);
+        } else {
+            blackhole.consume(place);
+        }
+    }
+
+    private String nextPlace() {
+        mNext = (mNext + 1) % PLACES.length;
+        return PLACES[mNext];
+    }
+}
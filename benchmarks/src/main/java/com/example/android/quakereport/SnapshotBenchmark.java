@@ -0,0 +1,72 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cold-start load of the earthquake list: reading an {@link EarthquakeStore} back from its
+ * snapshot, against parsing the same earthquakes from a USGS CSV response into a store. The
+ * snapshot is read from a direct buffer, like the memory-mapped file EarthquakeSnapshot reads.
+ */
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    @Param({"50000"})
+    public int eventCount;
+
+    private byte[] mCsv;
+
+    private EarthquakeStore mStore;
+
+    private ByteBuffer mSnapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCsv = UsgsFixtures.csv(eventCount);
+        mStore = parseCsv();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        mStore.writeSnapshot(output);
+        output.close();
+        byte[] snapshot = bytes.toByteArray();
+        mSnapshot = ByteBuffer.allocateDirect(snapshot.length);
+        mSnapshot.put(snapshot);
+        mSnapshot.flip();
+    }
+
+    @Benchmark
+    public EarthquakeStore readSnapshot() {
+        return EarthquakeStore.readSnapshot(mSnapshot.duplicate());
+    }
+
+    @Benchmark
+    public EarthquakeStore parseCsv() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(new ByteArrayInputStream(mCsv),
+                EarthquakeParser.FIELDS_ALL);
+        EarthquakeStore store = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            store.add(earthquake);
+        }
+        return store;
+    }
+
+    @Benchmark
+    public int writeSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mSnapshot.capacity());
+        DataOutputStream output = new DataOutputStream(bytes);
+        mStore.writeSnapshot(output);
+        output.close();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Radius and bounding-box queries over the {@link EarthquakeStore}'s spatial index, against a
+ * linear scan of every row with the same tests. firstRadiusQuery copies the store, so it pays
+ * for building the index on the first query as well.
+ */
+@State(Scope.Thread)
+public class SpatialQueryBenchmark {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    /* Query around Tokyo */
+    private static final double LATITUDE = 35.68;
+    private static final double LONGITUDE = 139.69;
+    private static final double RADIUS_KM = 500;
+
+    /* Box around Japan */
+    private static final double MIN_LATITUDE = 30;
+    private static final double MAX_LATITUDE = 46;
+    private static final double MIN_LONGITUDE = 128;
+    private static final double MAX_LONGITUDE = 146;
+
+    @Param({"10000", "100000"})
+    public int eventCount;
+
+    private EarthquakeStore mStore;
+
+    @Setup
+    public void setUp() throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(
+                new ByteArrayInputStream(UsgsFixtures.csv(eventCount)),
+                EarthquakeParser.FIELDS_ALL);
+        mStore = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            mStore.add(earthquake);
+        }
+        // Build the index outside of the measured queries
+        mStore.findInBox(0, 0, 0, 0);
+    }
+
+    @Benchmark
+    public int[] radiusIndexed() {
+        return mStore.findWithinRadius(LATITUDE, LONGITUDE, RADIUS_KM);
+    }
+
+    @Benchmark
+    public int[] radiusLinear() {
+        EarthquakeStore store = mStore;
+        double cosPoint = Math.cos(Math.toRadians(LATITUDE));
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < store.size(); row++) {
+            if (distanceKm(LATITUDE, LONGITUDE, cosPoint, store.getLatitude(row),
+                    store.getLongitude(row)) <= RADIUS_KM) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    @Benchmark
+    public int[] firstRadiusQuery() {
+        return new EarthquakeStore(mStore).findWithinRadius(LATITUDE, LONGITUDE, RADIUS_KM);
+    }
+
+    @Benchmark
+    public int[] boxIndexed() {
+        return mStore.findInBox(MIN_LATITUDE, MAX_LATITUDE, MIN_LONGITUDE, MAX_LONGITUDE);
+    }
+
+    @Benchmark
+    public int[] boxLinear() {
+        EarthquakeStore store = mStore;
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < store.size(); row++) {
+            double latitude = store.getLatitude(row);
+            double longitude = store.getLongitude(row);
+            if (latitude >= MIN_LATITUDE && latitude <= MAX_LATITUDE
+                    && longitude >= MIN_LONGITUDE && longitude <= MAX_LONGITUDE) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /*
+     * Same haversine distance as the one SpatialIndex uses.
+     */
+    private static double distanceKm(double latitude, double longitude, double cosLatitude,
+                                     double otherLatitude, double otherLongitude) {
+        double sinHalfLatitude = Math.sin(Math.toRadians(otherLatitude - latitude) / 2);
+        double sinHalfLongitude = Math.sin(Math.toRadians(otherLongitude - longitude) / 2);
+        double h = sinHalfLatitude * sinHalfLatitude + cosLatitude
+                * Math.cos(Math.toRadians(otherLatitude)) * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+}
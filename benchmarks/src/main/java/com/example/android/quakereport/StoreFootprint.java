@@ -0,0 +1,100 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the heap retained by 100,000 earthquakes held as a List of {@link Earthquake}
+ * objects and as an {@link EarthquakeStore}, both parsed from the same USGS CSV response.
+ *
+ * The retained size is the heap in use after a full collection with the earthquakes reachable,
+ * minus the heap in use before they were parsed. Run it with:
+ *
+ *     ./gradlew :benchmarks:footprint
+ */
+public final class StoreFootprint {
+
+    private static final int EVENT_COUNT = 100000;
+
+    private StoreFootprint() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] csv = UsgsFixtures.csv(EVENT_COUNT);
+
+        // Warm up both paths, so loaded classes and the formatter are not counted
+        retain(readList(csv));
+        retain(readStore(csv));
+
+        long before = usedHeap();
+        List<Earthquake> list = readList(csv);
+        long listBytes = usedHeap() - before;
+        retain(list);
+        list = null;
+
+        before = usedHeap();
+        EarthquakeStore store = readStore(csv);
+        long storeBytes = usedHeap() - before;
+        retain(store);
+
+        System.out.println(String.format(Locale.US,
+                "Retained heap per %d events: List<Earthquake> %d KB, EarthquakeStore %d KB"
+                        + " (%.1f%%)",
+                EVENT_COUNT, listBytes / 1024, storeBytes / 1024, 100.0 * storeBytes / listBytes));
+    }
+
+    /*
+     * Parse the response into a list, the way the list adapter used to hold it. The display text
+     * the store keeps pre-formatted is part of each {@link Earthquake} as well.
+     */
+    private static List<Earthquake> readList(byte[] csv) throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(new ByteArrayInputStream(csv),
+                EarthquakeParser.FIELDS_ALL);
+        List<Earthquake> earthquakes = new ArrayList<>();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            earthquakes.add(earthquake);
+        }
+        return earthquakes;
+    }
+
+    private static EarthquakeStore readStore(byte[] csv) throws IOException {
+        EarthquakeParser parser = new EarthquakeCsvParser(new ByteArrayInputStream(csv),
+                EarthquakeParser.FIELDS_ALL);
+        EarthquakeStore store = new EarthquakeStore();
+        Earthquake earthquake;
+        while ((earthquake = parser.next()) != null) {
+            store.add(earthquake);
+        }
+        return store;
+    }
+
+    /*
+     * Return the heap in use after running the collector until it no longer frees anything.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /*
+     * Keep the given object reachable up to this point, so it is not collected early.
+     */
+    private static void retain(Object object) {
+        if (object.hashCode() == System.nanoTime()) {
+            System.out.println();
+        }
+    }
+}